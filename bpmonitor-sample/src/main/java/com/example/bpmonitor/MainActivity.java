@@ -17,6 +17,7 @@ package com.example.bpmonitor;
 
 import android.Manifest;
 import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.ComponentName;
 import android.content.Context;
@@ -51,6 +52,7 @@ import com.tangentlines.bpmonitor.model.BloodPressureReading;
 import com.tangentlines.bpmonitor.callbacks.ConnectionCallbacks;
 import com.tangentlines.bpmonitor.callbacks.PairingCallbacks;
 import com.tangentlines.bpmonitor.callbacks.SynchronizationCallbacks;
+import com.tangentlines.bpmonitor.callbacks.SynchronizationFinishedCallbacks;
 import com.tangentlines.bpmonitor.model.UserInformation;
 import com.tangentlines.bpmonitor.utils.BinaryUtils;
 
@@ -62,6 +64,9 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int MY_PERMISSIONS_REQUEST_ACCESS_LOCATION = 33;
 
+    /* a device which is awake is usually found within a few seconds */
+    private static final long SCAN_RACE_TIMEOUT = 1000 * 5;
+
     private ViewHolder mViews;
     private DeviceAdapter mDeviceAdapter;
     private BPMonitor mDevice;
@@ -119,6 +124,7 @@ public class MainActivity extends AppCompatActivity {
 
         bindToBluetoothDiscoveryService();
         hideProgress();
+        connectToPairedDevice();
         updateUI();
 
     }
@@ -154,6 +160,31 @@ public class MainActivity extends AppCompatActivity {
 
     }
 
+    /*
+     * A paired device doesn't need to be discovered, a background connection is established as soon as it wakes up.
+     * A short scan runs next to it, in case the device is already awake.
+     */
+    private void connectToPairedDevice() {
+
+        String boundMacAddress = LocalStorage.getMacAddress(this);
+
+        if (mDevice != null || BluetoothAdapter.getDefaultAdapter() == null || TextUtils.isEmpty(boundMacAddress) || !BluetoothAdapter.checkBluetoothAddress(boundMacAddress)) {
+            return;
+        }
+
+        addOutput("Waiting for paired device " + boundMacAddress);
+
+        mDevice = new BPMonitor.Builder()
+                .withAddress(boundMacAddress)
+                .setConnectionCallbacks(mConnectionCallbacks)
+                .setAutoConnect(true)
+                .setScanRace(SCAN_RACE_TIMEOUT)
+                .create();
+
+        mDevice.connect(this);
+
+    }
+
     private void disconnect() {
 
         if (mDevice == null) {
@@ -161,6 +192,17 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
+        if (mDevice.isReconnectPending()) {
+
+            /* nothing is connected, only the pending background connection is cancelled */
+            mDevice.disconnect();
+            mDevice = null;
+            addOutput("Stopped waiting for paired device");
+            updateUI();
+            return;
+
+        }
+
         showProgress();
         mDevice.disconnect();
         updateUI();
@@ -174,8 +216,9 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
+        /* first time setup, the readings are synchronized right after pairing */
         showProgress();
-        mDevice.startPairing(mPairingCallbacks);
+        mDevice.startOnboarding(mPairingCallbacks, mSynchronizationCallbacks);
         updateUI();
 
     }
@@ -268,7 +311,12 @@ public class MainActivity extends AppCompatActivity {
         public void onDisconnected(BPMonitor device) {
 
             addOutput("Disconnected!");
-            mDevice = null;
+
+            /* a background connection to a paired device stays pending */
+            if (device.getDeviceState() != BPMonitor.DeviceState.CONNECTING) {
+                mDevice = null;
+            }
+
             hideProgress();
             updateUI();
 
@@ -320,7 +368,7 @@ public class MainActivity extends AppCompatActivity {
 
     };
 
-    private SynchronizationCallbacks mSynchronizationCallbacks = new SynchronizationCallbacks() {
+    private SynchronizationCallbacks mSynchronizationCallbacks = new SynchronizationFinishedCallbacks() {
 
         @Override
         public void onSynchronizationStarted(BPMonitor device) {
@@ -339,6 +387,12 @@ public class MainActivity extends AppCompatActivity {
             addOutput(reading.toString());
         }
 
+        @Override
+        public void onSynchronizationFinished(BPMonitor device, int readingCount, long duration) {
+            addOutput(String.format("Sync finished: %d readings in %d ms", readingCount, duration));
+            updateUI();
+        }
+
         @Override
         public void onSynchronizationFailed(BPMonitor device, BPMonitorError exception) {
             addOutput(String.format("Failed to set up synchronization: %s", exception.getMessage()));
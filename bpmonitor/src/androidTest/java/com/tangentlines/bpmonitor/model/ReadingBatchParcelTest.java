@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.model;
+
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Parcel needs the platform, so the round trip runs on a device
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReadingBatchParcelTest {
+
+    private static ReadingBatch parcel(ReadingBatch batch) {
+
+        final Parcel parcel = Parcel.obtain();
+
+        try {
+            batch.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return ReadingBatch.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+
+    }
+
+    private static void assertSameReadings(ReadingBatch expected, ReadingBatch actual) {
+
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getFlags(i), actual.getFlags(i));
+            assertEquals(expected.getTimestamp(i), actual.getTimestamp(i));
+            assertEquals(expected.getUserId(i), actual.getUserId(i));
+            assertEquals(expected.getSystolic(i), actual.getSystolic(i), 0);
+            assertEquals(expected.getDiastolic(i), actual.getDiastolic(i), 0);
+            assertEquals(expected.getMeanArterialPressure(i), actual.getMeanArterialPressure(i), 0);
+            assertEquals(expected.getPulseRate(i), actual.getPulseRate(i), 0);
+            assertEquals(expected.getBattery(i), actual.getBattery(i));
+            assertEquals(expected.isIrregularPulse(i), actual.isIrregularPulse(i));
+        }
+
+    }
+
+    @Test
+    public void restoresAllColumns() {
+
+        final ReadingBatch batch = new ReadingBatch(64);
+
+        for (int i = 0; i < 20; i++) {
+            batch.add(new BloodPressureReading(i % 2 == 0 ? 255 : 0, i % 3 == 0 ? null : new Date(1500000000000L + i * 60000L),
+                    110 + i, 70 + i, 85 + i, i % 4 == 0 ? 0 : 60 + i, i % 5 == 0, i % 2 == 0 ? 0 : 200));
+        }
+
+        assertSameReadings(batch, parcel(batch));
+
+    }
+
+    @Test
+    public void restoresEmptyBatch() {
+        assertEquals(0, parcel(new ReadingBatch()).size());
+    }
+
+    @Test
+    public void restoredBatchGrows() {
+
+        final ReadingBatch batch = new ReadingBatch(1);
+        batch.add(new BloodPressureReading(1, new Date(1500000000000L), 120, 80, 93, 60, false, 90));
+
+        final ReadingBatch restored = parcel(batch);
+
+        for (int i = 0; i < 40; i++) {
+            restored.add(new BloodPressureReading(1, null, 130 + i, 85, 100, 0, false, 0));
+        }
+
+        assertEquals(41, restored.size());
+        assertEquals(120f, restored.getSystolic(0), 0);
+        assertEquals(1500000000L, restored.getTimestamp(0));
+        assertEquals(169f, restored.getSystolic(40), 0);
+
+    }
+
+}
@@ -15,80 +15,392 @@
  */
 package com.tangentlines.bpmonitor;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
-import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.tangentlines.bpmonitor.callbacks.ConnectionCallbacks;
 import com.tangentlines.bpmonitor.callbacks.PairingCallbacks;
+import com.tangentlines.bpmonitor.callbacks.Publisher;
 import com.tangentlines.bpmonitor.callbacks.SynchronizationCallbacks;
+import com.tangentlines.bpmonitor.callbacks.SynchronizationFinishedCallbacks;
+import com.tangentlines.bpmonitor.model.BloodPressureReading;
 import com.tangentlines.bpmonitor.model.DeviceInformation;
+import com.tangentlines.bpmonitor.model.ReadingBatch;
+import com.tangentlines.bpmonitor.model.SynchronizationResult;
+import com.tangentlines.bpmonitor.model.UserInformation;
+import com.tangentlines.bpmonitor.protocol.GenericProtocol;
 import com.tangentlines.bpmonitor.protocol.PairingProtocol;
 import com.tangentlines.bpmonitor.protocol.Protocol;
 import com.tangentlines.bpmonitor.protocol.ProtocolListener;
 import com.tangentlines.bpmonitor.protocol.SynchronizeProtocol;
 import com.tangentlines.bpmonitor.utils.BinaryUtils;
+import com.tangentlines.bpmonitor.utils.ByteBufferPool;
+import com.tangentlines.bpmonitor.utils.GattThread;
+import com.tangentlines.bpmonitor.utils.HandlerExecutor;
+import com.tangentlines.bpmonitor.utils.TimerWheel;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
 
 public class BPMonitor extends GenericLEDevice implements ProtocolListener {
 
     private static final String TAG = BPMonitor.class.getSimpleName();
 
-    private static final int TIMEOUT = 1000 * 15; // 10 seconds
-
     private DeviceInformation mDeviceInformation;
-    private DeviceState mCurrentDeviceState = DeviceState.DISCONNECTED;
+    private DeviceInformationCache mDeviceInformationCache;
+    private long mDeviceInformationMaxAge = DeviceInformationCache.DEFAULT_MAX_AGE;
+    private volatile DeviceState mCurrentDeviceState = DeviceState.DISCONNECTED;
 
     private ConnectionCallbacks mConnectionCallbacks;
 
-    private final Handler mNotifyHandler = new Handler();
-    private final Handler mTimeoutHandler = new Handler();
+    private final Executor mCallbackExecutor;
+
+    /* control frames are encoded into pooled buffers which the write requests reference until they are sent */
+    private final CommandEncoder mCommandEncoder = new CommandEncoder(new ByteBufferPool(CommandEncoder.MAX_FRAME_SIZE, 2));
+
+    private Deadlines mDeadlines = Deadlines.DEFAULT;
+    private final Object mDeadlineLock = new Object();
+    private TimerWheel.Timeout mDeadline;
+    private int mDeadlineGeneration = 0;
+
+    private volatile Protocol mProtocol;
+
+    /* a stream subscriber which falls behind by more than its buffer fails with onError() */
+    public static final int STREAM_OVERFLOW_FAIL = 0;
 
-    private Protocol mProtocol;
+    /* a stream subscriber which falls behind by more than its buffer loses the oldest unrequested items */
+    public static final int STREAM_OVERFLOW_DROP_OLDEST = 1;
+
+    /* unrequested items each subscriber may fall behind */
+    private static final int READING_BUFFER_SIZE = 256;
+    private static final int EVENT_BUFFER_SIZE = 32;
+
+    private final StreamPublisher<BloodPressureReading> mReadings;
+    private final StreamPublisher<DeviceState> mDeviceStates;
+    private final StreamPublisher<BPMonitorError> mErrors;
+
+    /* pending asynchronous operations */
+    private volatile BPMonitorFuture<BPMonitor> mConnectFuture;
+    private volatile BPMonitorFuture<?> mSessionFuture;
 
     protected BPMonitor(BluetoothDevice device) {
-        super(device);
+        this(device, GattThread.getLooper(), new HandlerExecutor(Looper.getMainLooper()));
+    }
+
+    /*
+     * The bluetooth stack runs on looper, the callbacks are delivered through callbackExecutor
+     */
+    protected BPMonitor(BluetoothDevice device, @NonNull Looper looper, @NonNull Executor callbackExecutor) {
+        super(device, looper);
+
+        mCallbackExecutor = callbackExecutor;
+        mReadings = new StreamPublisher<>(callbackExecutor, READING_BUFFER_SIZE);
+        mDeviceStates = new StreamPublisher<>(callbackExecutor, EVENT_BUFFER_SIZE);
+        mErrors = new StreamPublisher<>(callbackExecutor, EVENT_BUFFER_SIZE);
 
         mDeviceInformation = new DeviceInformation();
         mDeviceInformation.setMacAddress(device.getAddress());
 
+        declareCharacteristic(Constants.HANDLE_CONTROL, Constants.UUID_SERVICE_BLOOD_PRESSURE, Constants.UUID_CHARACTERISTIC_CONTROL, null, true);
+        declareCharacteristic(Constants.HANDLE_BLOOD_PRESSURE_DATA, Constants.UUID_SERVICE_BLOOD_PRESSURE, Constants.UUID_CHARACTERISTIC_BLOOD_PRESSURE_DATA, Constants.UUID_DESCRIPTOR_CLIENT_CHARACTERISTICS_CONFIGURATION, true);
+        declareCharacteristic(Constants.HANDLE_INDICATE_CHALLENGE, Constants.UUID_SERVICE_BLOOD_PRESSURE, Constants.UUID_CHARACTERISTIC_INDICATE_CHALLENGE, Constants.UUID_DESCRIPTOR_CLIENT_CHARACTERISTICS_CONFIGURATION, true);
+
+        declareCharacteristic(Constants.HANDLE_MANUFACTURER_STRING, Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_MANUFACTURER_STRING, null, false);
+        declareCharacteristic(Constants.HANDLE_MODEL_NUMBER_STRING, Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_MODEL_NUMBER_STRING, null, false);
+        declareCharacteristic(Constants.HANDLE_SOFTWARE_REVISION_STRING, Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_SOFTWARE_REVISION_STRING, null, false);
+        declareCharacteristic(Constants.HANDLE_HARDWARE_REVISION_STRING, Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_HARDWARE_REVISION_STRING, null, false);
+        declareCharacteristic(Constants.HANDLE_SYSTEM_FIRMWARE_NUMBER_STRING, Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_SYSTEM_FIRMWARE_NUMBER_STRING, null, false);
+        declareCharacteristic(Constants.HANDLE_SERIAL_NUMBER_STRING, Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_SERIAL_NUMBER_STRING, null, false);
+
     }
 
     public void sendControlSequence(byte cmd) {
-        sendControlSequence(cmd, new byte[0]);
+        sendControlSequence(mCommandEncoder.encode(cmd));
     }
 
     public void sendControlSequence(byte cmd, @NonNull byte[] data) {
+        sendControlSequence(mCommandEncoder.encode(cmd, data));
+    }
 
-        byte[] output = new byte[data.length + 1];
-        output[0] = cmd;
-        for (int i = 0; i < data.length; i++) {
-            output[i + 1] = data[i];
+    /*
+     * Writes the remaining bytes of the frame to the control characteristic, the frame must not be modified afterwards.
+     * Frames of the command encoder are handed back to its pool once they were sent, other buffers are left alone.
+     */
+    public void sendControlSequence(@NonNull ByteBuffer frame) {
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, String.format("sendControlSequence(%s)", BinaryUtils.bytesToHex(frame)));
         }
 
-        Log.d(TAG, String.format("sendControlSequence(%s)", BinaryUtils.bytesToHex(output)));
-        super.queueWriteCharacteristic(Constants.UUID_SERVICE_BLOOD_PRESSURE, Constants.UUID_CHARACTERISTIC_CONTROL, output);
+        final ByteBufferPool pool = mCommandEncoder.claim(frame) ? mCommandEncoder.getPool() : null;
+        super.queueWriteCharacteristic(Constants.HANDLE_CONTROL, frame, pool, PRIORITY_PROTOCOL);
 
     }
 
+    @NonNull
+    public CommandEncoder getCommandEncoder() {
+        return mCommandEncoder;
+    }
+
     /*
      * Initially connect to the bluetooth device, and
      * discover its GATT services
      */
-    public void connect(Context context) {
+    public void connect(final Context context) {
 
-        if (super.connectToGatt(context)) {
-            mCurrentDeviceState = DeviceState.CONNECTING;
-            mTimeoutHandler.postDelayed(mTimeoutRunnable, TIMEOUT);
+        if (mDeviceInformationCache == null && mDeviceInformationMaxAge > 0) {
+            mDeviceInformationCache = new DeviceInformationCache(context, mDeviceInformationMaxAge);
         }
 
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+
+                if (connectToGatt(context)) {
+                    setDeviceState(DeviceState.CONNECTING);
+
+                    /* a background connection waits until the device wakes up */
+                    if (!isAutoConnect()) {
+                        armDeadline(Deadlines.PHASE_CONNECT);
+                    }
+                }
+
+            }
+        });
+
     }
 
     public void disconnect() {
-        super.disconnectFromGatt();
+
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                disconnectFromGatt();
+                failPendingOperations(new CancellationException("device was disconnected"));
+            }
+        });
+
+    }
+
+    /*
+     * Connects like connect(), the future succeeds once the services were discovered
+     */
+    @NonNull
+    public BPMonitorFuture<BPMonitor> connectAsync(@NonNull Context context) {
+
+        final BPMonitorFuture<BPMonitor> future = newFuture();
+
+        if (isConnected()) {
+            future.complete(this);
+            return future;
+        }
+
+        replacePending(mConnectFuture);
+        mConnectFuture = future;
+
+        connect(context);
+
+        return future;
+
+    }
+
+    /*
+     * Pairs like startPairing(), the future succeeds with the device information holding password and broadcastId.
+     * The callbacks are still called, a user has to be selected once they were received.
+     */
+    @NonNull
+    public BPMonitorFuture<DeviceInformation> pairAsync(@NonNull final PairingCallbacks callbacks) {
+
+        final BPMonitorFuture<DeviceInformation> future = newSessionFuture();
+
+        startPairing(new PairingCallbacks() {
+
+            @Override
+            public void onUsersReceived(BPMonitor device, List<UserInformation> users) {
+                callbacks.onUsersReceived(device, users);
+            }
+
+            @Override
+            public void onFinished(BPMonitor device, byte[] password, byte[] broadcastId) {
+                callbacks.onFinished(device, password, broadcastId);
+                future.complete(device.getDeviceInformation());
+            }
+
+            @Override
+            public void onPairingFailed(BPMonitor device, BPMonitorError exception) {
+                callbacks.onPairingFailed(device, exception);
+                future.fail(exception);
+            }
+
+        });
+
+        return future;
+
+    }
+
+    @NonNull
+    public BPMonitorFuture<SynchronizationResult> synchronizeAsync(byte[] password, byte[] broadcastId) {
+        return synchronizeAsync(password, broadcastId, SynchronizationOptions.DEFAULT);
+    }
+
+    /*
+     * Synchronizes like startSynchronization(), the future succeeds with all readings once the transfer is finished
+     */
+    @NonNull
+    public BPMonitorFuture<SynchronizationResult> synchronizeAsync(byte[] password, byte[] broadcastId, @NonNull SynchronizationOptions options) {
+
+        final BPMonitorFuture<SynchronizationResult> future = newSessionFuture();
+        final ReadingBatch batch = new ReadingBatch(Math.max(0, options.getExpectedReadings()));
+
+        final SynchronizeProtocol protocol = new SynchronizeProtocol(this, password, broadcastId, options, new SynchronizationFinishedCallbacks() {
+
+            @Override
+            public void onSynchronizationStarted(BPMonitor device) {
+
+            }
+
+            @Override
+            public void onReadingReceived(BPMonitor device, BloodPressureReading reading) {
+                /* collected by the protocol */
+            }
+
+            @Override
+            public void onSynchronizationFinished(BPMonitor device, int readingCount, long duration) {
+
+                final SynchronizationResult result = new SynchronizationResult();
+                result.setBatch(batch);
+                result.setDuration(duration);
+
+                future.complete(result);
+
+            }
+
+            @Override
+            public void onSynchronizationFailed(BPMonitor device, BPMonitorError exception) {
+                future.fail(exception);
+            }
+
+        });
+
+        protocol.setReadingBatch(batch);
+        startProtocol(protocol);
+
+        return future;
+
+    }
+
+    /*
+     * Disconnects like disconnect(), the future succeeds once the link is released
+     */
+    @NonNull
+    public BPMonitorFuture<BPMonitor> disconnectAsync() {
+
+        final BPMonitorFuture<BPMonitor> future = new BPMonitorFuture<>();
+
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                disconnectFromGatt();
+                failPendingOperations(new CancellationException("device was disconnected"));
+                future.complete(BPMonitor.this);
+            }
+        });
+
+        return future;
+
+    }
+
+    /*
+     * A future which ends the session when it is cancelled
+     */
+    private <T> BPMonitorFuture<T> newFuture() {
+
+        final BPMonitorFuture<T> future = new BPMonitorFuture<>();
+        future.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                cancelSession(null);
+            }
+        });
+
+        return future;
+
+    }
+
+    private <T> BPMonitorFuture<T> newSessionFuture() {
+
+        final BPMonitorFuture<T> future = newFuture();
+
+        replacePending(mSessionFuture);
+        mSessionFuture = future;
+
+        return future;
+
+    }
+
+    private void replacePending(@Nullable BPMonitorFuture<?> future) {
+
+        if (future != null) {
+            future.fail(new BPMonitorError(BPMonitorError.TYPE_ILLEGAL_STATE, "another operation was started"));
+        }
+
+    }
+
+    private void failPendingOperations(@NonNull BPMonitorError error) {
+        failPendingOperations(new BPMonitorException(error));
+    }
+
+    private void failPendingOperations(@NonNull Throwable failure) {
+
+        final BPMonitorFuture<?> connectFuture = mConnectFuture;
+        if (connectFuture != null) {
+            connectFuture.fail(failure);
+        }
+
+        final BPMonitorFuture<?> sessionFuture = mSessionFuture;
+        if (sessionFuture != null) {
+            sessionFuture.fail(failure);
+        }
+
+    }
+
+    /*
+     * Drops the running protocol, its queued requests and timers and releases the gatt connection right away.
+     * The callbacks of the protocol are only told if a reason is given.
+     */
+    private void cancelSession(@Nullable final BPMonitorError reason) {
+
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+
+                final Protocol protocol = mProtocol;
+                mProtocol = null;
+
+                if (reason != null && protocol instanceof GenericProtocol) {
+                    ((GenericProtocol) protocol).abort(reason);
+                } else if (protocol != null) {
+                    protocol.cancel();
+                }
+
+                clearDeadline();
+                disconnectFromGatt();
+                setDeviceState(DeviceState.DISCONNECTED);
+
+                failPendingOperations(new CancellationException("session was cancelled"));
+
+            }
+        });
+
     }
 
     /*
@@ -96,11 +408,15 @@ public class BPMonitor extends GenericLEDevice implements ProtocolListener {
      * After pairing the broadcastId and password are returned to the user
      */
     public void startPairing(@NonNull PairingCallbacks callbacks) {
+        startProtocol(new PairingProtocol(this, callbacks));
+    }
 
-        mProtocol = new PairingProtocol(this, callbacks);
-        mProtocol.setProtocolListener(this);
-        mProtocol.start();
-
+    /*
+     * Pairs with the device and synchronizes its readings right away on the same connection,
+     * the pairing callbacks receive the users and credentials as usual before the synchronization starts
+     */
+    public void startOnboarding(@NonNull PairingCallbacks pairingCallbacks, @NonNull SynchronizationCallbacks synchronizationCallbacks) {
+        startProtocol(new PairingProtocol(this, pairingCallbacks, synchronizationCallbacks));
     }
 
     /*
@@ -109,34 +425,67 @@ public class BPMonitor extends GenericLEDevice implements ProtocolListener {
      * If the synchronization process is successfully, the device will return its blood pressure readings
      */
     public void startSynchronization(byte[] password, byte[] broadcastId, @NonNull SynchronizationCallbacks callbacks) {
+        startSynchronization(password, broadcastId, SynchronizationOptions.DEFAULT, callbacks);
+    }
 
-        mProtocol = new SynchronizeProtocol(this, password, broadcastId, callbacks);
-        mProtocol.setProtocolListener(this);
-        mProtocol.start();
+    /*
+     * Starts the synchronization process with the given options,
+     * e.g. a fast path which only reads the device information after the readings were requested
+     */
+    public void startSynchronization(byte[] password, byte[] broadcastId, @NonNull SynchronizationOptions options, @NonNull SynchronizationCallbacks callbacks) {
+        startProtocol(new SynchronizeProtocol(this, password, broadcastId, options, callbacks));
+    }
+
+    private void startProtocol(@NonNull final Protocol protocol) {
+
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+
+                mProtocol = protocol;
+                mProtocol.setProtocolListener(BPMonitor.this);
+                mProtocol.start();
+
+                tuneLinkForTransfer();
+
+            }
+        });
 
     }
 
     /*
      * Selects the user if the device is in pairing mode
      */
-    public void selectUser(int id, String name) {
+    public void selectUser(final int id, final String name) {
 
-        if (mProtocol != null && mProtocol instanceof PairingProtocol) {
-            ((PairingProtocol) mProtocol).selectUser(id, name);
-        } else {
-            Log.e(TAG, "not in pairing mode");
-        }
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+
+                if (mProtocol != null && mProtocol instanceof PairingProtocol) {
+                    ((PairingProtocol) mProtocol).selectUser(id, name);
+                } else {
+                    Log.e(TAG, "not in pairing mode");
+                }
+
+            }
+        });
 
     }
 
     @Override
     protected void onConnected() {
 
-        mCurrentDeviceState = DeviceState.CONNECTED;
-        mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+        setDeviceState(DeviceState.CONNECTED);
+        clearDeadline();
+
+        final BPMonitorFuture<BPMonitor> connectFuture = mConnectFuture;
+        if (connectFuture != null) {
+            connectFuture.complete(this);
+        }
 
         if (mConnectionCallbacks != null) {
-            mNotifyHandler.post(new Runnable() {
+            mCallbackExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     mConnectionCallbacks.onConnected(BPMonitor.this);
@@ -149,16 +498,26 @@ public class BPMonitor extends GenericLEDevice implements ProtocolListener {
     @Override
     protected void onDisconnected() {
 
+        final Protocol protocol = mProtocol;
+        final boolean expected = protocol == null || protocol.handleDisconnect();
+        final DeviceState previousState = mCurrentDeviceState;
+
         mProtocol = null;
-        mCurrentDeviceState = DeviceState.DISCONNECTED;
-        mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+        setDeviceState(isReconnectPending() ? DeviceState.CONNECTING : DeviceState.DISCONNECTED);
+        clearDeadline();
 
-        if (mCurrentDeviceState == DeviceState.PAIRING || mCurrentDeviceState == DeviceState.SYNCHRONIZING) {
+        if (!expected && (previousState == DeviceState.PAIRING || previousState == DeviceState.SYNCHRONIZING)) {
             fireError(new BPMonitorError(BPMonitorError.TYPE_UNEXPECTED_DISCONNECT, "device unexpected disconnected"));
         }
 
+        /* lost before the services were discovered */
+        final BPMonitorFuture<BPMonitor> connectFuture = mConnectFuture;
+        if (connectFuture != null) {
+            connectFuture.fail(new BPMonitorError(BPMonitorError.TYPE_UNEXPECTED_DISCONNECT, "device disconnected while connecting"));
+        }
+
         if (mConnectionCallbacks != null) {
-            mNotifyHandler.post(new Runnable() {
+            mCallbackExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     mConnectionCallbacks.onDisconnected(BPMonitor.this);
@@ -169,19 +528,19 @@ public class BPMonitor extends GenericLEDevice implements ProtocolListener {
     }
 
     @Override
-    protected void onCharacteristicRead(BluetoothGattCharacteristic characteristics) {
+    protected void onCharacteristicRead(BluetoothGattCharacteristic characteristic, @Nullable byte[] value) {
 
         if (mProtocol != null) {
-            mProtocol.handleCharacteristicRead(characteristics);
+            mProtocol.handleCharacteristicRead(characteristic, value);
         }
 
     }
 
     @Override
-    protected void onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+    protected void onCharacteristicChanged(BluetoothGattCharacteristic characteristic, @NonNull byte[] buffer, int length) {
 
         if (mProtocol != null) {
-            mProtocol.handleCharacteristicChanged(characteristic);
+            mProtocol.handleCharacteristicChanged(characteristic, buffer, length);
         }
 
     }
@@ -196,15 +555,17 @@ public class BPMonitor extends GenericLEDevice implements ProtocolListener {
     }
 
     @Override
-    protected void onError(final String msg) {
-        fireError(new BPMonitorError(BPMonitorError.TYPE_UNKNOWN, !TextUtils.isEmpty(msg) ? msg : "unknown error"));
+    protected void onError(int type, final String msg) {
+        fireError(new BPMonitorError(type, !TextUtils.isEmpty(msg) ? msg : "unknown error"));
     }
 
     private void fireError(@NonNull final BPMonitorError error) {
 
-        mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+        clearDeadline();
+        mErrors.publish(error);
+        failPendingOperations(error);
         if (mConnectionCallbacks != null) {
-            mNotifyHandler.post(new Runnable() {
+            mCallbackExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     mConnectionCallbacks.onConnectionFailed(BPMonitor.this, error);
@@ -214,10 +575,36 @@ public class BPMonitor extends GenericLEDevice implements ProtocolListener {
 
     }
 
+    @NonNull
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    @NonNull
+    public Deadlines getDeadlines() {
+        return mDeadlines;
+    }
+
+    void setDeadlines(@NonNull Deadlines deadlines) {
+        this.mDeadlines = deadlines;
+    }
+
     public DeviceInformation getDeviceInformation() {
         return mDeviceInformation;
     }
 
+    /*
+     * Cached device information profiles, null if caching is disabled
+     */
+    @Nullable
+    public DeviceInformationCache getDeviceInformationCache() {
+        return mDeviceInformationCache;
+    }
+
+    void setDeviceInformationMaxAge(long maxAge) {
+        this.mDeviceInformationMaxAge = maxAge;
+    }
+
     public DeviceState getDeviceState() {
         return mCurrentDeviceState;
     }
@@ -227,43 +614,239 @@ public class BPMonitor extends GenericLEDevice implements ProtocolListener {
     }
 
     public void setDeviceState(DeviceState deviceState) {
+
+        final DeviceState previous = mCurrentDeviceState;
         this.mCurrentDeviceState = deviceState;
+
+        if (previous != deviceState) {
+            mDeviceStates.publish(deviceState);
+        }
+
+    }
+
+    void setStreamOverflow(int overflow) {
+
+        if (overflow != STREAM_OVERFLOW_FAIL && overflow != STREAM_OVERFLOW_DROP_OLDEST) {
+            throw new IllegalArgumentException("unknown stream overflow policy " + overflow);
+        }
+
+        mReadings.setOverflow(overflow);
+        mDeviceStates.setOverflow(overflow);
+        mErrors.setOverflow(overflow);
+
+    }
+
+    /*
+     * Readings of all synchronizations, the callbacks are called as well.
+     * Each subscriber may fall behind by 256 unrequested readings, see Builder.setStreamOverflow() for what happens then.
+     */
+    @NonNull
+    public Publisher<BloodPressureReading> readings() {
+        return mReadings;
+    }
+
+    /*
+     * Every change of the device state, each subscriber may fall behind by 32 unrequested states
+     */
+    @NonNull
+    public Publisher<DeviceState> deviceStates() {
+        return mDeviceStates;
+    }
+
+    /*
+     * Connection and protocol errors, the stream itself doesn't fail on them. Each subscriber may fall behind by 32 unrequested errors.
+     */
+    @NonNull
+    public Publisher<BPMonitorError> errors() {
+        return mErrors;
+    }
+
+    /*
+     * Disconnects and completes the streams, subscribers receive onComplete() after their buffered items
+     */
+    public void release() {
+
+        disconnect();
+
+        mReadings.complete();
+        mDeviceStates.complete();
+        mErrors.complete();
+
     }
 
     @Override
     public void onProtocolStarted() {
-        mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
-        mTimeoutHandler.postDelayed(mTimeoutRunnable, TIMEOUT);
+        armDeadline(Deadlines.PHASE_AUTHENTICATION);
+    }
+
+    @Override
+    public void onProtocolPhase(int phase) {
+        armDeadline(phase);
     }
 
     @Override
     public void onProtocolFinished() {
-        mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+        clearDeadline();
+
+        /* pairing is done, the readings of a synchronization only start now */
+        if (mProtocol instanceof PairingProtocol) {
+            releaseLinkTuning();
+        }
+    }
+
+    @Override
+    public void onProtocolError(BPMonitorError error) {
+        clearDeadline();
+        releaseLinkTuning();
+        mErrors.publish(error);
+    }
+
+    @Override
+    public void onProtocolReading(BloodPressureReading reading) {
+        mReadings.publish(reading);
+    }
+
+    @Override
+    public void onProtocolHandover(Protocol next) {
+
+        /* the device disconnected meanwhile */
+        if (mProtocol == null) {
+            return;
+        }
+
+        mProtocol = next;
+        mProtocol.setProtocolListener(this);
+        mProtocol.start();
+
+        tuneLinkForTransfer();
+
     }
 
     @Override
-    public void onProtocolError() {
-        mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+    public void onTransferFinished(boolean disconnect) {
+
+        releaseLinkTuning();
+
+        /* queued device information reads are done first */
+        if (disconnect) {
+            disconnectWhenIdle();
+        }
+
     }
 
     public enum DeviceState {
         PAIRING, SYNCHRONIZING, DISCONNECTED, CONNECTING, CONNECTED;
     }
 
-    private final Runnable mTimeoutRunnable = new Runnable() {
+    @Override
+    protected void onLinkEstablished() {
+        armDeadline(Deadlines.PHASE_DISCOVERY);
+    }
+
+    /*
+     * Fails with a timeout unless the phase is completed or another phase started within its deadline
+     */
+    private void armDeadline(final int phase) {
+
+        final long deadline = mDeadlines.get(phase);
+
+        synchronized (mDeadlineLock) {
+
+            if (mDeadline != null) {
+                mDeadline.cancel();
+                mDeadline = null;
+            }
+
+            final int generation = ++mDeadlineGeneration;
+
+            if (deadline > 0) {
+                mDeadline = TimerWheel.getDefault().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDeadlineExpired(phase, generation);
+                    }
+                }, deadline);
+            }
+
+        }
+
+    }
+
+    private void clearDeadline() {
+
+        synchronized (mDeadlineLock) {
+
+            mDeadlineGeneration++;
+
+            if (mDeadline != null) {
+                mDeadline.cancel();
+                mDeadline = null;
+            }
 
-        @Override
-        public void run() {
-            fireError(new BPMonitorError(BPMonitorError.TYPE_TIMEOUT, "timeout"));
         }
 
-    };
+    }
+
+    /*
+     * Runs on the timer thread
+     */
+    private void onDeadlineExpired(final int phase, final int generation) {
+
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+
+                synchronized (mDeadlineLock) {
+
+                    /* the phase was completed on the looper while the timer fired */
+                    if (generation != mDeadlineGeneration) {
+                        return;
+                    }
+
+                    mDeadline = null;
+
+                }
+
+                Log.w(TAG, String.format("%s timed out after %d ms", Deadlines.getPhaseName(phase), mDeadlines.get(phase)));
+
+                final BPMonitorError error = new BPMonitorError(BPMonitorError.TYPE_TIMEOUT, Deadlines.getPhaseName(phase) + " timed out");
+
+                if (phase == Deadlines.PHASE_CONNECT || phase == Deadlines.PHASE_DISCOVERY || !(mProtocol instanceof GenericProtocol)) {
+
+                    /* no protocol is talking to the device yet, the connection failed */
+                    fireError(error);
+                    cancelSession(null);
+
+                } else {
+
+                    /* like any other protocol error only the callbacks of the protocol are told, the pending operations fail with the timeout */
+                    mErrors.publish(error);
+                    failPendingOperations(error);
+                    cancelSession(error);
+
+                }
+
+            }
+        });
+
+    }
 
     public static class Builder {
 
         private BluetoothDevice bleDevice;
+        private String macAddress;
+        private long scanRaceTimeout;
+        private Deadlines deadlines;
         private ConnectionCallbacks connectionCallbacks;
         private int connectionSpeed;
+        private boolean adaptivePacing;
+        private RetryPolicy retryPolicy;
+        private long deviceInformationMaxAge = DeviceInformationCache.DEFAULT_MAX_AGE;
+        private boolean linkTuning;
+        private boolean autoConnect;
+        private Looper looper;
+        private Executor callbackExecutor;
+        private int streamOverflow = STREAM_OVERFLOW_FAIL;
 
         public Builder() {
 
@@ -274,6 +857,31 @@ public class BPMonitor extends GenericLEDevice implements ProtocolListener {
             return this;
         }
 
+        /*
+         * Connects to a known device by its mac address, without discovering it first
+         */
+        public Builder withAddress(String macAddress) {
+            this.macAddress = macAddress;
+            return this;
+        }
+
+        /*
+         * Scans for the device for up to timeout ms while connecting and connects to the scanned device if it's found first.
+         * Helps with devices the phone hasn't seen since bluetooth was turned on, requires Android 5.0 and the location permission.
+         */
+        public Builder setScanRace(long timeout) {
+            this.scanRaceTimeout = timeout;
+            return this;
+        }
+
+        /*
+         * Maximum duration of the connection and protocol phases, Deadlines.DEFAULT if not set
+         */
+        public Builder setDeadlines(Deadlines deadlines) {
+            this.deadlines = deadlines;
+            return this;
+        }
+
         public Builder setConnectionCallbacks(ConnectionCallbacks connectionCallbacks) {
             this.connectionCallbacks = connectionCallbacks;
             return this;
@@ -284,23 +892,143 @@ public class BPMonitor extends GenericLEDevice implements ProtocolListener {
             return this;
         }
 
+        /*
+         * Lets the delay between requests adapt to the device and phone instead of using a static connection speed
+         */
+        public Builder setAdaptivePacing(boolean adaptivePacing) {
+            this.adaptivePacing = adaptivePacing;
+            return this;
+        }
+
+        /*
+         * Defines how often failed requests and connection attempts are repeated, RetryPolicy.DEFAULT if not set
+         */
+        public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /*
+         * Device information younger than maxAge is taken from the cache instead of being read from the device, 0 disables the cache
+         */
+        public Builder setDeviceInformationMaxAge(long maxAge) {
+            this.deviceInformationMaxAge = maxAge;
+            return this;
+        }
+
+        /*
+         * Requests high connection priority, a larger mtu and the 2M phy (where supported) during transfers,
+         * the negotiated values are available from BPMonitor.getLinkParameters()
+         */
+        public Builder setLinkTuning(boolean linkTuning) {
+            this.linkTuning = linkTuning;
+            return this;
+        }
+
+        /*
+         * Keeps a background connection to a known device pending, connect() then succeeds as soon as
+         * the device wakes up and reconnects after every disconnect until disconnect() is called
+         */
+        public Builder setAutoConnect(boolean autoConnect) {
+            this.autoConnect = autoConnect;
+            return this;
+        }
+
+        /*
+         * Runs the bluetooth stack of the device on the looper instead of the thread shared by all devices
+         */
+        public Builder setLooper(Looper looper) {
+            this.looper = looper;
+            return this;
+        }
+
+        /*
+         * Calls the callbacks on the looper, the main looper if neither a looper nor an executor is set
+         */
+        public Builder setCallbackLooper(Looper callbackLooper) {
+            this.callbackExecutor = new HandlerExecutor(callbackLooper);
+            return this;
+        }
+
+        /*
+         * Delivers the callbacks through the executor, DirectExecutor.INSTANCE calls them right away on the bluetooth thread
+         */
+        public Builder setCallbackExecutor(Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
+
+        /*
+         * What happens to a subscriber of readings(), deviceStates() or errors() which falls behind by more than its buffer:
+         * STREAM_OVERFLOW_FAIL (default) ends its subscription with onError(), STREAM_OVERFLOW_DROP_OLDEST discards the oldest
+         * unrequested items and keeps the subscription
+         */
+        public Builder setStreamOverflow(int streamOverflow) {
+            this.streamOverflow = streamOverflow;
+            return this;
+        }
+
+        BluetoothDevice getBluetoothDevice() {
+
+            if (bleDevice == null && macAddress != null) {
+
+                final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+                if (adapter == null) {
+                    throw new IllegalStateException("bluetooth is not available");
+                }
+
+                if (!BluetoothAdapter.checkBluetoothAddress(macAddress)) {
+                    throw new IllegalArgumentException("withAddress() must be called with a valid mac address");
+                }
+
+                bleDevice = adapter.getRemoteDevice(macAddress);
+
+            }
+
+            return bleDevice;
+
+        }
+
+        ConnectionCallbacks getConnectionCallbacks() {
+            return connectionCallbacks;
+        }
+
         public BPMonitor create() {
 
-            if (bleDevice == null) {
-                throw new IllegalArgumentException("with() must be called with a valid bluetooth le device");
+            if (getBluetoothDevice() == null) {
+                throw new IllegalArgumentException("with() or withAddress() must be called with a valid bluetooth le device");
             }
 
             if (connectionCallbacks == null) {
                 throw new IllegalArgumentException("connection callbacks has to be set");
             }
 
-            BPMonitor device = new BPMonitor(bleDevice);
+            BPMonitor device = new BPMonitor(bleDevice,
+                    looper != null ? looper : GattThread.getLooper(),
+                    callbackExecutor != null ? callbackExecutor : new HandlerExecutor(Looper.getMainLooper()));
             device.setConnectionCallbacks(connectionCallbacks);
 
             if (connectionSpeed != 0) {
                 device.setConnectionSpeed(connectionSpeed);
             }
 
+            device.setAdaptivePacing(adaptivePacing);
+
+            if (retryPolicy != null) {
+                device.setRetryPolicy(retryPolicy);
+            }
+
+            device.setDeviceInformationMaxAge(deviceInformationMaxAge);
+            device.setLinkTuning(linkTuning);
+            device.setAutoConnect(autoConnect);
+            device.setScanRace(scanRaceTimeout);
+            device.setStreamOverflow(streamOverflow);
+
+            if (deadlines != null) {
+                device.setDeadlines(deadlines);
+            }
+
             return device;
 
         }
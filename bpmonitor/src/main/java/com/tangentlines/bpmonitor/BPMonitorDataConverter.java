@@ -15,106 +15,57 @@
  */
 package com.tangentlines.bpmonitor;
 
+import com.tangentlines.bpmonitor.model.BloodPressureFrame;
 import com.tangentlines.bpmonitor.model.BloodPressureReading;
 import com.tangentlines.bpmonitor.model.UserInformation;
 import com.tangentlines.bpmonitor.utils.BinaryUtils;
 
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.TimeZone;
+import java.nio.ByteBuffer;
 
 public class BPMonitorDataConverter {
 
+    /*
+     * Returns null if the frame is malformed, BloodPressureFrameDecoder decodes without allocating
+     */
     public static BloodPressureReading bytesToBloodPressureData(byte[] paramArrayOfByte) {
 
-        try {
-
-            int battery = 0;
-            Date date = null;
-            boolean isIrregularPulseDetectionFlag = false;
-            float pulseRate = 0.0f;
-            int userId = 0;
-
-            int statusByte = paramArrayOfByte[0];
-            int index = 7;
-
-            float systolic = BinaryUtils.doubleByteToFloat(Arrays.copyOfRange(paramArrayOfByte, 1, 3));
-            float diastolic = BinaryUtils.doubleByteToFloat(Arrays.copyOfRange(paramArrayOfByte, 3, 5));
-            float meanArterialPressure = BinaryUtils.doubleByteToFloat(Arrays.copyOfRange(paramArrayOfByte, 5, 7));
-
-            if ((byte) (statusByte & 0x2) == 2) {
-                index = 11;
-                date = (BinaryUtils.toDate(Arrays.copyOfRange(paramArrayOfByte, 7, 11)));
-            }
-
-            if ((byte) (statusByte & 0x4) == 4) {
-                pulseRate = (BinaryUtils.doubleByteToFloat(Arrays.copyOfRange(paramArrayOfByte, index, index + 2)));
-                index += 2;
-            }
-
-            if ((byte) (statusByte & 0x8) == 8) {
-                userId = (paramArrayOfByte[index]);
-                index += 1;
-            }
-
-            if ((byte) (statusByte & 0x10) == 16) {
-                int options = BinaryUtils.getUnsignedShort(new byte[]{paramArrayOfByte[index], paramArrayOfByte[(index + 1)]});
-
-                if ((options & 0x4) == 0x4) {
-                    isIrregularPulseDetectionFlag = true;
-                } else {
-                    isIrregularPulseDetectionFlag = false;
-                }
-
-            }
-
-            index += 2;
-            if ((byte) (statusByte & 0x20) == 1) {
-                battery = (paramArrayOfByte[index]);
-            }
+        if (paramArrayOfByte == null) {
+            return null;
+        }
 
-            return new BloodPressureReading(userId, date, systolic, diastolic, meanArterialPressure, pulseRate, isIrregularPulseDetectionFlag, battery);
+        final BloodPressureFrame frame = new BloodPressureFrame();
 
-        } catch (Exception e) {
+        if (BloodPressureFrameDecoder.decode(paramArrayOfByte, 0, paramArrayOfByte.length, frame) != BloodPressureFrameDecoder.RESULT_OK) {
             return null;
         }
 
+        return frame.toReading();
+
     }
 
     public static UserInformation bytesAsUserInformation(byte[] input) {
 
-        if (input == null || input.length < 2) {
+        if (input == null) {
             return null;
         }
 
-        return new UserInformation(input[0], new String(Arrays.copyOfRange(input, 1, input.length)).trim());
+        final UserInformation userInformation = new UserInformation();
+        return UserRecordCodec.decode(input, 0, input.length, userInformation) == FrameCodecs.RESULT_OK ? userInformation : null;
 
     }
 
     public static byte[] userInformationAsBytes(UserInformation userInformation) {
 
-        byte[] output = new byte[17];
-        byte[] bytesName = String.format("%1$-16s", userInformation.getName().substring(0, Math.min(16, userInformation.getName().length()))).getBytes();
+        final ByteBuffer output = ByteBuffer.allocate(UserRecordCodec.MAX_LENGTH);
+        UserRecordCodec.encode(userInformation, output);
 
-        output[0] = (byte) userInformation.getId();
-        System.arraycopy(bytesName, 0, output, 1, bytesName.length);
-
-        return output;
+        return output.array();
 
     }
 
     public static byte[] currentDateTimeAsBytes() {
 
-        Calendar startCalendar = new GregorianCalendar();
-        startCalendar.setTimeZone(TimeZone.getTimeZone("UTC"));
-        startCalendar.set(2010, 1, 1);
-
-        Calendar nowCalendar = new GregorianCalendar();
-        nowCalendar.setTimeZone(TimeZone.getTimeZone("UTC"));
-
-        long secondsSince = ((nowCalendar.getTime().getTime() - startCalendar.getTime().getTime()) / 1000L);
+        long secondsSince = (System.currentTimeMillis() - Constants.DEVICE_EPOCH) / 1000L;
         return BinaryUtils.longToBytes(secondsSince);
 
     }
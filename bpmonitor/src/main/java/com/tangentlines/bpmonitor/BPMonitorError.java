@@ -25,6 +25,8 @@ public class BPMonitorError {
     public static final int TYPE_ILLEGAL_STATE = 0x4;
     public static final int TYPE_ILLEGAL_ARGUMENT = 0x5;
     public static final int TYPE_UNEXPECTED_DISCONNECT = 0x6;
+    public static final int TYPE_READ_ERROR = 0x7;
+    public static final int TYPE_CONNECTION_ERROR = 0x8;
 
     private int type;
     private String message;
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.support.annotation.NonNull;
+
+/*
+ * Failure of a BPMonitorFuture, carries the error the callbacks would have received
+ */
+public class BPMonitorException extends Exception {
+
+    private final BPMonitorError error;
+
+    public BPMonitorException(@NonNull BPMonitorError error) {
+        super(error.toString());
+        this.error = error;
+    }
+
+    @NonNull
+    public BPMonitorError getError() {
+        return error;
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.tangentlines.bpmonitor.utils.DirectExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Result of an asynchronous operation of a BPMonitor.
+ * Cancelling an operation which is still running ends the session of the device right away:
+ * queued requests and timers are dropped and the gatt connection is released.
+ */
+public class BPMonitorFuture<T> implements Future<T> {
+
+    public interface Callback<T> {
+
+        void onSuccess(T result);
+
+        /*
+         * failure is a BPMonitorException, or a CancellationException if the operation was cancelled
+         */
+        void onFailure(@NonNull Throwable failure);
+
+    }
+
+    /*
+     * Starts the next operation with the result of the previous one
+     */
+    public interface Continuation<T, R> {
+
+        @NonNull
+        BPMonitorFuture<R> then(T result);
+
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final Object mLock = new Object();
+    private final List<Callback<? super T>> mCallbacks = new ArrayList<>();
+    private final List<Executor> mCallbackExecutors = new ArrayList<>();
+
+    private int mState = PENDING;
+    private T mResult;
+    private Throwable mFailure;
+    private Runnable mCancelAction;
+
+    BPMonitorFuture() {
+    }
+
+    /*
+     * Runs when the future is cancelled while pending
+     */
+    void setCancelAction(@Nullable Runnable cancelAction) {
+
+        synchronized (mLock) {
+            mCancelAction = cancelAction;
+        }
+
+    }
+
+    boolean complete(T result) {
+        return finish(SUCCEEDED, result, null);
+    }
+
+    boolean fail(@NonNull BPMonitorError error) {
+        return finish(FAILED, null, new BPMonitorException(error));
+    }
+
+    boolean fail(@NonNull Throwable failure) {
+        return finish(FAILED, null, failure);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+
+        final Runnable cancelAction;
+
+        synchronized (mLock) {
+            cancelAction = mState == PENDING ? mCancelAction : null;
+        }
+
+        if (!finish(CANCELLED, null, new CancellationException("operation was cancelled"))) {
+            return false;
+        }
+
+        if (cancelAction != null) {
+            cancelAction.run();
+        }
+
+        return true;
+
+    }
+
+    private boolean finish(int state, T result, Throwable failure) {
+
+        final List<Callback<? super T>> callbacks;
+        final List<Executor> executors;
+
+        synchronized (mLock) {
+
+            if (mState != PENDING) {
+                return false;
+            }
+
+            mState = state;
+            mResult = result;
+            mFailure = failure;
+            mCancelAction = null;
+
+            callbacks = new ArrayList<>(mCallbacks);
+            executors = new ArrayList<>(mCallbackExecutors);
+            mCallbacks.clear();
+            mCallbackExecutors.clear();
+
+            mLock.notifyAll();
+
+        }
+
+        for (int i = 0; i < callbacks.size(); i++) {
+            dispatch(callbacks.get(i), executors.get(i));
+        }
+
+        return true;
+
+    }
+
+    /*
+     * Calls the callback on the thread which completes the operation, right away if it is already done
+     */
+    public void addCallback(@NonNull Callback<? super T> callback) {
+        addCallback(callback, DirectExecutor.INSTANCE);
+    }
+
+    public void addCallback(@NonNull Callback<? super T> callback, @NonNull Executor executor) {
+
+        synchronized (mLock) {
+
+            if (mState == PENDING) {
+                mCallbacks.add(callback);
+                mCallbackExecutors.add(executor);
+                return;
+            }
+
+        }
+
+        dispatch(callback, executor);
+
+    }
+
+    private void dispatch(@NonNull final Callback<? super T> callback, @NonNull Executor executor) {
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                final int state;
+                final T result;
+                final Throwable failure;
+
+                synchronized (mLock) {
+                    state = mState;
+                    result = mResult;
+                    failure = mFailure;
+                }
+
+                if (state == SUCCEEDED) {
+                    callback.onSuccess(result);
+                } else {
+                    callback.onFailure(failure);
+                }
+
+            }
+        });
+
+    }
+
+    /*
+     * Chains the next operation, e.g. connect -> synchronize -> disconnect.
+     * The returned future fails if any step fails, cancelling it cancels the step which is currently running.
+     */
+    @NonNull
+    public <R> BPMonitorFuture<R> then(@NonNull final Continuation<? super T, R> continuation) {
+
+        final BPMonitorFuture<R> chained = new BPMonitorFuture<>();
+        chained.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                cancel(true);
+            }
+        });
+
+        addCallback(new Callback<T>() {
+
+            @Override
+            public void onSuccess(T result) {
+
+                final BPMonitorFuture<R> next;
+
+                try {
+                    next = continuation.then(result);
+                } catch (RuntimeException e) {
+                    chained.fail(e);
+                    return;
+                }
+
+                chained.setCancelAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        next.cancel(true);
+                    }
+                });
+
+                /* cancelled while the continuation started the next step */
+                if (chained.isCancelled()) {
+                    next.cancel(true);
+                    return;
+                }
+
+                next.addCallback(new Callback<R>() {
+
+                    @Override
+                    public void onSuccess(R result) {
+                        chained.complete(result);
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Throwable failure) {
+                        chained.fail(failure);
+                    }
+
+                });
+
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable failure) {
+                chained.fail(failure);
+            }
+
+        });
+
+        return chained;
+
+    }
+
+    @Override
+    public boolean isCancelled() {
+
+        synchronized (mLock) {
+            return mState == CANCELLED;
+        }
+
+    }
+
+    @Override
+    public boolean isDone() {
+
+        synchronized (mLock) {
+            return mState != PENDING;
+        }
+
+    }
+
+    /*
+     * Blocks until the operation is done, must not be called on the looper of the device or the callback thread
+     */
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+
+        synchronized (mLock) {
+
+            while (mState == PENDING) {
+                mLock.wait();
+            }
+
+            return result();
+
+        }
+
+    }
+
+    @Override
+    public T get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (mLock) {
+
+            while (mState == PENDING) {
+
+                final long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+
+            }
+
+            return result();
+
+        }
+
+    }
+
+    /*
+     * Called with the lock held once the future is done
+     */
+    private T result() throws ExecutionException {
+
+        switch (mState) {
+
+            case SUCCEEDED:
+                return mResult;
+
+            case CANCELLED:
+                throw (CancellationException) mFailure;
+
+            default:
+                throw new ExecutionException(mFailure);
+
+        }
+
+    }
+
+}
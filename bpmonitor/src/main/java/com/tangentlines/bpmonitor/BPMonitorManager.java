@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.tangentlines.bpmonitor.model.RadioStatistics;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Serves several monitors from one phone or hub.
+ * Limits the number of concurrent gatt connections, further connect() calls wait until a connection is closed.
+ * Requests of all connected monitors share the radio: only a limited number is in flight at once,
+ * and waiting monitors get their turn round robin so a long transfer can't starve the others.
+ * Monitors are kept per mac address and reused, including their queue and connection settings.
+ */
+public class BPMonitorManager {
+
+    private static final String TAG = BPMonitorManager.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 1;
+
+    private final Context mContext;
+    private final int mMaxConnections;
+    private final int mMaxRequestsInFlight;
+
+    private final Object mLock = new Object();
+
+    private final Map<String, BPMonitor> mMonitors = new LinkedHashMap<>();
+    private final List<BPMonitor> mConnections = new ArrayList<>();
+    private final LinkedList<BPMonitor> mWaitingConnections = new LinkedList<>();
+
+    private final Set<GenericLEDevice> mRequestSlots = new HashSet<>();
+    private final LinkedList<GenericLEDevice> mWaitingRequests = new LinkedList<>();
+
+    private long mRequests = 0;
+    private long mBytesSent = 0;
+    private long mBytesReceived = 0;
+    private long mStatisticsStart = SystemClock.elapsedRealtime();
+
+    private final RadioScheduler mScheduler = new Scheduler();
+
+    private BPMonitorManager(@NonNull Context context, int maxConnections, int maxRequestsInFlight) {
+        this.mContext = context.getApplicationContext();
+        this.mMaxConnections = maxConnections;
+        this.mMaxRequestsInFlight = maxRequestsInFlight;
+    }
+
+    /*
+     * Returns the monitor already managed for the device of the builder, or creates it.
+     * The connection callbacks of an existing monitor are replaced by the ones of the builder.
+     */
+    @NonNull
+    public BPMonitor obtain(@NonNull BPMonitor.Builder builder) {
+
+        if (builder.getBluetoothDevice() == null) {
+            throw new IllegalArgumentException("with() must be called with a valid bluetooth le device");
+        }
+
+        final String mac = builder.getBluetoothDevice().getAddress();
+
+        synchronized (mLock) {
+
+            BPMonitor monitor = mMonitors.get(mac);
+
+            if (monitor == null) {
+
+                monitor = builder.create();
+                monitor.setRadioScheduler(mScheduler);
+                mMonitors.put(mac, monitor);
+
+            } else if (builder.getConnectionCallbacks() != null) {
+                monitor.setConnectionCallbacks(builder.getConnectionCallbacks());
+            }
+
+            return monitor;
+
+        }
+
+    }
+
+    @Nullable
+    public BPMonitor getMonitor(@NonNull String macAddress) {
+
+        synchronized (mLock) {
+            return mMonitors.get(macAddress);
+        }
+
+    }
+
+    @NonNull
+    public List<BPMonitor> getMonitors() {
+
+        synchronized (mLock) {
+            return new ArrayList<>(mMonitors.values());
+        }
+
+    }
+
+    /*
+     * Connects the monitor as soon as a connection slot is free
+     */
+    public void connect(@NonNull BPMonitor monitor) {
+
+        synchronized (mLock) {
+
+            if (mConnections.contains(monitor) || mWaitingConnections.contains(monitor)) {
+                return;
+            }
+
+            if (mConnections.size() >= mMaxConnections) {
+                Log.d(TAG, "connection limit reached, waiting for a free slot");
+                mWaitingConnections.add(monitor);
+                return;
+            }
+
+            mConnections.add(monitor);
+
+        }
+
+        monitor.connect(mContext);
+
+    }
+
+    /*
+     * Disconnects the monitor or removes it from the line of waiting connections.
+     * The link is released on the looper of the monitor, which also hands the connection slot back.
+     */
+    public void disconnect(@NonNull BPMonitor monitor) {
+
+        synchronized (mLock) {
+
+            if (mWaitingConnections.remove(monitor)) {
+                return;
+            }
+
+        }
+
+        monitor.disconnect();
+
+    }
+
+    public void disconnectAll() {
+
+        synchronized (mLock) {
+            mWaitingConnections.clear();
+        }
+
+        for (BPMonitor monitor : getMonitors()) {
+            disconnect(monitor);
+        }
+
+    }
+
+    /*
+     * Disconnects the monitor and stops managing it
+     */
+    public void release(@NonNull final BPMonitor monitor) {
+
+        disconnect(monitor);
+        monitor.release();
+
+        /* queued behind the disconnect, so the slot is handed back before the monitor leaves the scheduler */
+        monitor.runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                monitor.setRadioScheduler(null);
+            }
+        });
+
+        synchronized (mLock) {
+            mMonitors.remove(monitor.getDeviceInformation().getMacAddress());
+        }
+
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public int getMaxRequestsInFlight() {
+        return mMaxRequestsInFlight;
+    }
+
+    @NonNull
+    public RadioStatistics getStatistics() {
+
+        final RadioStatistics statistics = new RadioStatistics();
+
+        synchronized (mLock) {
+            statistics.setConnections(mConnections.size());
+            statistics.setWaitingConnections(mWaitingConnections.size());
+            statistics.setRequests(mRequests);
+            statistics.setBytesSent(mBytesSent);
+            statistics.setBytesReceived(mBytesReceived);
+            statistics.setDuration(SystemClock.elapsedRealtime() - mStatisticsStart);
+        }
+
+        return statistics;
+
+    }
+
+    public void resetStatistics() {
+
+        synchronized (mLock) {
+            mRequests = 0;
+            mBytesSent = 0;
+            mBytesReceived = 0;
+            mStatisticsStart = SystemClock.elapsedRealtime();
+        }
+
+    }
+
+    /*
+     * Kept private, so the scheduling hooks don't become part of the public api
+     */
+    private class Scheduler implements RadioScheduler {
+
+        @Override
+        public boolean acquireRequestSlot(@NonNull GenericLEDevice device) {
+
+            synchronized (mLock) {
+
+                if (mRequestSlots.contains(device)) {
+                    return true;
+                }
+
+                /* devices already waiting go first */
+                if (mWaitingRequests.isEmpty() && mRequestSlots.size() < mMaxRequestsInFlight) {
+                    mRequestSlots.add(device);
+                    return true;
+                }
+
+                if (!mWaitingRequests.contains(device)) {
+                    mWaitingRequests.add(device);
+                }
+
+                return false;
+
+            }
+
+        }
+
+        @Override
+        public void releaseRequestSlot(@NonNull GenericLEDevice device) {
+
+            final List<GenericLEDevice> granted = new ArrayList<>();
+
+            synchronized (mLock) {
+
+                mWaitingRequests.remove(device);
+
+                if (mRequestSlots.remove(device)) {
+                    mRequests++;
+                }
+
+                while (mRequestSlots.size() < mMaxRequestsInFlight && !mWaitingRequests.isEmpty()) {
+                    final GenericLEDevice next = mWaitingRequests.poll();
+                    mRequestSlots.add(next);
+                    granted.add(next);
+                }
+
+            }
+
+            for (GenericLEDevice next : granted) {
+                next.onRequestSlotGranted();
+            }
+
+        }
+
+        @Override
+        public void onBytesTransferred(@NonNull GenericLEDevice device, int sent, int received) {
+
+            synchronized (mLock) {
+                mBytesSent += sent;
+                mBytesReceived += received;
+            }
+
+        }
+
+        @Override
+        public void onConnectionClosed(@NonNull GenericLEDevice device) {
+
+            final List<BPMonitor> next = new ArrayList<>();
+
+            synchronized (mLock) {
+
+                mConnections.remove(device);
+
+                while (mConnections.size() < mMaxConnections && !mWaitingConnections.isEmpty()) {
+                    final BPMonitor monitor = mWaitingConnections.poll();
+                    mConnections.add(monitor);
+                    next.add(monitor);
+                }
+
+            }
+
+            for (BPMonitor monitor : next) {
+                monitor.connect(mContext);
+            }
+
+        }
+
+    }
+
+    public static class Builder {
+
+        private Context context;
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private int maxRequestsInFlight = DEFAULT_MAX_REQUESTS_IN_FLIGHT;
+
+        public Builder() {
+
+        }
+
+        public Builder with(Context context) {
+            this.context = context;
+            return this;
+        }
+
+        /*
+         * Number of monitors connected at the same time, most phones handle 4 to 7 le connections
+         */
+        public Builder setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /*
+         * Number of gatt requests of all monitors in flight at the same time, 1 serializes all requests
+         */
+        public Builder setMaxRequestsInFlight(int maxRequestsInFlight) {
+            this.maxRequestsInFlight = maxRequestsInFlight;
+            return this;
+        }
+
+        public BPMonitorManager create() {
+
+            if (context == null) {
+                throw new IllegalArgumentException("with() must be called with a valid context");
+            }
+
+            if (maxConnections < 1 || maxRequestsInFlight < 1) {
+                throw new IllegalArgumentException("at least one connection and request has to be allowed");
+            }
+
+            return new BPMonitorManager(context, maxConnections, maxRequestsInFlight);
+
+        }
+
+    }
+
+}
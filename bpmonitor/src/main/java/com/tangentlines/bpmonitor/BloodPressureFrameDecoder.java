@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.support.annotation.NonNull;
+
+import com.tangentlines.bpmonitor.model.BloodPressureFrame;
+import com.tangentlines.bpmonitor.model.ReadingBatch;
+
+/*
+ * Decodes blood pressure measurement frames in place, without allocating anything.
+ * Layout: flags, systolic, diastolic, mean arterial pressure (SFLOAT each), followed by the optional fields of the flags
+ * in this order: timestamp (4 bytes), pulse rate (SFLOAT), user id (1 byte), measurement status (2 bytes), battery (1 byte).
+ * The layout is declared in src/main/schema/blood_pressure_measurement.frame, BloodPressureMeasurementCodec is generated from it.
+ */
+public final class BloodPressureFrameDecoder {
+
+    /* flags of the first byte */
+    public static final int FLAG_TIMESTAMP = BloodPressureMeasurementCodec.FLAG_TIMESTAMP;
+    public static final int FLAG_PULSE_RATE = BloodPressureMeasurementCodec.FLAG_PULSE_RATE;
+    public static final int FLAG_USER_ID = BloodPressureMeasurementCodec.FLAG_USER_ID;
+    public static final int FLAG_MEASUREMENT_STATUS = BloodPressureMeasurementCodec.FLAG_MEASUREMENT_STATUS;
+    public static final int FLAG_BATTERY = BloodPressureMeasurementCodec.FLAG_BATTERY;
+
+    /* measurement status bits */
+    public static final int STATUS_IRREGULAR_PULSE = 0x4;
+
+    /* results of decode() */
+    public static final int RESULT_OK = FrameCodecs.RESULT_OK;
+    public static final int RESULT_EMPTY = FrameCodecs.RESULT_EMPTY;
+    public static final int RESULT_TRUNCATED = FrameCodecs.RESULT_TRUNCATED;
+
+    private BloodPressureFrameDecoder() {
+    }
+
+    /*
+     * Decodes length bytes of buffer from offset into frame, returns RESULT_OK or the reason the frame is malformed.
+     * Bytes after the last field of the flags are ignored.
+     */
+    public static int decode(@NonNull byte[] buffer, int offset, int length, @NonNull BloodPressureFrame frame) {
+
+        frame.clear();
+        return BloodPressureMeasurementCodec.decode(buffer, offset, length, frame);
+
+    }
+
+    /*
+     * Decodes like decode() and appends the reading to the batch if the frame is well formed, frame is only used as scratch
+     */
+    public static int decode(@NonNull byte[] buffer, int offset, int length, @NonNull BloodPressureFrame frame, @NonNull ReadingBatch batch) {
+
+        final int result = decode(buffer, offset, length, frame);
+
+        if (result == RESULT_OK) {
+            batch.add(frame);
+        }
+
+        return result;
+
+    }
+
+    /*
+     * Number of bytes a frame with the flags needs
+     */
+    public static int getLength(int flags) {
+        return BloodPressureMeasurementCodec.getLength(flags);
+    }
+
+    public static String getResultName(int result) {
+        return FrameCodecs.getResultName(result);
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.support.annotation.NonNull;
+
+import com.tangentlines.bpmonitor.model.UserInformation;
+import com.tangentlines.bpmonitor.utils.BinaryUtils;
+import com.tangentlines.bpmonitor.utils.ByteBufferPool;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/*
+ * Encodes the frames written to the control characteristic: the command byte followed by its payload.
+ * The put methods write at the position of a caller supplied buffer, the encode methods return a flipped buffer of
+ * the pool which is handed back once the write request is done. Only frames claim() recognizes as its own go back to
+ * the pool, a buffer wrapping a caller array never does. Names are written as US-ASCII, other characters become '?'.
+ */
+public class CommandEncoder {
+
+    public static final Charset CHARSET = BinaryUtils.ASCII;
+
+    /* maximum payload of a write without a negotiated mtu */
+    public static final int MAX_FRAME_SIZE = 20;
+
+    public static final int NAME_LENGTH = 16;
+
+    public static final int TIME_LENGTH = 1 + 4;
+    public static final int USER_INFORMATION_LENGTH = 1 + UserRecordCodec.MAX_LENGTH;
+    public static final int SELECT_USER_LENGTH = 1 + 14;
+
+    /* frames encoded but not sent yet, the oldest is forgotten (and left to the gc) when more are outstanding */
+    private static final int MAX_ISSUED = 8;
+
+    private final ByteBufferPool mPool;
+
+    private final ByteBuffer[] mIssued = new ByteBuffer[MAX_ISSUED];
+    private int mIssuedCount;
+
+    public CommandEncoder(@NonNull ByteBufferPool pool) {
+        this.mPool = pool;
+    }
+
+    @NonNull
+    public ByteBufferPool getPool() {
+        return mPool;
+    }
+
+    @NonNull
+    public ByteBuffer encode(byte cmd) {
+
+        final ByteBuffer out = mPool.acquire(1);
+        out.put(cmd);
+        return issue(out);
+
+    }
+
+    @NonNull
+    public ByteBuffer encode(byte cmd, @NonNull byte[] data) {
+
+        final ByteBuffer out = mPool.acquire(1 + data.length);
+        put(out, cmd, data);
+        return issue(out);
+
+    }
+
+    @NonNull
+    public ByteBuffer encodeTime(long timeMillis) {
+
+        final ByteBuffer out = mPool.acquire(TIME_LENGTH);
+        putTime(out, timeMillis);
+        return issue(out);
+
+    }
+
+    @NonNull
+    public ByteBuffer encodeUserInformation(@NonNull UserInformation userInformation) {
+
+        final ByteBuffer out = mPool.acquire(USER_INFORMATION_LENGTH);
+        putUserInformation(out, userInformation);
+        return issue(out);
+
+    }
+
+    @NonNull
+    public ByteBuffer encodeSelectUser(int userId) {
+
+        final ByteBuffer out = mPool.acquire(SELECT_USER_LENGTH);
+        putSelectUser(out, userId);
+        return issue(out);
+
+    }
+
+    @NonNull
+    public ByteBuffer encodeChallengeResponse(@NonNull byte[] challenge, @NonNull byte[] salt) {
+
+        final ByteBuffer out = mPool.acquire(1 + challenge.length);
+        putChallengeResponse(out, challenge, salt);
+        return issue(out);
+
+    }
+
+    /*
+     * Returns true if the frame was returned by an encode method and not claimed or released yet.
+     * The caller takes over handing it back to getPool().
+     */
+    public synchronized boolean claim(@NonNull ByteBuffer frame) {
+
+        for (int i = 0; i < mIssuedCount; i++) {
+
+            /* identity, ByteBuffer.equals() compares the content */
+            if (mIssued[i] == frame) {
+                System.arraycopy(mIssued, i + 1, mIssued, i, mIssuedCount - i - 1);
+                mIssued[--mIssuedCount] = null;
+                return true;
+            }
+
+        }
+
+        return false;
+
+    }
+
+    /*
+     * Hands a buffer which was encoded but not sent back to the pool
+     */
+    public void release(@NonNull ByteBuffer buffer) {
+
+        if (claim(buffer)) {
+            mPool.release(buffer);
+        }
+
+    }
+
+    @NonNull
+    private synchronized ByteBuffer issue(@NonNull ByteBuffer out) {
+
+        out.flip();
+
+        if (mIssuedCount == MAX_ISSUED) {
+            System.arraycopy(mIssued, 1, mIssued, 0, MAX_ISSUED - 1);
+            mIssuedCount--;
+        }
+
+        mIssued[mIssuedCount++] = out;
+        return out;
+
+    }
+
+    public static void put(@NonNull ByteBuffer out, byte cmd, @NonNull byte[] data) {
+        out.put(cmd);
+        out.put(data);
+    }
+
+    /*
+     * Seconds since the device epoch as unsigned 32 bit little endian
+     */
+    public static void putTime(@NonNull ByteBuffer out, long timeMillis) {
+
+        out.put(Constants.CMD_SEND_TIME);
+        BinaryUtils.putTimestamp(out, timeMillis);
+
+    }
+
+    /*
+     * User record: id followed by the name, cut or padded with spaces to 16 characters
+     */
+    public static void putUserInformation(@NonNull ByteBuffer out, @NonNull UserInformation userInformation) {
+        out.put(Constants.CMD_SET_USER);
+        UserRecordCodec.encode(userInformation, out);
+    }
+
+    public static void putSelectUser(@NonNull ByteBuffer out, int userId) {
+
+        out.put(Constants.CMD_SELECT_USER);
+        out.put((byte) 0);
+        out.put((byte) userId);
+
+        for (int i = 0; i < 12; i++) {
+            out.put((byte) 0);
+        }
+
+    }
+
+    public static void putChallengeResponse(@NonNull ByteBuffer out, @NonNull byte[] challenge, @NonNull byte[] salt) {
+
+        out.put(Constants.CMD_SEND_XOR);
+
+        for (int i = 0; i < challenge.length; i++) {
+            out.put((byte) (challenge[i] ^ salt[i]));
+        }
+
+    }
+
+}
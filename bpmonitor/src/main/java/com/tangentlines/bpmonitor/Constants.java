@@ -37,6 +37,17 @@ public class Constants {
     public static final String UUID_CHARACTERISTIC_CONTROL = "00008a81-0000-1000-8000-00805f9b34fb";
     public static final String UUID_CHARACTERISTIC_INDICATE_CHALLENGE = "00008a82-0000-1000-8000-00805f9b34fb";
 
+    /* handles of the characteristics declared by BPMonitor, requests refer to them instead of the uuids */
+    public static final int HANDLE_CONTROL = 0;
+    public static final int HANDLE_BLOOD_PRESSURE_DATA = 1;
+    public static final int HANDLE_INDICATE_CHALLENGE = 2;
+    public static final int HANDLE_MANUFACTURER_STRING = 3;
+    public static final int HANDLE_MODEL_NUMBER_STRING = 4;
+    public static final int HANDLE_SOFTWARE_REVISION_STRING = 5;
+    public static final int HANDLE_HARDWARE_REVISION_STRING = 6;
+    public static final int HANDLE_SYSTEM_FIRMWARE_NUMBER_STRING = 7;
+    public static final int HANDLE_SERIAL_NUMBER_STRING = 8;
+
     public static final byte CMD_FINISH = (byte) 0x22;
     public static final byte CMD_SEND_XOR = (byte) 0x20;
 
@@ -50,4 +61,7 @@ public class Constants {
     public static final byte RESPONSE_CHALLENGE = (byte) 0xA1;
     public static final byte RESPONSE_GET_USER = (byte) 0x83;
 
+    /* device time is counted in seconds since 2010-02-01 00:00 UTC */
+    public static final long DEVICE_EPOCH = 1264982400000L;
+
 }
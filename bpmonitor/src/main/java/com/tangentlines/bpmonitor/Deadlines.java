@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import java.util.Locale;
+
+/*
+ * Maximum duration of every phase of a connection in ms, 0 disables the deadline of a phase.
+ * A phase which isn't completed in time fails with BPMonitorError.TYPE_TIMEOUT, the session is cancelled and disconnected.
+ * Connect and discovery timeouts are reported as failed connection, later ones only to the callbacks of the running protocol.
+ */
+public class Deadlines {
+
+    public static final int PHASE_CONNECT = 0;              // until the link is up
+    public static final int PHASE_DISCOVERY = 1;            // until the services are discovered
+    public static final int PHASE_DEVICE_INFORMATION = 2;   // until the device information is read
+    public static final int PHASE_AUTHENTICATION = 3;       // until the challenge is answered and the readings requested
+    public static final int PHASE_TRANSFER_IDLE = 4;        // pause after which a transfer counts as finished
+
+    private static final int PHASES = 5;
+
+    public static final Deadlines DEFAULT = new Builder().create();
+
+    private final long[] deadlines;
+
+    private Deadlines(long[] deadlines) {
+        this.deadlines = deadlines;
+    }
+
+    public long get(int phase) {
+        return deadlines[phase];
+    }
+
+    public static String getPhaseName(int phase) {
+
+        switch (phase) {
+
+            case PHASE_CONNECT:
+                return "connect";
+
+            case PHASE_DISCOVERY:
+                return "service discovery";
+
+            case PHASE_DEVICE_INFORMATION:
+                return "device information";
+
+            case PHASE_AUTHENTICATION:
+                return "authentication";
+
+            case PHASE_TRANSFER_IDLE:
+                return "transfer";
+
+        }
+
+        return "unknown";
+
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "Deadlines{connect=%d, discovery=%d, deviceInformation=%d, authentication=%d, transferIdle=%d}",
+                deadlines[PHASE_CONNECT], deadlines[PHASE_DISCOVERY], deadlines[PHASE_DEVICE_INFORMATION], deadlines[PHASE_AUTHENTICATION], deadlines[PHASE_TRANSFER_IDLE]);
+    }
+
+    public static class Builder {
+
+        private final long[] deadlines = new long[PHASES];
+
+        public Builder() {
+            deadlines[PHASE_CONNECT] = 1000 * 10;
+            deadlines[PHASE_DISCOVERY] = 1000 * 5;
+            deadlines[PHASE_DEVICE_INFORMATION] = 1000 * 5;
+            deadlines[PHASE_AUTHENTICATION] = 1000 * 5;
+            deadlines[PHASE_TRANSFER_IDLE] = 1000 * 2;
+        }
+
+        public Builder setConnect(long deadline) {
+            return set(PHASE_CONNECT, deadline);
+        }
+
+        public Builder setDiscovery(long deadline) {
+            return set(PHASE_DISCOVERY, deadline);
+        }
+
+        public Builder setDeviceInformation(long deadline) {
+            return set(PHASE_DEVICE_INFORMATION, deadline);
+        }
+
+        public Builder setAuthentication(long deadline) {
+            return set(PHASE_AUTHENTICATION, deadline);
+        }
+
+        /*
+         * Default idle time of a synchronization, see SynchronizationOptions.Builder.setIdleTimeout()
+         */
+        public Builder setTransferIdle(long deadline) {
+            return set(PHASE_TRANSFER_IDLE, deadline);
+        }
+
+        private Builder set(int phase, long deadline) {
+
+            if (deadline < 0) {
+                throw new IllegalArgumentException("deadline must not be negative");
+            }
+
+            deadlines[phase] = deadline;
+            return this;
+
+        }
+
+        public Deadlines create() {
+
+            if (deadlines[PHASE_TRANSFER_IDLE] == 0) {
+                throw new IllegalArgumentException("the transfer idle time is needed to detect the end of a transfer");
+            }
+
+            return new Deadlines(deadlines.clone());
+
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+import com.tangentlines.bpmonitor.model.DeviceInformation;
+
+/*
+ * Persists the device information profile of a device by its mac address,
+ * so it doesn't have to be read on every connection.
+ */
+public class DeviceInformationCache {
+
+    public static final long DEFAULT_MAX_AGE = 1000L * 60 * 60 * 24 * 7; // 7 days
+
+    /* result of restoring */
+    public static final int MISSING = 0;
+    public static final int STALE = 1;
+    public static final int FRESH = 2;
+
+    private static final String PREFERENCES = "com.tangentlines.bpmonitor.deviceinformation";
+
+    private static final String KEY_TIMESTAMP = ".timestamp";
+    private static final String KEY_MANUFACTURER = ".manufacturer";
+    private static final String KEY_MODEL_NUMBER = ".model";
+    private static final String KEY_SERIAL_NUMBER = ".serial";
+    private static final String KEY_FIRMWARE_REVISION = ".firmware";
+    private static final String KEY_HARDWARE_REVISION = ".hardware";
+    private static final String KEY_SOFTWARE_REVISION = ".software";
+
+    private final SharedPreferences mPreferences;
+    private final long mMaxAge;
+
+    public DeviceInformationCache(@NonNull Context context, long maxAge) {
+        this.mPreferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        this.mMaxAge = maxAge;
+    }
+
+    /*
+     * Fills the device information with the cached profile of its mac address
+     */
+    public int restore(@NonNull DeviceInformation info) {
+
+        final String mac = info.getMacAddress();
+        if (mac == null || !mPreferences.contains(mac + KEY_TIMESTAMP)) {
+            return MISSING;
+        }
+
+        info.setManufacturer(mPreferences.getString(mac + KEY_MANUFACTURER, null));
+        info.setModelNumber(mPreferences.getString(mac + KEY_MODEL_NUMBER, null));
+        info.setSerialNumber(mPreferences.getString(mac + KEY_SERIAL_NUMBER, null));
+        info.setFirmwareRevision(mPreferences.getString(mac + KEY_FIRMWARE_REVISION, null));
+        info.setHardwareRevision(mPreferences.getString(mac + KEY_HARDWARE_REVISION, null));
+        info.setSoftwareRevision(mPreferences.getString(mac + KEY_SOFTWARE_REVISION, null));
+
+        final long age = System.currentTimeMillis() - mPreferences.getLong(mac + KEY_TIMESTAMP, 0);
+        return age >= 0 && age < mMaxAge ? FRESH : STALE;
+
+    }
+
+    public void store(@NonNull DeviceInformation info) {
+
+        final String mac = info.getMacAddress();
+        if (mac == null) {
+            return;
+        }
+
+        mPreferences.edit()
+                .putLong(mac + KEY_TIMESTAMP, System.currentTimeMillis())
+                .putString(mac + KEY_MANUFACTURER, info.getManufacturer())
+                .putString(mac + KEY_MODEL_NUMBER, info.getModelNumber())
+                .putString(mac + KEY_SERIAL_NUMBER, info.getSerialNumber())
+                .putString(mac + KEY_FIRMWARE_REVISION, info.getFirmwareRevision())
+                .putString(mac + KEY_HARDWARE_REVISION, info.getHardwareRevision())
+                .putString(mac + KEY_SOFTWARE_REVISION, info.getSoftwareRevision())
+                .apply();
+
+    }
+
+    public void invalidate(@NonNull String macAddress) {
+        mPreferences.edit().remove(macAddress + KEY_TIMESTAMP).apply();
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+/*
+ * Results of the decoders generated from the frame schemas in src/main/schema
+ */
+public final class FrameCodecs {
+
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_EMPTY = 1;
+    public static final int RESULT_TRUNCATED = 2;
+
+    private FrameCodecs() {
+    }
+
+    public static String getResultName(int result) {
+
+        switch (result) {
+            case RESULT_OK:
+                return "ok";
+            case RESULT_EMPTY:
+                return "empty frame";
+            case RESULT_TRUNCATED:
+                return "truncated frame";
+            default:
+                return "unknown";
+        }
+
+    }
+
+}
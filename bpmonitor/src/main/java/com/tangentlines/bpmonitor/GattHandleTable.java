@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Resolves the gatt characteristics and descriptors of a device once after service discovery.
+ * Every characteristic is declared with an int id chosen by the device, requests carry the id and look the handle
+ * up by index. Two services may provide the same characteristic uuid, they are declared with different ids.
+ */
+class GattHandleTable {
+
+    private static final String TAG = GattHandleTable.class.getSimpleName();
+
+    static class Handle {
+
+        final int id;
+        final String characteristicUUID;
+        final UUID service;
+        final UUID characteristic;
+        final UUID descriptor;
+        final boolean required;
+
+        volatile BluetoothGattCharacteristic gattCharacteristic;
+        volatile BluetoothGattDescriptor gattDescriptor;
+
+        private Handle(int id, @NonNull String serviceUUID, @NonNull String characteristicUUID, @Nullable String descriptorUUID, boolean required) {
+            this.id = id;
+            this.characteristicUUID = characteristicUUID;
+            this.service = UUID.fromString(serviceUUID);
+            this.characteristic = UUID.fromString(characteristicUUID);
+            this.descriptor = descriptorUUID != null ? UUID.fromString(descriptorUUID) : null;
+            this.required = required;
+        }
+
+        private void resolve(@NonNull BluetoothGatt gatt) {
+
+            final BluetoothGattService gattService = gatt.getService(service);
+            gattCharacteristic = gattService != null ? gattService.getCharacteristic(characteristic) : null;
+            gattDescriptor = gattCharacteristic != null && descriptor != null ? gattCharacteristic.getDescriptor(descriptor) : null;
+
+        }
+
+        private void clear() {
+            gattCharacteristic = null;
+            gattDescriptor = null;
+        }
+
+    }
+
+    /* indexed by id, replaced as a whole when a handle is declared so get() doesn't need the lock */
+    private volatile Handle[] mHandles = new Handle[0];
+
+    /*
+     * Declares a characteristic the device is expected to have, resolving fails if a required one is missing
+     */
+    synchronized void declare(int id, @NonNull String serviceUUID, @NonNull String characteristicUUID, @Nullable String descriptorUUID, boolean required) {
+
+        if (id < 0) {
+            throw new IllegalArgumentException("id must be >= 0");
+        }
+
+        Handle[] handles = mHandles;
+
+        if (id < handles.length && handles[id] != null) {
+            throw new IllegalStateException(String.format("handle %d is already declared for %s", id, handles[id].characteristicUUID));
+        }
+
+        handles = Arrays.copyOf(handles, Math.max(handles.length, id + 1));
+        handles[id] = new Handle(id, serviceUUID, characteristicUUID, descriptorUUID, required);
+        mHandles = handles;
+
+    }
+
+    /*
+     * Returns the declared handle with the given id
+     */
+    @NonNull
+    Handle get(int id) {
+
+        final Handle[] handles = mHandles;
+        final Handle handle = id >= 0 && id < handles.length ? handles[id] : null;
+
+        if (handle == null) {
+            throw new IllegalArgumentException("undeclared handle " + id);
+        }
+
+        return handle;
+
+    }
+
+    /*
+     * Returns the id of the handle the characteristic was resolved to, or -1. Doesn't lock, may be called from any thread.
+     */
+    int find(@NonNull BluetoothGattCharacteristic characteristic) {
+
+        for (Handle handle : mHandles) {
+
+            if (handle != null && handle.gattCharacteristic == characteristic) {
+                return handle.id;
+            }
+
+        }
+
+        return -1;
+
+    }
+
+    /*
+     * Resolves all handles, returns the uuids of required characteristics the device doesn't provide
+     */
+    @NonNull
+    synchronized List<String> resolve(@NonNull BluetoothGatt gatt) {
+
+        final List<String> missing = new ArrayList<>();
+
+        for (Handle handle : mHandles) {
+
+            if (handle == null) {
+                continue;
+            }
+
+            handle.resolve(gatt);
+
+            if (handle.gattCharacteristic == null) {
+
+                if (handle.required) {
+                    missing.add(handle.characteristicUUID);
+                } else {
+                    Log.w(TAG, String.format("Characteristic %s not found", handle.characteristicUUID));
+                }
+
+            } else if (handle.descriptor != null && handle.gattDescriptor == null) {
+
+                Log.w(TAG, String.format("Descriptor of %s not found", handle.characteristicUUID));
+
+                if (handle.required) {
+                    missing.add(handle.characteristicUUID);
+                }
+
+            }
+
+        }
+
+        return missing;
+
+    }
+
+    synchronized void clear() {
+
+        for (Handle handle : mHandles) {
+
+            if (handle != null) {
+                handle.clear();
+            }
+
+        }
+
+    }
+
+}
@@ -20,41 +20,134 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.UUID;
+import com.tangentlines.bpmonitor.model.LinkParameters;
+import com.tangentlines.bpmonitor.utils.ByteBufferPool;
+import com.tangentlines.bpmonitor.utils.FrameIngest;
+import com.tangentlines.bpmonitor.utils.FrameRing;
+import com.tangentlines.bpmonitor.utils.GattThread;
+import com.tangentlines.bpmonitor.utils.HandlerExecutor;
+import com.tangentlines.bpmonitor.utils.TimerWheel;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
 
 public abstract class GenericLEDevice {
 
     private static String TAG = GenericLEDevice.class.getSimpleName();
 
+    /* request priorities, a request is only sent if no request of a higher priority is queued */
+    public static final int PRIORITY_CRITICAL = 0;      // connection setup, e.g. registering for indications
+    public static final int PRIORITY_PROTOCOL = 1;      // requests driving the current protocol
+    public static final int PRIORITY_BACKGROUND = 2;    // informational requests, e.g. device information
+
+    /* maximum time to wait for the gatt callback of a sent request before the queue moves on */
+    private static final int OPERATION_TIMEOUT = 1000 * 3;
+
+    /* results of sending a request to the stack */
+    private static final int REQUEST_SENT = 0;
+    private static final int REQUEST_BUSY = 1;
+    private static final int REQUEST_INVALID = 2;
+
+    /* largest att mtu which fits into a single link layer packet with data length extension */
+    private static final int TRANSFER_MTU = 247;
+
+    /* indications queued between the binder thread and the looper, larger frames or a full ring allocate a copy */
+    private static final int INDICATION_RING_CAPACITY = 64;
+    private static final int MAX_INDICATION_SIZE = 32;
+
+    /* payload of a write with the default att mtu, larger copies are allocated */
+    private static final int MAX_COPIED_WRITE = 20;
+
     private BluetoothDevice mDevice;
     private BluetoothGatt mBluetoothGatt;
-    private Map<UUID, BluetoothGattService> mServices = new HashMap<>();
+    private final GattHandleTable mHandles = new GattHandleTable();
+
+    /* exact size arrays for writes of buffers which can't be handed to the stack as they are */
+    private final ByteBufferPool mCopyPool = new ByteBufferPool(MAX_COPIED_WRITE, 4);
+
+    private volatile boolean mIsConnected = false;
+    private boolean mAutoConnect = false;
+    private int mConnectionSpeed = 0;
 
-    private boolean mIsConnected = false;
-    private int mConnectionSpeed = 400;
+    private Context mContext;
+    private boolean mAdaptivePacing = false;
+    private volatile PacingController mPacing;
+
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private int mConnectionAttempt = 0;
+    private int mDiscoveryAttempt = 0;
+
+    private boolean mLinkTuning = false;
+    private boolean mLinkTuned = false;
+    private final LinkParameters mLinkParameters = new LinkParameters();
+
+    private long mScanRaceTimeout = 0;
+    private ScanRace mScanRace;
+
+    private volatile boolean mDisconnectWhenIdle = false;
+
+    private volatile RadioScheduler mRadioScheduler;
+    private volatile boolean mHoldingRequestSlot = false;
+
+    /* indications, copied on the binder thread and handled on the looper */
+    private final FrameIngest mIndications;
 
     protected GenericLEDevice(BluetoothDevice device) {
+        this(device, GattThread.getLooper());
+    }
+
+    /*
+     * All requests, gatt callbacks and timeouts of the device are handled on the looper
+     */
+    protected GenericLEDevice(BluetoothDevice device, @NonNull Looper looper) {
         mDevice = device;
+        mQueueHandler = new Handler(looper);
+        mIndications = new FrameIngest(INDICATION_RING_CAPACITY, MAX_INDICATION_SIZE, new HandlerExecutor(looper), mIndicationConsumer);
+    }
+
+    @NonNull
+    public Looper getLooper() {
+        return mQueueHandler.getLooper();
+    }
+
+    /*
+     * Runs the task on the looper of the device, right away if called from it
+     */
+    protected void runOnLooper(@NonNull Runnable task) {
+
+        if (Looper.myLooper() == mQueueHandler.getLooper()) {
+            task.run();
+        } else {
+            mQueueHandler.post(task);
+        }
+
     }
 
     protected boolean connectToGatt(Context context) {
 
         if (!mIsConnected && mBluetoothGatt == null) {
 
-            mBluetoothGatt = mDevice.connectGatt(context, false, mGattCallback);
-            mBluetoothGatt.connect();
+            mContext = context.getApplicationContext();
+            mConnectionAttempt = 0;
+
+            openGatt(mAutoConnect);
+            startScanRace();
+
             return true;
 
         } else {
@@ -65,303 +158,1336 @@ public abstract class GenericLEDevice {
 
     }
 
+    private void openGatt(boolean autoConnect) {
+
+        /* no handler overload on O: the callbacks have to arrive on the binder thread, see mGattCallback */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mBluetoothGatt = mDevice.connectGatt(mContext, autoConnect, mGattCallback, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            mBluetoothGatt = mDevice.connectGatt(mContext, autoConnect, mGattCallback);
+        }
+
+        /* with auto connect the background connection is already pending */
+        if (!autoConnect) {
+            mBluetoothGatt.connect();
+        }
+
+    }
+
+    /*
+     * Called once the link is up, before services are discovered
+     */
+    private void startSession() {
+
+        mDiscoveryAttempt = 0;
+        mDisconnectWhenIdle = false;
+        stopScanRace();
+        onLinkEstablished();
+
+        if (mAdaptivePacing) {
+            mPacing = PacingController.restore(mContext, mDevice.getAddress(), mConnectionSpeed > 0 ? mConnectionSpeed : PacingController.DEFAULT_DELAY);
+        }
+
+        mLinkTuned = false;
+        mLinkParameters.setMtu(0);
+        mLinkParameters.setTxPhy(0);
+        mLinkParameters.setRxPhy(0);
+        mLinkParameters.setConnectionPriority(0);
+
+    }
+
+    /*
+     * Resets everything bound to the current link and notifies about the disconnect
+     */
+    private void endSession() {
+
+        mHandles.clear();
+        clearRequests();
+
+        final BLERequest pending = mPendingRequest;
+        mPendingRequest = null;
+
+        if (pending != null) {
+            recycle(pending);
+        }
+        mIsConnected = false;
+
+        /* leave the line of the scheduler, or hand over the slot */
+        mHoldingRequestSlot = false;
+        final RadioScheduler scheduler = mRadioScheduler;
+        if (scheduler != null) {
+            scheduler.releaseRequestSlot(this);
+        }
+
+        mQueueHandler.removeCallbacks(mQueueRunnable);
+        mQueueHandler.removeCallbacks(mDiscoverServicesRunnable);
+        cancelOperationTimeout();
+
+        if (mPacing != null) {
+            mPacing.persist(mContext);
+            mPacing = null;
+        }
+
+        onDisconnected();
+
+    }
+
+    private void closeGatt() {
+
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+
+    }
+
     protected boolean disconnectFromGatt() {
 
+        stopScanRace();
+        mQueueHandler.removeCallbacks(mReconnectRunnable);
+        mQueueHandler.removeCallbacks(mDiscoverServicesRunnable);
+
         if (mIsConnected && mBluetoothGatt != null) {
 
             mBluetoothGatt.disconnect();
-            mBluetoothGatt.close();
-            mBluetoothGatt = null;
+            closeGatt();
+
+            endSession();
+            onConnectionClosed();
+
+            return true;
+        } else if (mBluetoothGatt != null) {
 
-            mServices.clear();
-            mBleRequest.clear();
-            mIsConnected = false;
+            /* cancel the pending connection */
+            mBluetoothGatt.disconnect();
+            closeGatt();
 
-            onDisconnected();
+            onConnectionClosed();
 
             return true;
         } else {
+
+            /* the gatt client may already be gone, e.g. after a failed connection attempt waiting for its retry */
             Log.d(TAG, "device already disconnected!");
+            onConnectionClosed();
+
         }
 
         return false;
 
     }
 
+    /*
+     * Closes the link once all queued requests are done.
+     * A background connection stays pending, so the device is connected again the next time it wakes up.
+     */
+    protected void disconnectWhenIdle() {
+        mDisconnectWhenIdle = true;
+        scheduleNextRequest();
+    }
+
+    private void closeLink() {
+
+        if (mAutoConnect && mIsConnected && mBluetoothGatt != null) {
+            /* the disconnect callback ends the session and re-arms the background connection */
+            mBluetoothGatt.disconnect();
+        } else {
+            disconnectFromGatt();
+        }
+
+    }
+
+    /*
+     * Additional delay in ms between the completion of one request and the start of the next one
+     */
     protected void setConnectionSpeed(int speed) {
         this.mConnectionSpeed = speed;
     }
 
-    public boolean isConnected() {
-        return mIsConnected;
+    /*
+     * Adapts the delay between requests to the acknowledgements of the device, starting
+     * with the best delay of the last session. The connection speed is used for unknown devices.
+     */
+    protected void setAdaptivePacing(boolean adaptivePacing) {
+        this.mAdaptivePacing = adaptivePacing;
     }
 
-    private void registerForIndication(@Nullable String serviceUUID, @NonNull String characteristicUUID, @NonNull String descriptorUUID) {
-        writeDescriptor(mBluetoothGatt, serviceUUID, characteristicUUID, descriptorUUID, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+    /*
+     * Keeps a background connection pending through the controller instead of connecting directly.
+     * The link comes up whenever the device starts advertising and is re-established after the device disconnects,
+     * until disconnectFromGatt() is called.
+     */
+    protected void setAutoConnect(boolean autoConnect) {
+        this.mAutoConnect = autoConnect;
     }
 
-    private void registerForNotification(@Nullable String serviceUUID, @NonNull String characteristicUUID, @NonNull String descriptorUUID) {
-        writeDescriptor(mBluetoothGatt, serviceUUID, characteristicUUID, descriptorUUID, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+    /*
+     * Scans for the device for up to timeout ms while connecting. If the scan finds it before the connection
+     * is established, the pending attempt is replaced by a direct connection to the scanned device.
+     * Requires Android 5.0 and the location permission, otherwise only the connection attempt is made.
+     */
+    protected void setScanRace(long timeout) {
+        this.mScanRaceTimeout = timeout;
     }
 
-    private void writeDescriptor(@NonNull BluetoothGatt gatt, @Nullable String serviceUUID, @NonNull String characteristicUUID, @NonNull String descriptorUUID, @NonNull byte[] data) {
+    private void startScanRace() {
 
-        try {
+        if (mScanRaceTimeout <= 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
 
-            final BluetoothGattService service = mServices.get(UUID.fromString(serviceUUID));
-            if (service == null) {
-                Log.w(TAG, String.format("Service %s not found", characteristicUUID));
-                return;
-            }
+        if (mScanRace == null) {
+            mScanRace = new ScanRace(mDevice.getAddress(), mScanRaceListener, mQueueHandler);
+        }
+
+        if (!mScanRace.start(mScanRaceTimeout)) {
+            Log.d(TAG, "scanning not possible, connecting only");
+        }
+
+    }
+
+    private void stopScanRace() {
+
+        if (mScanRace != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mScanRace.stop();
+        }
 
-            final BluetoothGattCharacteristic characteristic = service.getCharacteristic(UUID.fromString(characteristicUUID));
-            if (characteristic == null) {
-                Log.w(TAG, String.format("Characteristic %s not found", characteristicUUID));
+    }
+
+    private final ScanRace.Listener mScanRaceListener = new ScanRace.Listener() {
+
+        @Override
+        public void onDeviceFound(@NonNull BluetoothDevice device) {
+
+            if (mIsConnected || mContext == null) {
                 return;
             }
 
-            gatt.setCharacteristicNotification(characteristic, true);
+            Log.d(TAG, "device found by scan, connecting directly");
 
-            final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(descriptorUUID));
-            if (descriptor == null) {
-                Log.w(TAG, String.format("Descriptor %s not found", characteristicUUID));
-                return;
+            mQueueHandler.removeCallbacks(mReconnectRunnable);
+
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.disconnect();
+                closeGatt();
             }
 
-            descriptor.setValue(data);
-            gatt.writeDescriptor(descriptor);
+            /* the scanned device carries the address type, it's always connected directly as it is advertising right now */
+            mDevice = device;
+            openGatt(false);
 
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
         }
 
+    };
+
+    public boolean isAutoConnect() {
+        return mAutoConnect;
     }
 
+    /*
+     * A background connection is waiting for the device
+     */
+    public boolean isReconnectPending() {
+        return mAutoConnect && !mIsConnected && mBluetoothGatt != null;
+    }
 
-    private void writeCharacteristic(@Nullable String serviceUUID, @NonNull String characteristicUUID, byte[] data) {
+    protected void setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
 
-        final BluetoothGattService service = mServices.get(UUID.fromString(serviceUUID));
-        if (service == null) {
-            Log.w(TAG, String.format("Service %s not found", characteristicUUID));
-            return;
-        }
+    /*
+     * Requests a high connection priority, a larger mtu and the 2M phy while transferring data
+     */
+    protected void setLinkTuning(boolean linkTuning) {
+        this.mLinkTuning = linkTuning;
+    }
 
-        final BluetoothGattCharacteristic characteristic = service.getCharacteristic(UUID.fromString(characteristicUUID));
-        if (characteristic == null) {
-            Log.w(TAG, String.format("Characteristic %s not found", characteristicUUID));
-            return;
-        }
+    public boolean isConnected() {
+        return mIsConnected;
+    }
 
-        try {
-            characteristic.setValue(data);
-            mBluetoothGatt.writeCharacteristic(characteristic);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /*
+     * Shares the radio with other devices, requests are only sent while the scheduler grants a slot
+     */
+    void setRadioScheduler(@Nullable RadioScheduler scheduler) {
+        this.mRadioScheduler = scheduler;
+    }
 
+    /*
+     * Called by the scheduler once it's this device's turn, the slot is held until the request completed
+     */
+    void onRequestSlotGranted() {
+        mHoldingRequestSlot = true;
+        mQueueHandler.removeCallbacks(mQueueRunnable);
+        mQueueHandler.post(mQueueRunnable);
     }
 
-    private void readCharacteristic(@Nullable String serviceUUID, @NonNull String characteristicUUID) {
+    private boolean acquireRequestSlot() {
 
-        final BluetoothGattService service = mServices.get(UUID.fromString(serviceUUID));
-        if (service == null) {
-            Log.w(TAG, String.format("Service %s not found", characteristicUUID));
-            return;
-        }
+        final RadioScheduler scheduler = mRadioScheduler;
 
-        final BluetoothGattCharacteristic characteristic = service.getCharacteristic(UUID.fromString(characteristicUUID));
-        if (characteristic == null) {
-            Log.w(TAG, String.format("Characteristic %s not found", characteristicUUID));
-            return;
+        if (scheduler == null || mHoldingRequestSlot) {
+            return true;
         }
 
-        try {
-            mBluetoothGatt.readCharacteristic(characteristic);
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (scheduler.acquireRequestSlot(this)) {
+            mHoldingRequestSlot = true;
+            return true;
         }
 
+        return false;
+
     }
 
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    private void releaseRequestSlot() {
 
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        final RadioScheduler scheduler = mRadioScheduler;
 
-            if (!mIsConnected && newState == BluetoothProfile.STATE_CONNECTED) {
-                mBluetoothGatt.discoverServices();
-                mIsConnected = true;
-            } else if (mIsConnected && newState == BluetoothProfile.STATE_DISCONNECTED) {
-                disconnectFromGatt();
-            }
+        if (scheduler != null && mHoldingRequestSlot) {
+            mHoldingRequestSlot = false;
+            scheduler.releaseRequestSlot(this);
+        }
+
+    }
+
+    private void onBytesTransferred(int sent, int received) {
 
+        final RadioScheduler scheduler = mRadioScheduler;
+        if (scheduler != null) {
+            scheduler.onBytesTransferred(this, sent, received);
         }
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
+    }
 
-                mServices.clear();
-                for (BluetoothGattService s : mBluetoothGatt.getServices()) {
-                    mServices.put(s.getUuid(), s);
-                }
+    private void onConnectionClosed() {
 
-                onConnected();
+        final RadioScheduler scheduler = mRadioScheduler;
+        if (scheduler != null) {
+            scheduler.onConnectionClosed(this);
+        }
 
-                mQueueHandler.postDelayed(mQueueRunnable, mConnectionSpeed);
+    }
 
-            } else {
+    /*
+     * Link parameters negotiated on the current or last connection
+     */
+    @NonNull
+    public LinkParameters getLinkParameters() {
+        return mLinkParameters;
+    }
 
-                onError("onServicesDiscovered received: " + status);
+    /*
+     * Requests the fastest link the phone supports for an upcoming transfer, if link tuning is enabled
+     */
+    protected void tuneLinkForTransfer() {
 
-            }
+        final BluetoothGatt gatt = mBluetoothGatt;
+
+        if (!mLinkTuning || mLinkTuned || gatt == null || !mIsConnected) {
+            return;
         }
 
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, String.format("onCharacteristicRead(%s)", characteristic.getStringValue(0)));
-                GenericLEDevice.this.onCharacteristicRead(characteristic);
-            } else {
-                Log.e(TAG, "onCharacteristicReadError()");
+        mLinkTuned = true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+
+            if (gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)) {
+                mLinkParameters.setConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
             }
-        }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG, "onCharacteristicChanged()");
-            GenericLEDevice.this.onCharacteristicChanged(characteristic);
-        }
+            MtuRequest r = new MtuRequest();
+            r.priority = PRIORITY_CRITICAL;
+            r.mtu = TRANSFER_MTU;
+            addRequest(r);
 
-        @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorRead(gatt, descriptor, status);
-            Log.d(TAG, "onDescriptorRead()");
         }
 
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            Log.d(TAG, "onCharacteristicWrite()");
-            GenericLEDevice.this.onCharacteristicWrite(characteristic, status);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
         }
-    };
 
-    @Override
-    public String toString() {
-        return mDevice != null ? mDevice.toString() : "unknown";
     }
 
-    private static class BLERequest {
+    /*
+     * Drops back to a balanced connection priority after a transfer
+     */
+    protected void releaseLinkTuning() {
 
-    }
+        final BluetoothGatt gatt = mBluetoothGatt;
 
-    private static class ReadRequest extends BLERequest {
-        String serviceUUID;
-        String characteristicUUID;
-    }
+        if (!mLinkTuned || gatt == null) {
+            return;
+        }
 
-    private static class WriteRequest extends BLERequest {
-        String serviceUUID;
-        String characteristicUUID;
-        byte[] data;
-    }
+        mLinkTuned = false;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED)) {
+            mLinkParameters.setConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+
+        Log.i(TAG, "link after transfer: " + mLinkParameters);
 
-    private static class IndicationRequest extends BLERequest {
-        String serviceUUID;
-        String characteristicUUID;
-        String descriptorUUID;
     }
 
-    private static class NotificationRequest extends BLERequest {
-        String serviceUUID;
-        String characteristicUUID;
-        String descriptorUUID;
+    /*
+     * Declares a characteristic used by the device under the given handle id, it is resolved once after service discovery.
+     * Requests refer to the characteristic by its handle. Connecting fails if a required characteristic is not available.
+     */
+    protected void declareCharacteristic(int handle, @NonNull String serviceUUID, @NonNull String characteristicUUID, @Nullable String descriptorUUID, boolean required) {
+        mHandles.declare(handle, serviceUUID, characteristicUUID, descriptorUUID, required);
     }
 
-    private Queue<BLERequest> mBleRequest = new LinkedList<>();
+    private int writeDescriptor(@NonNull GattHandleTable.Handle handle, @NonNull byte[] data) {
 
-    public void queueReadCharacteristic(@Nullable String serviceUUID, @NonNull String characteristicUUID) {
+        final BluetoothGattCharacteristic characteristic = handle.gattCharacteristic;
+        if (characteristic == null) {
+            Log.w(TAG, String.format("Characteristic %s not found", handle.characteristicUUID));
+            return REQUEST_INVALID;
+        }
 
-        ReadRequest rr = new ReadRequest();
-        rr.serviceUUID = serviceUUID;
-        rr.characteristicUUID = characteristicUUID;
-        mBleRequest.add(rr);
+        final BluetoothGattDescriptor descriptor = handle.gattDescriptor;
+        if (descriptor == null) {
+            Log.w(TAG, String.format("Descriptor %s not found", handle.characteristicUUID));
+            return REQUEST_INVALID;
+        }
+
+        try {
+
+            mBluetoothGatt.setCharacteristicNotification(characteristic, true);
+
+            descriptor.setValue(data);
+            return mBluetoothGatt.writeDescriptor(descriptor) ? REQUEST_SENT : REQUEST_BUSY;
+
+        } catch (Exception e) {
+            Log.e(TAG, "writeDescriptor() failed", e);
+        }
+
+        return REQUEST_INVALID;
 
     }
 
-    protected void queueWriteCharacteristic(@Nullable String serviceUUID, @NonNull String characteristicUUID, @NonNull byte[] data) {
+    private int writeCharacteristic(@NonNull GattHandleTable.Handle handle, byte[] data) {
 
-        WriteRequest rr = new WriteRequest();
-        rr.serviceUUID = serviceUUID;
-        rr.characteristicUUID = characteristicUUID;
-        rr.data = data;
-        mBleRequest.add(rr);
+        final BluetoothGattCharacteristic characteristic = handle.gattCharacteristic;
+        if (characteristic == null) {
+            Log.w(TAG, String.format("Characteristic %s not found", handle.characteristicUUID));
+            return REQUEST_INVALID;
+        }
+
+        try {
+            characteristic.setValue(data);
+            return mBluetoothGatt.writeCharacteristic(characteristic) ? REQUEST_SENT : REQUEST_BUSY;
+        } catch (Exception e) {
+            Log.e(TAG, "writeCharacteristic() failed", e);
+        }
+
+        return REQUEST_INVALID;
 
     }
 
-    public void queueRegisterForIndication(@Nullable String serviceUUID, @NonNull String characteristicUUID, @NonNull String descriptorUUID) {
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private int requestMtu(int mtu) {
 
-        IndicationRequest r = new IndicationRequest();
-        r.serviceUUID = serviceUUID;
-        r.characteristicUUID = characteristicUUID;
-        r.descriptorUUID = descriptorUUID;
-        mBleRequest.add(r);
+        try {
+            return mBluetoothGatt.requestMtu(mtu) ? REQUEST_SENT : REQUEST_BUSY;
+        } catch (Exception e) {
+            Log.e(TAG, "requestMtu() failed", e);
+        }
+
+        return REQUEST_INVALID;
 
     }
 
-    public void queueRegisterForNotification(@Nullable String serviceUUID, @NonNull String characteristicUUID, @NonNull String descriptorUUID) {
+    private int readCharacteristic(@NonNull GattHandleTable.Handle handle) {
 
-        NotificationRequest r = new NotificationRequest();
-        r.serviceUUID = serviceUUID;
-        r.characteristicUUID = characteristicUUID;
-        r.descriptorUUID = descriptorUUID;
-        mBleRequest.add(r);
+        final BluetoothGattCharacteristic characteristic = handle.gattCharacteristic;
+        if (characteristic == null) {
+            Log.w(TAG, String.format("Characteristic %s not found", handle.characteristicUUID));
+            return REQUEST_INVALID;
+        }
+
+        try {
+            return mBluetoothGatt.readCharacteristic(characteristic) ? REQUEST_SENT : REQUEST_BUSY;
+        } catch (Exception e) {
+            Log.e(TAG, "readCharacteristic() failed", e);
+        }
+
+        return REQUEST_INVALID;
 
     }
 
+    /*
+     * The callbacks arrive on a binder thread, their bodies are posted to the looper so the link, the queue and
+     * the protocol are only changed there. The value of a characteristic is taken first, the stack replaces it with
+     * the next response before the looper gets to it. That's also why the handler of connectGatt() isn't used on O,
+     * it hands over to the handler only after setting the value.
+     */
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+                    if (gatt == mBluetoothGatt) {
+                        handleConnectionStateChange(gatt, status, newState);
+                    }
+                }
+            });
+        }
 
-    private Handler mQueueHandler = new Handler();
-    private Runnable mQueueRunnable = new Runnable() {
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+                    if (gatt == mBluetoothGatt) {
+                        handleServicesDiscovered(gatt, status);
+                    }
+                }
+            });
+        }
 
         @Override
-        public void run() {
+        public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
 
-            /* it was disconnected */
-            if (mDevice == null || !isConnected()) {
-                return;
-            }
+            final byte[] value = copyValue(characteristic);
+
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+
+                    if (gatt != mBluetoothGatt) {
+                        return;
+                    }
+
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        Log.d(TAG, String.format("onCharacteristicRead(%s)", characteristic.getUuid()));
+                        onBytesTransferred(0, value != null ? value.length : 0);
+                        GenericLEDevice.this.onCharacteristicRead(characteristic, value);
+                    } else {
+                        Log.e(TAG, String.format(Locale.ENGLISH, "onCharacteristicReadError(%d)", status));
+                    }
+
+                    onRequestCompleted(status);
 
-            if (mBleRequest.size() > 0) {
-                BLERequest rr = mBleRequest.poll();
-
-                if (rr instanceof ReadRequest) {
-                    readCharacteristic(((ReadRequest) rr).serviceUUID, ((ReadRequest) rr).characteristicUUID);
-                } else if (rr instanceof WriteRequest) {
-                    writeCharacteristic(((WriteRequest) rr).serviceUUID, ((WriteRequest) rr).characteristicUUID, ((WriteRequest) rr).data);
-                } else if (rr instanceof IndicationRequest) {
-                    registerForIndication(((IndicationRequest) rr).serviceUUID, ((IndicationRequest) rr).characteristicUUID, ((IndicationRequest) rr).descriptorUUID);
-                } else if (rr instanceof NotificationRequest) {
-                    registerForNotification(((NotificationRequest) rr).serviceUUID, ((NotificationRequest) rr).characteristicUUID, ((NotificationRequest) rr).descriptorUUID);
                 }
+            });
+
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+
+            final byte[] value = characteristic.getValue();
+
+            /* characteristics of a closed gatt client aren't resolved anymore */
+            final int handle = mHandles.find(characteristic);
 
+            if (value != null && value.length > 0 && handle >= 0) {
+                mIndications.offer(handle, value);
             }
 
-            mQueueHandler.postDelayed(mQueueRunnable, mConnectionSpeed);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            super.onDescriptorRead(gatt, descriptor, status);
+            Log.d(TAG, "onDescriptorRead()");
+        }
 
+        @Override
+        public void onCharacteristicWrite(final BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "onCharacteristicWrite()");
+                    /* forwarded once the request is done, a failed write may still be retried */
+                    if (gatt == mBluetoothGatt) {
+                        onRequestCompleted(status);
+                    }
+                }
+            });
         }
 
-    };
+        @Override
+        public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor descriptor, final int status) {
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "onDescriptorWrite()");
+                    if (gatt == mBluetoothGatt) {
+                        onRequestCompleted(status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+
+                    Log.d(TAG, String.format(Locale.ENGLISH, "onMtuChanged(%d, %d)", mtu, status));
+
+                    if (gatt != mBluetoothGatt) {
+                        return;
+                    }
+
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        mLinkParameters.setMtu(mtu);
+                    }
+
+                    onRequestCompleted(status);
+
+                }
+            });
+        }
+
+        @Override
+        public void onPhyUpdate(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+            runOnLooper(new Runnable() {
+                @Override
+                public void run() {
+
+                    Log.d(TAG, String.format(Locale.ENGLISH, "onPhyUpdate(%d, %d, %d)", txPhy, rxPhy, status));
+
+                    if (gatt == mBluetoothGatt && status == BluetoothGatt.GATT_SUCCESS) {
+                        mLinkParameters.setTxPhy(txPhy);
+                        mLinkParameters.setRxPhy(rxPhy);
+                    }
+
+                }
+            });
+        }
+    };
+
+    /*
+     * Callbacks of a closed gatt client which were still queued are ignored by the callers
+     */
+    private void handleConnectionStateChange(@NonNull BluetoothGatt gatt, int status, int newState) {
+
+        if (!mIsConnected && newState == BluetoothProfile.STATE_CONNECTED) {
+            startSession();
+            mBluetoothGatt.discoverServices();
+            mIsConnected = true;
+        } else if (mIsConnected && newState == BluetoothProfile.STATE_DISCONNECTED && mAutoConnect) {
+            /* keep the gatt client, the controller reconnects as soon as the device advertises again */
+            Log.d(TAG, "link lost, waiting for background reconnect");
+            endSession();
+            gatt.connect();
+        } else if (mIsConnected && newState == BluetoothProfile.STATE_DISCONNECTED) {
+            disconnectFromGatt();
+        } else if (!mIsConnected && newState == BluetoothProfile.STATE_DISCONNECTED) {
+            onConnectionAttemptFailed(status);
+        }
+
+    }
+
+    private void handleServicesDiscovered(@NonNull BluetoothGatt gatt, int status) {
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+
+            mDiscoveryAttempt = 0;
+
+            final List<String> missing = mHandles.resolve(gatt);
+            if (!missing.isEmpty()) {
+                onError(BPMonitorError.TYPE_CONNECTION_ERROR, "device does not provide " + missing);
+                disconnectFromGatt();
+                return;
+            }
+
+            onConnected();
+
+            scheduleNextRequest();
+
+        } else if (mRetryPolicy.shouldRetryConnection(status, mDiscoveryAttempt)) {
+
+            mDiscoveryAttempt++;
+            Log.w(TAG, String.format(Locale.ENGLISH, "onServicesDiscovered received: %d, retry %d", status, mDiscoveryAttempt));
+            mQueueHandler.postDelayed(mDiscoverServicesRunnable, mRetryPolicy.getDelay(status, mDiscoveryAttempt));
+
+        } else {
+
+            /* without services the link is of no use, release it instead of keeping it open */
+            onError(BPMonitorError.TYPE_CONNECTION_ERROR, "onServicesDiscovered received: " + status);
+            disconnectFromGatt();
+
+        }
+
+    }
+
+    @Nullable
+    private static byte[] copyValue(@NonNull BluetoothGattCharacteristic characteristic) {
+
+        final byte[] value = characteristic.getValue();
+        return value != null ? Arrays.copyOf(value, value.length) : null;
+
+    }
+
+    /*
+     * Runs on the looper of the device
+     */
+    private final FrameRing.Consumer mIndicationConsumer = new FrameRing.Consumer() {
+
+        @Override
+        public void onFrame(int tag, @NonNull byte[] buffer, int length) {
+
+            final BluetoothGattCharacteristic characteristic = mHandles.get(tag).gattCharacteristic;
+
+            /* the session ended while the frame was queued */
+            if (!mIsConnected || characteristic == null) {
+                return;
+            }
+
+            Log.d(TAG, "onCharacteristicChanged()");
+            onBytesTransferred(0, length);
+            GenericLEDevice.this.onCharacteristicChanged(characteristic, buffer, length);
+
+        }
+
+    };
+
+    @Override
+    public String toString() {
+        return mDevice != null ? mDevice.toString() : "unknown";
+    }
+
+    private static class BLERequest {
+        int priority;
+        int attempt;
+        long sentAt;
+    }
+
+    private static class ReadRequest extends BLERequest {
+        GattHandleTable.Handle handle;
+    }
+
+    private static class WriteRequest extends BLERequest {
+        GattHandleTable.Handle handle;
+        byte[] data;
+
+        /* may be sent again if the acknowledgement timed out, the device might have applied it already */
+        boolean idempotent;
+
+        /* owner of data, handed back to the pool once the request is done */
+        ByteBuffer buffer;
+        ByteBufferPool pool;
+    }
+
+    private static class IndicationRequest extends BLERequest {
+        GattHandleTable.Handle handle;
+    }
+
+    private static class NotificationRequest extends BLERequest {
+        GattHandleTable.Handle handle;
+    }
+
+    private static class MtuRequest extends BLERequest {
+        int mtu;
+    }
+
+    /* requests may be queued from the main thread and the binder thread, one lane per priority */
+    private final BlockingDeque<BLERequest> mCriticalRequests = new LinkedBlockingDeque<>();
+    private final BlockingDeque<BLERequest> mProtocolRequests = new LinkedBlockingDeque<>();
+    private final BlockingDeque<BLERequest> mBackgroundRequests = new LinkedBlockingDeque<>();
+    private final Object mQueueLock = new Object();
+
+    /* request sent to the device, waiting for its gatt callback */
+    private volatile BLERequest mPendingRequest;
+    private volatile int mPendingStatus;
+
+    public void queueReadCharacteristic(int handle) {
+        queueReadCharacteristic(handle, PRIORITY_PROTOCOL);
+    }
+
+    /*
+     * Reads of a characteristic which is already queued are dropped, the queued read moves up if the new one is more urgent
+     */
+    public void queueReadCharacteristic(int handle, int priority) {
+
+        ReadRequest rr = new ReadRequest();
+        rr.priority = priority;
+        rr.handle = mHandles.get(handle);
+
+        synchronized (mQueueLock) {
+
+            ReadRequest queued = findQueuedRead(mCriticalRequests, rr.handle);
+
+            if (queued == null) {
+                queued = findQueuedRead(mProtocolRequests, rr.handle);
+            }
+
+            if (queued == null) {
+                queued = findQueuedRead(mBackgroundRequests, rr.handle);
+            }
+
+            if (queued != null && queued.priority <= priority) {
+                Log.d(TAG, String.format("read of %s already queued", rr.handle.characteristicUUID));
+                return;
+            }
+
+            if (queued != null) {
+                getLane(queued.priority).remove(queued);
+            }
+
+            getLane(priority).add(rr);
+
+        }
+
+        scheduleNextRequest();
+
+    }
+
+    protected void queueWriteCharacteristic(int handle, @NonNull byte[] data) {
+        queueWriteCharacteristic(handle, data, PRIORITY_PROTOCOL);
+    }
+
+    protected void queueWriteCharacteristic(int handle, @NonNull byte[] data, int priority) {
+        queueWriteCharacteristic(handle, data, priority, false);
+    }
+
+    /*
+     * A write whose acknowledgement timed out fails instead of being repeated, unless it is idempotent.
+     * Writes the device rejected are retried according to the retry policy either way.
+     */
+    protected void queueWriteCharacteristic(int handle, @NonNull byte[] data, int priority, boolean idempotent) {
+
+        WriteRequest rr = new WriteRequest();
+        rr.priority = priority;
+        rr.handle = mHandles.get(handle);
+        rr.data = data;
+        rr.idempotent = idempotent;
+        addRequest(rr);
+
+    }
+
+    /*
+     * Writes the remaining bytes of the buffer. A buffer backed by an array of exactly that size (no offset, position 0)
+     * is referenced by the request instead of copied, it's handed back to the pool after the write completed or was dropped.
+     * Slices, partially filled and direct buffers are copied into a pooled exact size array and handed back right away;
+     * only copies larger than 20 bytes allocate. Pass no pool for buffers the caller keeps.
+     */
+    protected void queueWriteCharacteristic(int handle, @NonNull ByteBuffer data, @Nullable ByteBufferPool pool, int priority) {
+
+        WriteRequest rr = new WriteRequest();
+        rr.priority = priority;
+        rr.handle = mHandles.get(handle);
+
+        if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length) {
+
+            rr.data = data.array();
+            rr.buffer = data;
+            rr.pool = pool;
+
+        } else {
+
+            /* the stack only takes whole arrays */
+            final ByteBuffer copy = mCopyPool.acquire(data.remaining());
+            copy.put(data);
+
+            rr.data = copy.array();
+            rr.buffer = copy;
+            rr.pool = mCopyPool;
+
+            if (pool != null) {
+                pool.release(data);
+            }
+
+        }
+
+        addRequest(rr);
+
+    }
+
+    /*
+     * The handle has to be declared with the client characteristic configuration descriptor
+     */
+    public void queueRegisterForIndication(int handle) {
+
+        IndicationRequest r = new IndicationRequest();
+        r.priority = PRIORITY_CRITICAL;
+        r.handle = mHandles.get(handle);
+        addRequest(r);
+
+    }
+
+    public void queueRegisterForNotification(int handle) {
+
+        NotificationRequest r = new NotificationRequest();
+        r.priority = PRIORITY_CRITICAL;
+        r.handle = mHandles.get(handle);
+        addRequest(r);
+
+    }
+
+
+    private void addRequest(@NonNull BLERequest request) {
+
+        synchronized (mQueueLock) {
+            getLane(request.priority).add(request);
+        }
+
+        scheduleNextRequest();
+
+    }
+
+    @Nullable
+    private static ReadRequest findQueuedRead(@NonNull BlockingDeque<BLERequest> lane, @NonNull GattHandleTable.Handle handle) {
+
+        for (BLERequest request : lane) {
+
+            if (request instanceof ReadRequest && ((ReadRequest) request).handle == handle) {
+                return (ReadRequest) request;
+            }
+
+        }
+
+        return null;
+
+    }
+
+    @NonNull
+    private BlockingDeque<BLERequest> getLane(int priority) {
+
+        switch (priority) {
+
+            case PRIORITY_CRITICAL:
+                return mCriticalRequests;
+
+            case PRIORITY_BACKGROUND:
+                return mBackgroundRequests;
+
+            default:
+                return mProtocolRequests;
+
+        }
+
+    }
+
+    @Nullable
+    private BLERequest pollRequest() {
+
+        synchronized (mQueueLock) {
+
+            BLERequest request = mCriticalRequests.poll();
+
+            if (request == null) {
+                request = mProtocolRequests.poll();
+            }
+
+            if (request == null) {
+                request = mBackgroundRequests.poll();
+            }
+
+            return request;
+
+        }
+
+    }
+
+    private boolean hasRequests() {
+
+        synchronized (mQueueLock) {
+            return !mCriticalRequests.isEmpty() || !mProtocolRequests.isEmpty() || !mBackgroundRequests.isEmpty();
+        }
+
+    }
+
+    private void clearRequests() {
+
+        synchronized (mQueueLock) {
+
+            recycle(mCriticalRequests);
+            recycle(mProtocolRequests);
+            recycle(mBackgroundRequests);
+
+            mCriticalRequests.clear();
+            mProtocolRequests.clear();
+            mBackgroundRequests.clear();
+        }
+
+    }
+
+    private final Handler mQueueHandler;
+    private volatile TimerWheel.Timeout mOperationTimeout;
+
+    /*
+     * Sends the next queued request, unless one is still waiting for its gatt callback
+     */
+    private void scheduleNextRequest() {
+        scheduleNextRequest(0);
+    }
+
+    private void scheduleNextRequest(long minDelay) {
+
+        mQueueHandler.removeCallbacks(mQueueRunnable);
+
+        final PacingController pacing = mPacing;
+        final long delay = Math.max(minDelay, pacing != null ? pacing.getDelay() : mConnectionSpeed);
+
+        if (delay > 0) {
+            mQueueHandler.postDelayed(mQueueRunnable, delay);
+        } else {
+            mQueueHandler.post(mQueueRunnable);
+        }
+
+    }
+
+    /*
+     * Called from the gatt callbacks once the device acknowledged the pending request
+     */
+    private void onRequestCompleted(int status) {
+
+        final PacingController pacing = mPacing;
+        if (pacing != null) {
+            pacing.onRequestAcknowledged(status);
+        }
+
+        mPendingStatus = status;
+        mQueueHandler.post(mRequestCompletedRunnable);
+
+    }
+
+    private final Runnable mQueueRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            /* it was disconnected */
+            if (mDevice == null || !isConnected()) {
+                return;
+            }
+
+            /* only one request in flight, the next one is sent on completion */
+            if (mPendingRequest != null) {
+                return;
+            }
+
+            if (!hasRequests()) {
+
+                if (mDisconnectWhenIdle) {
+                    mDisconnectWhenIdle = false;
+                    closeLink();
+                }
+
+                return;
+            }
+
+            /* with a scheduler it's run again once it's this device's turn */
+            if (!acquireRequestSlot()) {
+                return;
+            }
+
+            BLERequest rr = pollRequest();
+            if (rr == null) {
+                releaseRequestSlot();
+                return;
+            }
+
+            int result = REQUEST_INVALID;
+
+            if (rr instanceof ReadRequest) {
+                result = readCharacteristic(((ReadRequest) rr).handle);
+            } else if (rr instanceof WriteRequest) {
+                result = writeCharacteristic(((WriteRequest) rr).handle, ((WriteRequest) rr).data);
+            } else if (rr instanceof IndicationRequest) {
+                result = writeDescriptor(((IndicationRequest) rr).handle, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+            } else if (rr instanceof NotificationRequest) {
+                result = writeDescriptor(((NotificationRequest) rr).handle, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            } else if (rr instanceof MtuRequest && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                result = requestMtu(((MtuRequest) rr).mtu);
+            }
+
+            final PacingController pacing = mPacing;
+
+            switch (result) {
+
+                case REQUEST_SENT:
+
+                    if (pacing != null) {
+                        pacing.onRequestSent();
+                    }
+
+                    if (rr instanceof WriteRequest) {
+                        onBytesTransferred(((WriteRequest) rr).data.length, 0);
+                    }
+
+                    rr.sentAt = SystemClock.uptimeMillis();
+                    mPendingRequest = rr;
+                    mOperationTimeout = TimerWheel.getDefault().schedule(mOperationTimeoutTask, OPERATION_TIMEOUT);
+                    break;
+
+                case REQUEST_BUSY:
+
+                    if (pacing != null) {
+                        pacing.onRequestDropped();
+                    }
+
+                    /* no callback will arrive for this request */
+                    releaseRequestSlot();
+                    retryOrFail(rr, BluetoothGatt.GATT_FAILURE);
+                    break;
+
+                default:
+
+                    /* characteristic is not available, repeating won't help */
+                    releaseRequestSlot();
+                    onRequestFailed(rr, BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED);
+                    scheduleNextRequest();
+                    break;
+
+            }
+
+        }
+
+    };
+
+    private final Runnable mRequestCompletedRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            final BLERequest request = mPendingRequest;
+            if (request == null) {
+                return;
+            }
+
+            cancelOperationTimeout();
+            mPendingRequest = null;
+            releaseRequestSlot();
+
+            if (mPendingStatus == BluetoothGatt.GATT_SUCCESS) {
+                notifyWriteCompleted(request, BluetoothGatt.GATT_SUCCESS);
+                recycle(request);
+                scheduleNextRequest();
+            } else {
+                retryOrFail(request, mPendingStatus);
+            }
+
+        }
+
+    };
+
+    private void cancelOperationTimeout() {
+
+        final TimerWheel.Timeout timeout = mOperationTimeout;
+        mOperationTimeout = null;
+
+        if (timeout != null) {
+            timeout.cancel();
+        }
+
+        mQueueHandler.removeCallbacks(mOperationTimeoutRunnable);
+
+    }
+
+    /*
+     * Runs on the timer thread
+     */
+    private final Runnable mOperationTimeoutTask = new Runnable() {
+
+        @Override
+        public void run() {
+            mQueueHandler.post(mOperationTimeoutRunnable);
+        }
+
+    };
+
+    private final Runnable mOperationTimeoutRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            final BLERequest pending = mPendingRequest;
+
+            /* fired late for a request which completed meanwhile, the current one has its own timeout */
+            if (pending != null && SystemClock.uptimeMillis() - pending.sentAt < OPERATION_TIMEOUT) {
+                return;
+            }
+
+            mOperationTimeout = null;
+
+            Log.w(TAG, "request was not acknowledged, continuing with next request");
+
+            final PacingController pacing = mPacing;
+            if (pacing != null) {
+                pacing.onRequestDropped();
+            }
+
+            final BLERequest request = mPendingRequest;
+            mPendingRequest = null;
+            releaseRequestSlot();
+
+            if (request == null) {
+                scheduleNextRequest();
+            } else if (request instanceof WriteRequest && !((WriteRequest) request).idempotent) {
+                /* the device may have applied the write, sending it again could run a command twice */
+                onRequestFailed(request, BluetoothGatt.GATT_FAILURE);
+                scheduleNextRequest();
+            } else {
+                retryOrFail(request, BluetoothGatt.GATT_FAILURE);
+            }
+
+        }
+
+    };
+
+    /*
+     * Puts a failed request back to the head of the queue, or gives up if the policy doesn't allow another attempt
+     */
+    private void retryOrFail(@NonNull BLERequest request, int status) {
+
+        if (mRetryPolicy.shouldRetry(status, request.attempt)) {
+
+            request.attempt++;
+            Log.w(TAG, String.format(Locale.ENGLISH, "request failed with status %d, retry %d", status, request.attempt));
+
+            synchronized (mQueueLock) {
+                getLane(request.priority).addFirst(request);
+            }
+
+            scheduleNextRequest(mRetryPolicy.getDelay(status, request.attempt));
+
+        } else {
+
+            onRequestFailed(request, status);
+            scheduleNextRequest();
+
+        }
+
+    }
+
+    private void onRequestFailed(@NonNull BLERequest request, int status) {
+
+        final String msg = String.format(Locale.ENGLISH, "%s failed with status %d after %d attempts", request.getClass().getSimpleName(), status, request.attempt + 1);
+        Log.e(TAG, msg);
+
+        notifyWriteCompleted(request, status);
+        recycle(request);
+        onError(request instanceof ReadRequest ? BPMonitorError.TYPE_READ_ERROR : BPMonitorError.TYPE_WRITE_ERROR, msg);
+
+    }
+
+    /*
+     * Forwards the final outcome of a write, retried attempts are not reported
+     */
+    private void notifyWriteCompleted(@NonNull BLERequest request, int status) {
+
+        if (!(request instanceof WriteRequest)) {
+            return;
+        }
+
+        final BluetoothGattCharacteristic characteristic = ((WriteRequest) request).handle.gattCharacteristic;
+        if (characteristic != null) {
+            onCharacteristicWrite(characteristic, status);
+        }
+
+    }
+
+    /*
+     * Hands the pooled buffer of a finished write request back
+     */
+    private static void recycle(@NonNull BLERequest request) {
+
+        if (!(request instanceof WriteRequest)) {
+            return;
+        }
+
+        final WriteRequest wr = (WriteRequest) request;
+        final ByteBufferPool pool = wr.pool;
+        wr.pool = null;
+
+        if (pool != null) {
+            pool.release(wr.buffer);
+        }
+
+        wr.buffer = null;
+
+    }
+
+    private static void recycle(@NonNull BlockingDeque<BLERequest> lane) {
+
+        for (BLERequest request : lane) {
+            recycle(request);
+        }
+
+    }
+
+    private void onConnectionAttemptFailed(int status) {
+
+        closeGatt();
+
+        if (mRetryPolicy.shouldRetryConnection(status, mConnectionAttempt)) {
+
+            mConnectionAttempt++;
+            Log.w(TAG, String.format(Locale.ENGLISH, "connecting failed with status %d, retry %d", status, mConnectionAttempt));
+            mQueueHandler.postDelayed(mReconnectRunnable, mRetryPolicy.getDelay(status, mConnectionAttempt));
+
+        } else {
+
+            stopScanRace();
+            onError(BPMonitorError.TYPE_CONNECTION_ERROR, "connecting failed with status " + status);
+            onConnectionClosed();
+
+        }
+
+    }
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            /* GATT_ERROR requires a fresh gatt client, reusing the closed one won't connect */
+            if (!mIsConnected && mBluetoothGatt == null && mContext != null) {
+                openGatt(mAutoConnect);
+            }
+
+        }
+
+    };
+
+    private final Runnable mDiscoverServicesRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            if (mIsConnected && mBluetoothGatt != null) {
+                mBluetoothGatt.discoverServices();
+            }
+
+        }
+
+    };
+
+    /*
+     * Called once the link is up, before services are discovered
+     */
+    protected void onLinkEstablished() {
+
+    }
 
     protected abstract void onConnected();
 
     protected abstract void onDisconnected();
 
-    protected abstract void onCharacteristicRead(BluetoothGattCharacteristic characteristics);
+    /*
+     * Called on the looper of the device, value is the copy taken when the response arrived
+     */
+    protected abstract void onCharacteristicRead(BluetoothGattCharacteristic characteristic, @Nullable byte[] value);
 
-    protected abstract void onCharacteristicChanged(BluetoothGattCharacteristic characteristic);
+    /*
+     * Called on the looper of the device, buffer holds the value the indication arrived with and is only valid during the call
+     */
+    protected abstract void onCharacteristicChanged(BluetoothGattCharacteristic characteristic, @NonNull byte[] buffer, int length);
 
+    /*
+     * Called once per write request on the looper of the device, with GATT_SUCCESS or the status of the last failed attempt
+     */
     protected abstract void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status);
 
-    protected abstract void onError(String msg);
+    protected abstract void onError(int type, String msg);
 
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/*
+ * Adapts the delay between two gatt requests of one connection.
+ * The delay shrinks while the device acknowledges requests and backs off on failed or dropped requests.
+ * It doesn't shrink below half the average acknowledgement latency, a device which needs that long to answer can't take
+ * requests faster, and holds while an acknowledgement takes more than twice the average.
+ * The lowest delay which was stable during a connection is remembered per mac address.
+ */
+class PacingController {
+
+    private static final String TAG = PacingController.class.getSimpleName();
+
+    private static final String PREFERENCES = "com.tangentlines.bpmonitor.pacing";
+
+    static final int DEFAULT_DELAY = 100;
+
+    private static final int MIN_DELAY = 0;
+    private static final int MAX_DELAY = 1000;
+    private static final int MIN_BACKOFF = 50;
+    private static final int MIN_STEP = 5;
+
+    /* number of acknowledged requests in a row before a delay counts as stable */
+    private static final int STABLE_SUCCESSES = 8;
+
+    /* the average latency follows each new sample by 1/8, it is kept scaled by 8 to stay exact in integers */
+    private static final int LATENCY_SHIFT = 3;
+
+    private final String mMacAddress;
+
+    private int mDelay;
+    private int mBestDelay = -1;
+    private int mSuccessesInRow = 0;
+
+    private long mSentAt = 0;
+    private long mScaledLatency = -1;
+    private int mAcknowledged = 0;
+    private int mFailed = 0;
+    private int mDropped = 0;
+
+    private PacingController(String macAddress, int initialDelay) {
+        this.mMacAddress = macAddress;
+        this.mDelay = clamp(initialDelay);
+    }
+
+    /*
+     * Creates a controller which starts at the best delay remembered for the given device
+     */
+    static PacingController restore(Context context, String macAddress, int fallbackDelay) {
+
+        int delay = fallbackDelay;
+
+        if (context != null && macAddress != null) {
+            delay = getPreferences(context).getInt(macAddress, fallbackDelay);
+        }
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "starting %s with a delay of %d ms", macAddress, delay));
+        return new PacingController(macAddress, delay);
+
+    }
+
+    /*
+     * Remembers the best stable delay of this connection for the next session
+     */
+    synchronized void persist(Context context) {
+
+        Log.d(TAG, toString());
+
+        if (context == null || mMacAddress == null || mBestDelay < 0) {
+            return;
+        }
+
+        getPreferences(context).edit().putInt(mMacAddress, mBestDelay).apply();
+
+    }
+
+    synchronized int getDelay() {
+        return mDelay;
+    }
+
+    synchronized void onRequestSent() {
+        mSentAt = SystemClock.elapsedRealtime();
+    }
+
+    synchronized void onRequestAcknowledged(int status) {
+
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mFailed++;
+            backOff();
+            return;
+        }
+
+        mAcknowledged++;
+
+        if (mSentAt > 0) {
+
+            final long latency = SystemClock.elapsedRealtime() - mSentAt;
+            mSentAt = 0;
+
+            if (mScaledLatency < 0) {
+                mScaledLatency = latency << LATENCY_SHIFT;
+            } else {
+
+                final long average = mScaledLatency >> LATENCY_SHIFT;
+                mScaledLatency += latency - average;
+
+                /* the device falls behind, keep the delay until its latency settles */
+                if (latency > 2 * average && latency > MIN_STEP) {
+                    mSuccessesInRow = 0;
+                    return;
+                }
+
+            }
+
+        }
+
+        mSuccessesInRow++;
+
+        if (mSuccessesInRow >= STABLE_SUCCESSES) {
+
+            if (mBestDelay < 0 || mDelay < mBestDelay) {
+                mBestDelay = mDelay;
+            }
+
+            mSuccessesInRow = 0;
+
+        }
+
+        final int floor = (int) Math.min(MAX_DELAY, getAverageLatency() / 2);
+        mDelay = Math.max(Math.min(mDelay, floor), clamp(mDelay - Math.max(MIN_STEP, mDelay / 8)));
+
+    }
+
+    /*
+     * The request could not be sent or its callback never arrived
+     */
+    synchronized void onRequestDropped() {
+        mDropped++;
+        mSentAt = 0;
+        backOff();
+    }
+
+    synchronized long getAverageLatency() {
+        return mScaledLatency > 0 ? mScaledLatency >> LATENCY_SHIFT : 0;
+    }
+
+    synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    synchronized int getDroppedCount() {
+        return mDropped;
+    }
+
+    private void backOff() {
+        mSuccessesInRow = 0;
+        mDelay = clamp(Math.max(MIN_BACKOFF, mDelay * 2));
+    }
+
+    private static int clamp(int delay) {
+        return Math.max(MIN_DELAY, Math.min(MAX_DELAY, delay));
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "PacingController{mac=%s, delay=%d, best=%d, acknowledged=%d, failed=%d, dropped=%d, latency=%d}",
+                mMacAddress, mDelay, mBestDelay, mAcknowledged, mFailed, mDropped, getAverageLatency());
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.support.annotation.NonNull;
+
+/*
+ * Coordinates the gatt requests of several devices sharing the same radio.
+ * A device has to hold a slot while one of its requests is in flight.
+ */
+interface RadioScheduler {
+
+    /*
+     * Returns true if the device may send a request now, otherwise the device is put in line
+     * and GenericLEDevice.onRequestSlotGranted() is called once it's its turn
+     */
+    boolean acquireRequestSlot(@NonNull GenericLEDevice device);
+
+    /*
+     * The request of the device completed or the device left the line
+     */
+    void releaseRequestSlot(@NonNull GenericLEDevice device);
+
+    void onBytesTransferred(@NonNull GenericLEDevice device, int sent, int received);
+
+    /*
+     * The gatt client of the device was closed for good, its connection slot is free again
+     */
+    void onConnectionClosed(@NonNull GenericLEDevice device);
+
+}
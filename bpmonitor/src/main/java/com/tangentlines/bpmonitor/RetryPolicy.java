@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * Decides if and when a failed gatt request or connection attempt is repeated.
+ * Delays grow exponentially with every attempt and are randomized to avoid retrying in lockstep.
+ */
+public class RetryPolicy {
+
+    /* undocumented android status, reported for most link and stack failures */
+    public static final int GATT_ERROR = 0x85;
+
+    /* the android stack needs some time to clean up after GATT_ERROR */
+    private static final int GATT_ERROR_MIN_DELAY = 500;
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 2, 100, 2000);
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0, 0);
+
+    private static final Random sRandom = new Random();
+
+    private final int maxRetries;
+    private final int maxConnectionRetries;
+    private final int initialDelay;
+    private final int maxDelay;
+
+    /*
+     * maxRetries: retries of a single read or write request
+     * maxConnectionRetries: retries of connecting and service discovery
+     * initialDelay, maxDelay: bounds of the exponential backoff in ms
+     */
+    public RetryPolicy(int maxRetries, int maxConnectionRetries, int initialDelay, int maxDelay) {
+
+        if (maxRetries < 0 || maxConnectionRetries < 0 || initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("invalid retry policy");
+        }
+
+        this.maxRetries = maxRetries;
+        this.maxConnectionRetries = maxConnectionRetries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public int getMaxConnectionRetries() {
+        return maxConnectionRetries;
+    }
+
+    /*
+     * Errors reported by the device itself won't go away by repeating the request
+     */
+    public boolean isTransient(int status) {
+
+        switch (status) {
+
+            case BluetoothGatt.GATT_READ_NOT_PERMITTED:
+            case BluetoothGatt.GATT_WRITE_NOT_PERMITTED:
+            case BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION:
+            case BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED:
+            case BluetoothGatt.GATT_INVALID_OFFSET:
+            case BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH:
+            case BluetoothGatt.GATT_INSUFFICIENT_ENCRYPTION:
+                return false;
+
+        }
+
+        return true;
+
+    }
+
+    boolean shouldRetry(int status, int attempt) {
+        return attempt < maxRetries && isTransient(status);
+    }
+
+    boolean shouldRetryConnection(int status, int attempt) {
+        return attempt < maxConnectionRetries && isTransient(status);
+    }
+
+    /*
+     * Delay before the given attempt (starting at 1), with up to half of it randomized
+     */
+    long getDelay(int status, int attempt) {
+
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+
+        delay = Math.min(delay, maxDelay);
+        delay = delay / 2 + (long) (sRandom.nextFloat() * (delay / 2 + 1));
+
+        if (status == GATT_ERROR) {
+            delay = Math.max(delay, GATT_ERROR_MIN_DELAY);
+        }
+
+        return delay;
+
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "RetryPolicy{maxRetries=%d, maxConnectionRetries=%d, initialDelay=%d, maxDelay=%d}",
+                maxRetries, maxConnectionRetries, initialDelay, maxDelay);
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Short low latency scan for a single mac address, run next to a direct connection attempt.
+ * The stack only knows the address type of a device it has seen before, so a direct connect to
+ * an address it hasn't seen since booting may never complete. The scan result includes it.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+class ScanRace {
+
+    private static final String TAG = ScanRace.class.getSimpleName();
+
+    interface Listener {
+
+        void onDeviceFound(@NonNull BluetoothDevice device);
+
+    }
+
+    private final String mMacAddress;
+    private final Listener mListener;
+    private final Handler mHandler;
+
+    private BluetoothLeScanner mScanner;
+
+    ScanRace(@NonNull String macAddress, @NonNull Listener listener, @NonNull Handler handler) {
+        this.mMacAddress = macAddress;
+        this.mListener = listener;
+        this.mHandler = handler;
+    }
+
+    /*
+     * Returns false if scanning is not possible, e.g. bluetooth is off or the location permission is missing
+     */
+    boolean start(long timeout) {
+
+        if (mScanner != null) {
+            return true;
+        }
+
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        final BluetoothLeScanner scanner = adapter != null && adapter.isEnabled() ? adapter.getBluetoothLeScanner() : null;
+
+        if (scanner == null) {
+            return false;
+        }
+
+        final List<ScanFilter> filters = Collections.singletonList(new ScanFilter.Builder().setDeviceAddress(mMacAddress).build());
+        final ScanSettings settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
+
+        try {
+            scanner.startScan(filters, settings, mScanCallback);
+        } catch (Exception e) {
+            Log.e(TAG, "startScan() failed", e);
+            return false;
+        }
+
+        mScanner = scanner;
+        mHandler.postDelayed(mStopRunnable, timeout);
+
+        return true;
+
+    }
+
+    void stop() {
+
+        mHandler.removeCallbacks(mStopRunnable);
+
+        final BluetoothLeScanner scanner = mScanner;
+        mScanner = null;
+
+        if (scanner == null) {
+            return;
+        }
+
+        try {
+            scanner.stopScan(mScanCallback);
+        } catch (Exception e) {
+            /* throws if bluetooth was turned off meanwhile */
+            Log.w(TAG, "stopScan() failed", e);
+        }
+
+    }
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+
+        @Override
+        public void onScanResult(int callbackType, final ScanResult result) {
+
+            mHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    /* only the first result counts */
+                    if (mScanner != null) {
+                        stop();
+                        mListener.onDeviceFound(result.getDevice());
+                    }
+
+                }
+
+            });
+
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "scan failed with error " + errorCode);
+            mHandler.post(mStopRunnable);
+        }
+
+    };
+
+    private final Runnable mStopRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            stop();
+        }
+
+    };
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import android.support.annotation.NonNull;
+
+import com.tangentlines.bpmonitor.callbacks.Publisher;
+import com.tangentlines.bpmonitor.callbacks.Subscriber;
+import com.tangentlines.bpmonitor.callbacks.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/*
+ * Hot publisher which hands every published item to all current subscribers.
+ * Each subscription buffers at most bufferSize items which weren't requested yet, the buffer never grows beyond that.
+ * What happens to a subscriber falling further behind is the overflow policy: with BPMonitor.STREAM_OVERFLOW_FAIL its
+ * buffered items are discarded and it receives onError(), with BPMonitor.STREAM_OVERFLOW_DROP_OLDEST the oldest buffered
+ * item makes room for the new one and the subscription stays intact. Signals are delivered through the executor by one
+ * task per subscription at a time, no matter how many items are waiting.
+ */
+class StreamPublisher<T> implements Publisher<T> {
+
+    private final Executor mExecutor;
+    private final int mBufferSize;
+    private final List<StreamSubscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    private volatile boolean mTerminated = false;
+    private volatile int mOverflow = BPMonitor.STREAM_OVERFLOW_FAIL;
+
+    StreamPublisher(@NonNull Executor executor, int bufferSize) {
+        this.mExecutor = executor;
+        this.mBufferSize = bufferSize;
+    }
+
+    /*
+     * Applies to items published afterwards, existing subscriptions included
+     */
+    void setOverflow(int overflow) {
+        this.mOverflow = overflow;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber must not be null");
+        }
+
+        final StreamSubscription subscription = new StreamSubscription(subscriber);
+        mSubscriptions.add(subscription);
+
+        /* completed meanwhile, complete() may have missed the subscription */
+        if (mTerminated) {
+            subscription.complete();
+        }
+
+        subscription.schedule();
+
+    }
+
+    void publish(@NonNull T item) {
+
+        for (StreamSubscription subscription : mSubscriptions) {
+            subscription.offer(item);
+        }
+
+    }
+
+    /*
+     * Completes all subscriptions after their buffered items, later subscribers are completed right away
+     */
+    void complete() {
+
+        mTerminated = true;
+
+        for (StreamSubscription subscription : mSubscriptions) {
+            subscription.complete();
+        }
+
+    }
+
+    private class StreamSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super T> mSubscriber;
+        private final ArrayDeque<T> mBuffer = new ArrayDeque<>();
+
+        /* guarded by this */
+        private long mRequested = 0;
+        private boolean mScheduled = false;
+        private boolean mCompleted = false;
+        private boolean mCancelled = false;
+        private Throwable mError;
+
+        /* only accessed by the running drain task */
+        private boolean mSubscribed = false;
+
+        StreamSubscription(@NonNull Subscriber<? super T> subscriber) {
+            this.mSubscriber = subscriber;
+        }
+
+        void offer(@NonNull T item) {
+
+            synchronized (this) {
+
+                if (mCancelled || mCompleted || mError != null) {
+                    return;
+                }
+
+                if (mBuffer.size() < mBufferSize) {
+                    mBuffer.add(item);
+                } else if (mOverflow == BPMonitor.STREAM_OVERFLOW_DROP_OLDEST) {
+                    mBuffer.poll();
+                    mBuffer.add(item);
+                } else {
+                    fail(new IllegalStateException(String.format("subscriber fell behind by more than %d items", mBufferSize)));
+                }
+
+            }
+
+            schedule();
+
+        }
+
+        void complete() {
+
+            synchronized (this) {
+                mCompleted = true;
+            }
+
+            schedule();
+
+        }
+
+        @Override
+        public void request(long n) {
+
+            synchronized (this) {
+
+                if (mCancelled) {
+                    return;
+                }
+
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("requested " + n + " items, the request must be positive"));
+                } else {
+                    mRequested += n;
+
+                    /* overflow means unbounded */
+                    if (mRequested < 0) {
+                        mRequested = Long.MAX_VALUE;
+                    }
+                }
+
+            }
+
+            schedule();
+
+        }
+
+        @Override
+        public void cancel() {
+
+            synchronized (this) {
+                mCancelled = true;
+                mBuffer.clear();
+            }
+
+            mSubscriptions.remove(this);
+
+        }
+
+        /*
+         * Called with the lock held
+         */
+        private void fail(@NonNull Throwable error) {
+            mError = error;
+            mBuffer.clear();
+        }
+
+        void schedule() {
+
+            synchronized (this) {
+
+                if (mScheduled || mCancelled) {
+                    return;
+                }
+
+                mScheduled = true;
+
+            }
+
+            mExecutor.execute(this);
+
+        }
+
+        /*
+         * Drains the buffer as far as requested, signals raised meanwhile are picked up by the loop
+         */
+        @Override
+        public void run() {
+
+            if (!mSubscribed) {
+                mSubscribed = true;
+                mSubscriber.onSubscribe(this);
+            }
+
+            while (true) {
+
+                final T item;
+                final Throwable error;
+                final boolean completed;
+
+                synchronized (this) {
+
+                    if (mCancelled) {
+                        mScheduled = false;
+                        return;
+                    }
+
+                    error = mError;
+                    completed = mCompleted && mBuffer.isEmpty();
+
+                    if (error != null || completed) {
+                        mCancelled = true;
+                        mScheduled = false;
+                        item = null;
+                    } else if (mRequested > 0 && !mBuffer.isEmpty()) {
+                        item = mBuffer.poll();
+
+                        if (mRequested != Long.MAX_VALUE) {
+                            mRequested--;
+                        }
+                    } else {
+                        mScheduled = false;
+                        return;
+                    }
+
+                }
+
+                if (error != null) {
+                    mSubscriptions.remove(this);
+                    mSubscriber.onError(error);
+                    return;
+                }
+
+                if (completed) {
+                    mSubscriptions.remove(this);
+                    mSubscriber.onComplete();
+                    return;
+                }
+
+                mSubscriber.onNext(item);
+
+            }
+
+        }
+
+    }
+
+}
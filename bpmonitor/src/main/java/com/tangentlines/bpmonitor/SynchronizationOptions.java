@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+/*
+ * Options of a synchronization, created by SynchronizationOptions.Builder
+ */
+public class SynchronizationOptions {
+
+    /* device information fields */
+    public static final int FIELD_MANUFACTURER = 0x1;
+    public static final int FIELD_MODEL_NUMBER = 0x2;
+    public static final int FIELD_SERIAL_NUMBER = 0x4;
+    public static final int FIELD_FIRMWARE_REVISION = 0x8;
+    public static final int FIELD_HARDWARE_REVISION = 0x10;
+    public static final int FIELD_SOFTWARE_REVISION = 0x20;
+
+    public static final int FIELDS_NONE = 0x0;
+    public static final int FIELDS_ALL = 0x3f;
+
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final long DEFAULT_BATCH_WINDOW = 1000;
+
+    public static final SynchronizationOptions DEFAULT = new Builder().create();
+
+    private final boolean fastPath;
+    private final int deviceInformationFields;
+    private final long idleTimeout;
+    private final int expectedReadings;
+    private final boolean disconnectWhenFinished;
+    private final int batchSize;
+    private final long batchWindow;
+
+    private SynchronizationOptions(boolean fastPath, int deviceInformationFields, long idleTimeout, int expectedReadings, boolean disconnectWhenFinished, int batchSize, long batchWindow) {
+        this.fastPath = fastPath;
+        this.deviceInformationFields = deviceInformationFields;
+        this.idleTimeout = idleTimeout;
+        this.expectedReadings = expectedReadings;
+        this.disconnectWhenFinished = disconnectWhenFinished;
+        this.batchSize = batchSize;
+        this.batchWindow = batchWindow;
+    }
+
+    public boolean isFastPath() {
+        return fastPath;
+    }
+
+    public int getDeviceInformationFields() {
+        return deviceInformationFields;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int getExpectedReadings() {
+        return expectedReadings;
+    }
+
+    public boolean isDisconnectWhenFinished() {
+        return disconnectWhenFinished;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    public static class Builder {
+
+        private boolean fastPath = false;
+        private int deviceInformationFields = FIELDS_ALL;
+        private long idleTimeout = 0;
+        private int expectedReadings = 0;
+        private boolean disconnectWhenFinished = true;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private long batchWindow = DEFAULT_BATCH_WINDOW;
+
+        public Builder() {
+
+        }
+
+        /*
+         * Registers for indications and answers the challenge right away,
+         * the device information is only read once the readings were requested
+         */
+        public Builder setFastPath(boolean fastPath) {
+            this.fastPath = fastPath;
+            return this;
+        }
+
+        /*
+         * Device information fields read by the fast path, a combination of the FIELD_ flags
+         */
+        public Builder setDeviceInformationFields(int fields) {
+            this.deviceInformationFields = fields;
+            return this;
+        }
+
+        /*
+         * The transfer is finished if no reading arrived for this time in ms,
+         * 0 uses the transfer idle deadline of the monitor (see Deadlines)
+         */
+        public Builder setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /*
+         * The transfer is finished as soon as this number of readings arrived, 0 if unknown
+         */
+        public Builder setExpectedReadings(int expectedReadings) {
+            this.expectedReadings = expectedReadings;
+            return this;
+        }
+
+        /*
+         * Closes the link right after the transfer finished, enabled by default
+         */
+        public Builder setDisconnectWhenFinished(boolean disconnectWhenFinished) {
+            this.disconnectWhenFinished = disconnectWhenFinished;
+            return this;
+        }
+
+        /*
+         * Maximum number of readings delivered to BatchSynchronizationCallbacks at once
+         */
+        public Builder setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /*
+         * Maximum time in ms a reading is held back by BatchSynchronizationCallbacks to fill its batch
+         */
+        public Builder setBatchWindow(long batchWindow) {
+            this.batchWindow = batchWindow;
+            return this;
+        }
+
+        public SynchronizationOptions create() {
+
+            if ((deviceInformationFields & ~FIELDS_ALL) != 0) {
+                throw new IllegalArgumentException("unknown device information fields");
+            }
+
+            if (idleTimeout < 0) {
+                throw new IllegalArgumentException("idle timeout must not be negative");
+            }
+
+            if (expectedReadings < 0) {
+                throw new IllegalArgumentException("expected readings must not be negative");
+            }
+
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batch size must be positive");
+            }
+
+            if (batchWindow <= 0) {
+                throw new IllegalArgumentException("batch window must be positive");
+            }
+
+            return new SynchronizationOptions(fastPath, deviceInformationFields, idleTimeout, expectedReadings, disconnectWhenFinished, batchSize, batchWindow);
+
+        }
+
+    }
+
+}
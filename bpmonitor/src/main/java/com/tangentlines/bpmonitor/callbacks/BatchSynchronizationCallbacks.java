@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.callbacks;
+
+import com.tangentlines.bpmonitor.BPMonitor;
+import com.tangentlines.bpmonitor.model.BloodPressureReading;
+
+import java.util.List;
+
+/*
+ * Receives the readings in batches instead of one by one, onReadingReceived() is not called.
+ * A batch is delivered when it reaches the batch size, when its batch window elapsed and at the end of the transfer
+ * (see SynchronizationOptions).
+ */
+public interface BatchSynchronizationCallbacks extends SynchronizationCallbacks {
+
+    void onReadingsReceived(BPMonitor device, List<BloodPressureReading> readings);
+
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.callbacks;
+
+/*
+ * Source of a stream of items, shaped like org.reactivestreams.Publisher so adapters to other stream libraries are one-liners.
+ * Every subscriber receives the items published after it subscribed, as many as it requested.
+ */
+public interface Publisher<T> {
+
+    void subscribe(Subscriber<? super T> subscriber);
+
+}
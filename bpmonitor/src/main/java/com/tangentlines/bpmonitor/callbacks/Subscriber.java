@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.callbacks;
+
+/*
+ * Receives the items of a Publisher, the signals of one subscription are never called concurrently
+ */
+public interface Subscriber<T> {
+
+    /*
+     * Called first, no items are delivered before they are requested through the subscription
+     */
+    void onSubscribe(Subscription subscription);
+
+    void onNext(T item);
+
+    /*
+     * The subscription failed, e.g. because the subscriber didn't request items fast enough, no further signals follow
+     */
+    void onError(Throwable throwable);
+
+    void onComplete();
+
+}
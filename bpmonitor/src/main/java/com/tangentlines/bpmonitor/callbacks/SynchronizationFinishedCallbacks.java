@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.callbacks;
+
+import com.tangentlines.bpmonitor.BPMonitor;
+
+/*
+ * Is told when the transfer finished, with the number of readings received and the transfer duration in ms.
+ * Called after the last reading (or batch) was delivered.
+ */
+public interface SynchronizationFinishedCallbacks extends SynchronizationCallbacks {
+
+    void onSynchronizationFinished(BPMonitor device, int readingCount, long duration);
+
+}
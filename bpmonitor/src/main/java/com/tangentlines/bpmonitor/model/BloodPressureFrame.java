@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.model;
+
+import com.tangentlines.bpmonitor.BloodPressureFrameDecoder;
+
+import java.util.Date;
+
+/*
+ * Mutable blood pressure measurement, filled by BloodPressureFrameDecoder and reused for every frame.
+ * The decoder is generated from src/main/schema/blood_pressure_measurement.frame and calls a setter per field.
+ * Fields which are not part of the frame are 0.
+ */
+public class BloodPressureFrame {
+
+    private int flags;
+    private float systolic;
+    private float diastolic;
+    private float meanArterialPressure;
+    private long timestamp;
+    private float pulseRate;
+    private int userId;
+    private int measurementStatus;
+    private int battery;
+
+    /* the SFLOAT values as sent, see Ieee11073Float for the fixed point mantissa and exponent */
+    private int rawSystolic;
+    private int rawDiastolic;
+    private int rawMeanArterialPressure;
+    private int rawPulseRate;
+
+    public void clear() {
+        flags = 0;
+        systolic = 0;
+        diastolic = 0;
+        meanArterialPressure = 0;
+        timestamp = 0;
+        pulseRate = 0;
+        userId = 0;
+        measurementStatus = 0;
+        battery = 0;
+        rawSystolic = 0;
+        rawDiastolic = 0;
+        rawMeanArterialPressure = 0;
+        rawPulseRate = 0;
+    }
+
+    /*
+     * The flags byte of the frame, see BloodPressureFrameDecoder.FLAG_
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    public float getSystolic() {
+        return systolic;
+    }
+
+    public void setSystolic(float systolic) {
+        this.systolic = systolic;
+    }
+
+    public float getDiastolic() {
+        return diastolic;
+    }
+
+    public void setDiastolic(float diastolic) {
+        this.diastolic = diastolic;
+    }
+
+    public float getMeanArterialPressure() {
+        return meanArterialPressure;
+    }
+
+    public void setMeanArterialPressure(float meanArterialPressure) {
+        this.meanArterialPressure = meanArterialPressure;
+    }
+
+    /*
+     * Time of the measurement in ms since 1970, 0 if the frame has no timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public float getPulseRate() {
+        return pulseRate;
+    }
+
+    public void setPulseRate(float pulseRate) {
+        this.pulseRate = pulseRate;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
+
+    /*
+     * The measurement status bits of the frame, see BloodPressureFrameDecoder.STATUS_
+     */
+    public int getMeasurementStatus() {
+        return measurementStatus;
+    }
+
+    public void setMeasurementStatus(int measurementStatus) {
+        this.measurementStatus = measurementStatus;
+    }
+
+    public boolean isIrregularPulse() {
+        return (measurementStatus & BloodPressureFrameDecoder.STATUS_IRREGULAR_PULSE) != 0;
+    }
+
+    public void setIrregularPulse(boolean irregularPulse) {
+        if (irregularPulse) {
+            measurementStatus |= BloodPressureFrameDecoder.STATUS_IRREGULAR_PULSE;
+        } else {
+            measurementStatus &= ~BloodPressureFrameDecoder.STATUS_IRREGULAR_PULSE;
+        }
+    }
+
+    public int getBattery() {
+        return battery;
+    }
+
+    public void setBattery(int battery) {
+        this.battery = battery;
+    }
+
+    public int getRawSystolic() {
+        return rawSystolic;
+    }
+
+    public void setRawSystolic(int rawSystolic) {
+        this.rawSystolic = rawSystolic;
+    }
+
+    public int getRawDiastolic() {
+        return rawDiastolic;
+    }
+
+    public void setRawDiastolic(int rawDiastolic) {
+        this.rawDiastolic = rawDiastolic;
+    }
+
+    public int getRawMeanArterialPressure() {
+        return rawMeanArterialPressure;
+    }
+
+    public void setRawMeanArterialPressure(int rawMeanArterialPressure) {
+        this.rawMeanArterialPressure = rawMeanArterialPressure;
+    }
+
+    public int getRawPulseRate() {
+        return rawPulseRate;
+    }
+
+    public void setRawPulseRate(int rawPulseRate) {
+        this.rawPulseRate = rawPulseRate;
+    }
+
+    /*
+     * Immutable copy for the callbacks
+     */
+    public BloodPressureReading toReading() {
+        return new BloodPressureReading(userId, timestamp != 0 ? new Date(timestamp) : null, systolic, diastolic, meanArterialPressure, pulseRate, isIrregularPulse(), battery);
+    }
+
+    @Override
+    public String toString() {
+        return "BloodPressureFrame{" +
+                "flags=" + flags +
+                ", systolic=" + systolic +
+                ", diastolic=" + diastolic +
+                ", meanArterialPressure=" + meanArterialPressure +
+                ", timestamp=" + timestamp +
+                ", pulseRate=" + pulseRate +
+                ", userId=" + userId +
+                ", measurementStatus=" + measurementStatus +
+                ", battery=" + battery +
+                '}';
+    }
+
+}
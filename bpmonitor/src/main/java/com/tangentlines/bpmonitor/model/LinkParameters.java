@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/*
+ * Link parameters negotiated with the device, values are 0 until they were negotiated
+ */
+public class LinkParameters implements Parcelable {
+
+    private int mtu;
+    private int txPhy;
+    private int rxPhy;
+    private int connectionPriority;
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public void setTxPhy(int txPhy) {
+        this.txPhy = txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    public void setRxPhy(int rxPhy) {
+        this.rxPhy = rxPhy;
+    }
+
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    public void setConnectionPriority(int connectionPriority) {
+        this.connectionPriority = connectionPriority;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(this.mtu);
+        dest.writeInt(this.txPhy);
+        dest.writeInt(this.rxPhy);
+        dest.writeInt(this.connectionPriority);
+    }
+
+    public LinkParameters() {
+    }
+
+    protected LinkParameters(Parcel in) {
+        this.mtu = in.readInt();
+        this.txPhy = in.readInt();
+        this.rxPhy = in.readInt();
+        this.connectionPriority = in.readInt();
+    }
+
+    public static final Parcelable.Creator<LinkParameters> CREATOR = new Parcelable.Creator<LinkParameters>() {
+        @Override
+        public LinkParameters createFromParcel(Parcel source) {
+            return new LinkParameters(source);
+        }
+
+        @Override
+        public LinkParameters[] newArray(int size) {
+            return new LinkParameters[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "LinkParameters{" +
+                "mtu=" + mtu +
+                ", txPhy=" + txPhy +
+                ", rxPhy=" + rxPhy +
+                ", connectionPriority=" + connectionPriority +
+                '}';
+    }
+
+}
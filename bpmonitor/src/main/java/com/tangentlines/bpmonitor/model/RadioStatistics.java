@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/*
+ * Aggregated traffic of all devices of a BPMonitorManager since the statistics were reset
+ */
+public class RadioStatistics implements Parcelable {
+
+    private int connections;
+    private int waitingConnections;
+    private long requests;
+    private long bytesSent;
+    private long bytesReceived;
+    private long duration;
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public int getWaitingConnections() {
+        return waitingConnections;
+    }
+
+    public void setWaitingConnections(int waitingConnections) {
+        this.waitingConnections = waitingConnections;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public void setRequests(long requests) {
+        this.requests = requests;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public void setBytesSent(long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public void setBytesReceived(long bytesReceived) {
+        this.bytesReceived = bytesReceived;
+    }
+
+    /*
+     * Time in ms the statistics cover
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    public float getRequestsPerSecond() {
+        return duration > 0 ? requests * 1000f / duration : 0;
+    }
+
+    public float getBytesPerSecond() {
+        return duration > 0 ? (bytesSent + bytesReceived) * 1000f / duration : 0;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(this.connections);
+        dest.writeInt(this.waitingConnections);
+        dest.writeLong(this.requests);
+        dest.writeLong(this.bytesSent);
+        dest.writeLong(this.bytesReceived);
+        dest.writeLong(this.duration);
+    }
+
+    public RadioStatistics() {
+    }
+
+    protected RadioStatistics(Parcel in) {
+        this.connections = in.readInt();
+        this.waitingConnections = in.readInt();
+        this.requests = in.readLong();
+        this.bytesSent = in.readLong();
+        this.bytesReceived = in.readLong();
+        this.duration = in.readLong();
+    }
+
+    public static final Parcelable.Creator<RadioStatistics> CREATOR = new Parcelable.Creator<RadioStatistics>() {
+        @Override
+        public RadioStatistics createFromParcel(Parcel source) {
+            return new RadioStatistics(source);
+        }
+
+        @Override
+        public RadioStatistics[] newArray(int size) {
+            return new RadioStatistics[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "RadioStatistics{" +
+                "connections=" + connections +
+                ", waitingConnections=" + waitingConnections +
+                ", requests=" + requests +
+                ", bytesSent=" + bytesSent +
+                ", bytesReceived=" + bytesReceived +
+                ", duration=" + duration +
+                '}';
+    }
+
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.tangentlines.bpmonitor.BloodPressureFrameDecoder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/*
+ * Readings stored column by column in primitive arrays instead of one object per reading, for long histories.
+ * Iterating returns the same flyweight Row for every reading, it's only valid until the next call of next().
+ * Not thread safe.
+ */
+public class ReadingBatch implements Parcelable, Iterable<ReadingBatch.Row> {
+
+    /* fields which are part of a reading, packed into one byte per reading */
+    public static final int FLAG_TIMESTAMP = 0x1;
+    public static final int FLAG_PULSE_RATE = 0x2;
+    public static final int FLAG_USER_ID = 0x4;
+    public static final int FLAG_BATTERY = 0x8;
+    public static final int FLAG_IRREGULAR_PULSE = 0x10;
+
+    /* columns for the analytics */
+    public static final int COLUMN_SYSTOLIC = 0;
+    public static final int COLUMN_DIASTOLIC = 1;
+    public static final int COLUMN_MEAN_ARTERIAL_PRESSURE = 2;
+    public static final int COLUMN_PULSE_RATE = 3;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int size;
+    private long[] timestamps;
+    private float[] systolic;
+    private float[] diastolic;
+    private float[] meanArterialPressure;
+    private float[] pulseRate;
+    private byte[] userIds;
+    private byte[] batteries;
+    private byte[] flags;
+
+    /*
+     * Flyweight view of one reading of the batch
+     */
+    public final class Row {
+
+        private int index = -1;
+
+        private Row() {
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getFlags() {
+            return ReadingBatch.this.getFlags(index);
+        }
+
+        public boolean hasTimestamp() {
+            return (ReadingBatch.this.getFlags(index) & FLAG_TIMESTAMP) != 0;
+        }
+
+        /*
+         * Seconds since 1970, 0 if the reading has no timestamp
+         */
+        public long getTimestamp() {
+            return ReadingBatch.this.getTimestamp(index);
+        }
+
+        public float getSystolic() {
+            return ReadingBatch.this.getSystolic(index);
+        }
+
+        public float getDiastolic() {
+            return ReadingBatch.this.getDiastolic(index);
+        }
+
+        public float getMeanArterialPressure() {
+            return ReadingBatch.this.getMeanArterialPressure(index);
+        }
+
+        public float getPulseRate() {
+            return ReadingBatch.this.getPulseRate(index);
+        }
+
+        public int getUserId() {
+            return ReadingBatch.this.getUserId(index);
+        }
+
+        public int getBattery() {
+            return ReadingBatch.this.getBattery(index);
+        }
+
+        public boolean isIrregularPulse() {
+            return ReadingBatch.this.isIrregularPulse(index);
+        }
+
+        public BloodPressureReading toReading() {
+            return ReadingBatch.this.toReading(index);
+        }
+
+        private ReadingBatch getBatch() {
+            return ReadingBatch.this;
+        }
+
+    }
+
+    public ReadingBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReadingBatch(int capacity) {
+
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must be >= 0");
+        }
+
+        allocate(capacity);
+
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /*
+     * Drops all readings, the arrays are kept for reuse
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /*
+     * Appends the decoded frame, nothing is allocated unless the batch has to grow
+     */
+    public void add(@NonNull BloodPressureFrame frame) {
+
+        final int frameFlags = frame.getFlags();
+        int packed = frame.isIrregularPulse() ? FLAG_IRREGULAR_PULSE : 0;
+
+        if ((frameFlags & BloodPressureFrameDecoder.FLAG_TIMESTAMP) != 0) {
+            packed |= FLAG_TIMESTAMP;
+        }
+
+        if ((frameFlags & BloodPressureFrameDecoder.FLAG_PULSE_RATE) != 0) {
+            packed |= FLAG_PULSE_RATE;
+        }
+
+        if ((frameFlags & BloodPressureFrameDecoder.FLAG_USER_ID) != 0) {
+            packed |= FLAG_USER_ID;
+        }
+
+        if ((frameFlags & BloodPressureFrameDecoder.FLAG_BATTERY) != 0) {
+            packed |= FLAG_BATTERY;
+        }
+
+        add(packed, frame.getTimestamp() / 1000L, frame.getSystolic(), frame.getDiastolic(), frame.getMeanArterialPressure(),
+                frame.getPulseRate(), frame.getUserId(), frame.getBattery());
+
+    }
+
+    /*
+     * Appends the reading, the pulse rate, user id and battery count as present if they are not 0
+     */
+    public void add(@NonNull BloodPressureReading reading) {
+
+        final Date date = reading.getDate();
+        int packed = reading.isIrregularPulseDetectionFlag() ? FLAG_IRREGULAR_PULSE : 0;
+
+        if (date != null) {
+            packed |= FLAG_TIMESTAMP;
+        }
+
+        if (reading.getPulseRate() != 0) {
+            packed |= FLAG_PULSE_RATE;
+        }
+
+        if (reading.getUserId() != 0) {
+            packed |= FLAG_USER_ID;
+        }
+
+        if (reading.getBattery() != 0) {
+            packed |= FLAG_BATTERY;
+        }
+
+        add(packed, date != null ? date.getTime() / 1000L : 0, reading.getSystolic(), reading.getDiastolic(), reading.getMeanArterialPressure(),
+                reading.getPulseRate(), reading.getUserId(), reading.getBattery());
+
+    }
+
+    public void addAll(@NonNull ReadingBatch batch) {
+
+        ensureCapacity(size + batch.size);
+
+        System.arraycopy(batch.timestamps, 0, timestamps, size, batch.size);
+        System.arraycopy(batch.systolic, 0, systolic, size, batch.size);
+        System.arraycopy(batch.diastolic, 0, diastolic, size, batch.size);
+        System.arraycopy(batch.meanArterialPressure, 0, meanArterialPressure, size, batch.size);
+        System.arraycopy(batch.pulseRate, 0, pulseRate, size, batch.size);
+        System.arraycopy(batch.userIds, 0, userIds, size, batch.size);
+        System.arraycopy(batch.batteries, 0, batteries, size, batch.size);
+        System.arraycopy(batch.flags, 0, flags, size, batch.size);
+
+        size += batch.size;
+
+    }
+
+    private void add(int packed, long timestamp, float sys, float dia, float map, float pulse, int userId, int battery) {
+
+        ensureCapacity(size + 1);
+
+        timestamps[size] = timestamp;
+        systolic[size] = sys;
+        diastolic[size] = dia;
+        meanArterialPressure[size] = map;
+        pulseRate[size] = pulse;
+        userIds[size] = (byte) userId;
+        batteries[size] = (byte) battery;
+        flags[size] = (byte) packed;
+
+        size++;
+
+    }
+
+    public int getFlags(int index) {
+        checkIndex(index);
+        return flags[index] & 0xFF;
+    }
+
+    /*
+     * Seconds since 1970, 0 if the reading has no timestamp
+     */
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return timestamps[index];
+    }
+
+    public float getSystolic(int index) {
+        checkIndex(index);
+        return systolic[index];
+    }
+
+    public float getDiastolic(int index) {
+        checkIndex(index);
+        return diastolic[index];
+    }
+
+    public float getMeanArterialPressure(int index) {
+        checkIndex(index);
+        return meanArterialPressure[index];
+    }
+
+    public float getPulseRate(int index) {
+        checkIndex(index);
+        return pulseRate[index];
+    }
+
+    public int getUserId(int index) {
+        checkIndex(index);
+        return userIds[index] & 0xFF;
+    }
+
+    public int getBattery(int index) {
+        checkIndex(index);
+        return batteries[index] & 0xFF;
+    }
+
+    public boolean isIrregularPulse(int index) {
+        return (getFlags(index) & FLAG_IRREGULAR_PULSE) != 0;
+    }
+
+    public float getValue(int column, int index) {
+        checkIndex(index);
+        return getColumn(column)[index];
+    }
+
+    /*
+     * Creates a reading object, e.g. for the callbacks
+     */
+    @NonNull
+    public BloodPressureReading toReading(int index) {
+
+        checkIndex(index);
+
+        final Date date = (flags[index] & FLAG_TIMESTAMP) != 0 ? new Date(timestamps[index] * 1000L) : null;
+        return new BloodPressureReading(userIds[index] & 0xFF, date, systolic[index], diastolic[index], meanArterialPressure[index],
+                pulseRate[index], (flags[index] & FLAG_IRREGULAR_PULSE) != 0, batteries[index] & 0xFF);
+
+    }
+
+    @NonNull
+    public List<BloodPressureReading> toReadings() {
+
+        final List<BloodPressureReading> readings = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            readings.add(toReading(i));
+        }
+
+        return readings;
+
+    }
+
+    /*
+     * Returns a view of the reading at index, reusing row if it belongs to this batch
+     */
+    @NonNull
+    public Row getRow(int index, @Nullable Row row) {
+
+        checkIndex(index);
+
+        final Row result = row != null && row.getBatch() == this ? row : new Row();
+        result.index = index;
+        return result;
+
+    }
+
+    @Override
+    public Iterator<Row> iterator() {
+
+        return new Iterator<Row>() {
+
+            private final Row mRow = new Row();
+
+            @Override
+            public boolean hasNext() {
+                return mRow.index + 1 < size;
+            }
+
+            @Override
+            public Row next() {
+
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                mRow.index++;
+                return mRow;
+
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+
+    }
+
+    /*
+     * Average of the column, readings without a pulse rate are skipped for COLUMN_PULSE_RATE. NaN if there is no value.
+     */
+    public float getAverage(int column) {
+
+        final float[] values = getColumn(column);
+        double sum = 0;
+        int count = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (hasValue(column, i)) {
+                sum += values[i];
+                count++;
+            }
+        }
+
+        return count > 0 ? (float) (sum / count) : Float.NaN;
+
+    }
+
+    public float getMinimum(int column) {
+
+        final float[] values = getColumn(column);
+        float min = Float.NaN;
+
+        for (int i = 0; i < size; i++) {
+            if (hasValue(column, i) && (Float.isNaN(min) || values[i] < min)) {
+                min = values[i];
+            }
+        }
+
+        return min;
+
+    }
+
+    public float getMaximum(int column) {
+
+        final float[] values = getColumn(column);
+        float max = Float.NaN;
+
+        for (int i = 0; i < size; i++) {
+            if (hasValue(column, i) && (Float.isNaN(max) || values[i] > max)) {
+                max = values[i];
+            }
+        }
+
+        return max;
+
+    }
+
+    public int getIrregularPulseCount() {
+
+        int count = 0;
+
+        for (int i = 0; i < size; i++) {
+            if ((flags[i] & FLAG_IRREGULAR_PULSE) != 0) {
+                count++;
+            }
+        }
+
+        return count;
+
+    }
+
+    /*
+     * Writes the readings as comma separated values with a header line, fields a reading doesn't have are left empty
+     */
+    public void writeCsv(@NonNull Appendable out) throws IOException {
+
+        out.append("timestamp,user,systolic,diastolic,mean_arterial_pressure,pulse_rate,irregular_pulse,battery\n");
+
+        for (int i = 0; i < size; i++) {
+
+            final int packed = flags[i];
+
+            if ((packed & FLAG_TIMESTAMP) != 0) {
+                out.append(Long.toString(timestamps[i]));
+            }
+
+            out.append(',');
+
+            if ((packed & FLAG_USER_ID) != 0) {
+                out.append(Integer.toString(userIds[i] & 0xFF));
+            }
+
+            out.append(',').append(Float.toString(systolic[i]));
+            out.append(',').append(Float.toString(diastolic[i]));
+            out.append(',').append(Float.toString(meanArterialPressure[i]));
+            out.append(',');
+
+            if ((packed & FLAG_PULSE_RATE) != 0) {
+                out.append(Float.toString(pulseRate[i]));
+            }
+
+            out.append(',').append((packed & FLAG_IRREGULAR_PULSE) != 0 ? '1' : '0');
+            out.append(',');
+
+            if ((packed & FLAG_BATTERY) != 0) {
+                out.append(Integer.toString(batteries[i] & 0xFF));
+            }
+
+            out.append('\n');
+
+        }
+
+    }
+
+    private boolean hasValue(int column, int index) {
+        return column != COLUMN_PULSE_RATE || (flags[index] & FLAG_PULSE_RATE) != 0;
+    }
+
+    private float[] getColumn(int column) {
+
+        switch (column) {
+            case COLUMN_SYSTOLIC:
+                return systolic;
+            case COLUMN_DIASTOLIC:
+                return diastolic;
+            case COLUMN_MEAN_ARTERIAL_PRESSURE:
+                return meanArterialPressure;
+            case COLUMN_PULSE_RATE:
+                return pulseRate;
+            default:
+                throw new IllegalArgumentException("unknown column " + column);
+        }
+
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+    }
+
+    private void allocate(int capacity) {
+        timestamps = new long[capacity];
+        systolic = new float[capacity];
+        diastolic = new float[capacity];
+        meanArterialPressure = new float[capacity];
+        pulseRate = new float[capacity];
+        userIds = new byte[capacity];
+        batteries = new byte[capacity];
+        flags = new byte[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+
+        if (capacity <= flags.length) {
+            return;
+        }
+
+        final int grown = Math.max(capacity, Math.max(DEFAULT_CAPACITY, flags.length * 2));
+
+        timestamps = Arrays.copyOf(timestamps, grown);
+        systolic = Arrays.copyOf(systolic, grown);
+        diastolic = Arrays.copyOf(diastolic, grown);
+        meanArterialPressure = Arrays.copyOf(meanArterialPressure, grown);
+        pulseRate = Arrays.copyOf(pulseRate, grown);
+        userIds = Arrays.copyOf(userIds, grown);
+        batteries = Arrays.copyOf(batteries, grown);
+        flags = Arrays.copyOf(flags, grown);
+
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(this.size);
+        dest.writeLongArray(Arrays.copyOf(this.timestamps, this.size));
+        dest.writeFloatArray(Arrays.copyOf(this.systolic, this.size));
+        dest.writeFloatArray(Arrays.copyOf(this.diastolic, this.size));
+        dest.writeFloatArray(Arrays.copyOf(this.meanArterialPressure, this.size));
+        dest.writeFloatArray(Arrays.copyOf(this.pulseRate, this.size));
+        dest.writeByteArray(Arrays.copyOf(this.userIds, this.size));
+        dest.writeByteArray(Arrays.copyOf(this.batteries, this.size));
+        dest.writeByteArray(Arrays.copyOf(this.flags, this.size));
+    }
+
+    protected ReadingBatch(Parcel in) {
+        this.size = in.readInt();
+        this.timestamps = in.createLongArray();
+        this.systolic = in.createFloatArray();
+        this.diastolic = in.createFloatArray();
+        this.meanArterialPressure = in.createFloatArray();
+        this.pulseRate = in.createFloatArray();
+        this.userIds = in.createByteArray();
+        this.batteries = in.createByteArray();
+        this.flags = in.createByteArray();
+    }
+
+    public static final Parcelable.Creator<ReadingBatch> CREATOR = new Parcelable.Creator<ReadingBatch>() {
+        @Override
+        public ReadingBatch createFromParcel(Parcel source) {
+            return new ReadingBatch(source);
+        }
+
+        @Override
+        public ReadingBatch[] newArray(int size) {
+            return new ReadingBatch[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "ReadingBatch{" +
+                "size=" + size +
+                '}';
+    }
+
+}
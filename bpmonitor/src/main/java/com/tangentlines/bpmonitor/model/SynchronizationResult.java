@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.List;
+
+/*
+ * Outcome of a synchronization started with BPMonitor.synchronizeAsync()
+ */
+public class SynchronizationResult implements Parcelable {
+
+    private ReadingBatch batch = new ReadingBatch();
+    private List<BloodPressureReading> readings;
+    private long duration;
+
+    /*
+     * The readings as objects, created from the batch on first use
+     */
+    public List<BloodPressureReading> getReadings() {
+
+        if (readings == null) {
+            readings = batch.toReadings();
+        }
+
+        return readings;
+
+    }
+
+    public void setReadings(List<BloodPressureReading> readings) {
+
+        final ReadingBatch batch = new ReadingBatch(readings.size());
+
+        for (BloodPressureReading reading : readings) {
+            batch.add(reading);
+        }
+
+        this.batch = batch;
+        this.readings = readings;
+
+    }
+
+    /*
+     * The readings in columns, e.g. for analytics and export of a long history
+     */
+    public ReadingBatch getBatch() {
+        return batch;
+    }
+
+    public void setBatch(ReadingBatch batch) {
+        this.batch = batch;
+        this.readings = null;
+    }
+
+    public int getReadingCount() {
+        return batch.size();
+    }
+
+    /*
+     * Duration of the transfer in ms
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeParcelable(this.batch, flags);
+        dest.writeLong(this.duration);
+    }
+
+    public SynchronizationResult() {
+    }
+
+    protected SynchronizationResult(Parcel in) {
+        this.batch = in.readParcelable(ReadingBatch.class.getClassLoader());
+        this.duration = in.readLong();
+    }
+
+    public static final Parcelable.Creator<SynchronizationResult> CREATOR = new Parcelable.Creator<SynchronizationResult>() {
+        @Override
+        public SynchronizationResult createFromParcel(Parcel source) {
+            return new SynchronizationResult(source);
+        }
+
+        @Override
+        public SynchronizationResult[] newArray(int size) {
+            return new SynchronizationResult[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "SynchronizationResult{" +
+                "batch=" + batch +
+                ", duration=" + duration +
+                '}';
+    }
+
+}
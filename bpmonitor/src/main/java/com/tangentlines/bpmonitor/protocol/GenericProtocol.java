@@ -19,11 +19,20 @@ package com.tangentlines.bpmonitor.protocol;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.tangentlines.bpmonitor.BPMonitor;
 import com.tangentlines.bpmonitor.BPMonitorError;
 import com.tangentlines.bpmonitor.Constants;
+import com.tangentlines.bpmonitor.Deadlines;
+import com.tangentlines.bpmonitor.DeviceInformationCache;
+import com.tangentlines.bpmonitor.SynchronizationOptions;
+import com.tangentlines.bpmonitor.model.BloodPressureReading;
+import com.tangentlines.bpmonitor.model.DeviceInformation;
+
+import java.util.concurrent.Executor;
 
 public abstract class GenericProtocol implements Protocol {
 
@@ -32,17 +41,27 @@ public abstract class GenericProtocol implements Protocol {
     @NonNull
     protected final BPMonitor mDevice;
 
-    protected final Handler mNotifyHandler = new Handler();
+    /* protocol state and listener, runs on the looper of the device */
+    protected final Handler mHandler;
+
+    /* user callbacks */
+    protected final Executor mCallbackExecutor;
 
-    private ProtocolListener mListener;
+    private volatile ProtocolListener mListener;
+
+    private boolean mSetupFinished = false;
+    private boolean mVerifyFirmware = false;
+    private boolean mStoreDeviceInformation = true;
 
     GenericProtocol(BPMonitor device) {
         this.mDevice = device;
+        this.mHandler = new Handler(device.getLooper());
+        this.mCallbackExecutor = device.getCallbackExecutor();
     }
 
     void onStart(){
 
-        mNotifyHandler.post(new Runnable() {
+        mHandler.post(new Runnable() {
             @Override
             public void run() {
                 if (mListener != null) {
@@ -53,22 +72,43 @@ public abstract class GenericProtocol implements Protocol {
 
     }
 
-    void onError(){
+    void onPhase(final int phase){
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onProtocolPhase(phase);
+                }
+            }
+        });
+
+    }
+
+    void onError(final BPMonitorError error){
 
-        mNotifyHandler.post(new Runnable() {
+        mHandler.post(new Runnable() {
             @Override
             public void run() {
                 if (mListener != null) {
-                    mListener.onProtocolError();
+                    mListener.onProtocolError(error);
                 }
             }
         });
 
     }
 
+    void onReading(BloodPressureReading reading){
+
+        if (mListener != null) {
+            mListener.onProtocolReading(reading);
+        }
+
+    }
+
     void onFinished(){
 
-        mNotifyHandler.post(new Runnable() {
+        mHandler.post(new Runnable() {
             @Override
             public void run() {
                 if (mListener != null) {
@@ -79,36 +119,63 @@ public abstract class GenericProtocol implements Protocol {
 
     }
 
+    void onHandover(final Protocol next){
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onProtocolHandover(next);
+                }
+            }
+        });
+
+    }
+
+    void onTransferFinished(final boolean disconnect){
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onTransferFinished(disconnect);
+                }
+            }
+        });
+
+    }
+
     @Override
-    public boolean handleCharacteristicRead(BluetoothGattCharacteristic characteristics) {
+    public boolean handleCharacteristicRead(BluetoothGattCharacteristic characteristics, @Nullable byte[] value) {
 
         final String uuid = characteristics.getUuid().toString();
 
         switch (uuid) {
 
             case Constants.UUID_CHARACTERISTIC_MANUFACTURER_STRING:
-                this.mDevice.getDeviceInformation().setManufacturer(characteristics.getStringValue(0));
+                this.mDevice.getDeviceInformation().setManufacturer(decodeString(value));
                 return true;
 
             case Constants.UUID_CHARACTERISTIC_MODEL_NUMBER_STRING:
-                this.mDevice.getDeviceInformation().setModelNumber(characteristics.getStringValue(0));
+                this.mDevice.getDeviceInformation().setModelNumber(decodeString(value));
                 return true;
 
             case Constants.UUID_CHARACTERISTIC_SOFTWARE_REVISION_STRING:
-                this.mDevice.getDeviceInformation().setSoftwareRevision(characteristics.getStringValue(0));
+                this.mDevice.getDeviceInformation().setSoftwareRevision(decodeString(value));
                 return true;
 
             case Constants.UUID_CHARACTERISTIC_HARDWARE_REVISION_STRING:
-                this.mDevice.getDeviceInformation().setHardwareRevision(characteristics.getStringValue(0));
+                this.mDevice.getDeviceInformation().setHardwareRevision(decodeString(value));
                 return true;
 
             case Constants.UUID_CHARACTERISTIC_SYSTEM_FIRMWARE_NUMBER_STRING:
-                this.mDevice.getDeviceInformation().setFirmwareRevision(characteristics.getStringValue(0));
+                handleFirmwareRevision(decodeString(value));
                 return true;
 
             case Constants.UUID_CHARACTERISTIC_SERIAL_NUMBER_STRING:
-                this.mDevice.getDeviceInformation().setSerialNumber(characteristics.getStringValue(0));
-                this.onSetupFinished();
+                this.mDevice.getDeviceInformation().setSerialNumber(decodeString(value));
+                this.storeDeviceInformation();
+                this.finishSetup();
                 return true;
 
         }
@@ -118,7 +185,7 @@ public abstract class GenericProtocol implements Protocol {
     }
 
     @Override
-    public boolean handleCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+    public boolean handleCharacteristicChanged(BluetoothGattCharacteristic characteristic, @NonNull byte[] buffer, int length) {
         return false;
     }
 
@@ -127,6 +194,24 @@ public abstract class GenericProtocol implements Protocol {
         return false;
     }
 
+    @Override
+    public boolean handleDisconnect() {
+        return false;
+    }
+
+    @Override
+    public void cancel() {
+        mListener = null;
+    }
+
+    /*
+     * Stops the protocol like cancel() but tells its callbacks why, e.g. because a deadline expired
+     */
+    public void abort(@NonNull BPMonitorError error) {
+        cancel();
+        fireError(error);
+    }
+
     @Override
     public void setProtocolListener(ProtocolListener listener) {
         this.mListener = listener;
@@ -138,16 +223,145 @@ public abstract class GenericProtocol implements Protocol {
 
     /*
      * tries to receive generic device information
+     * a cached profile is used right away, it is only refreshed in the background if it is stale or the firmware changed
      */
     protected void requestDeviceInformation() {
         Log.d(TAG, "requestDeviceInformation()");
 
-        this.mDevice.queueReadCharacteristic(Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_MANUFACTURER_STRING);
-        this.mDevice.queueReadCharacteristic(Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_MODEL_NUMBER_STRING);
-        this.mDevice.queueReadCharacteristic(Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_SOFTWARE_REVISION_STRING);
-        this.mDevice.queueReadCharacteristic(Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_HARDWARE_REVISION_STRING);
-        this.mDevice.queueReadCharacteristic(Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_SYSTEM_FIRMWARE_NUMBER_STRING);
-        this.mDevice.queueReadCharacteristic(Constants.UUID_SERVICE_DEVICE_INFORMATION, Constants.UUID_CHARACTERISTIC_SERIAL_NUMBER_STRING);
+        final DeviceInformationCache cache = this.mDevice.getDeviceInformationCache();
+        final int cached = cache != null ? cache.restore(this.mDevice.getDeviceInformation()) : DeviceInformationCache.MISSING;
+
+        switch (cached) {
+
+            case DeviceInformationCache.FRESH:
+                Log.d(TAG, "using cached device information");
+                this.finishSetup();
+                this.mVerifyFirmware = true;
+                this.mDevice.queueReadCharacteristic(Constants.HANDLE_SYSTEM_FIRMWARE_NUMBER_STRING, BPMonitor.PRIORITY_BACKGROUND);
+                break;
+
+            case DeviceInformationCache.STALE:
+                Log.d(TAG, "using stale device information, refreshing");
+                this.finishSetup();
+                this.queueDeviceInformationReads();
+                break;
+
+            default:
+                this.onPhase(Deadlines.PHASE_DEVICE_INFORMATION);
+                this.queueDeviceInformationReads();
+                break;
+
+        }
+
+    }
+
+    /*
+     * Reads only the given device information fields (SynchronizationOptions.FIELD_ flags), nothing waits for them.
+     * A fresh cached profile is used instead of reading, a partial profile is not cached.
+     */
+    protected void requestDeviceInformation(int fields) {
+        Log.d(TAG, "requestDeviceInformation(" + fields + ")");
+
+        this.mSetupFinished = true;
+        this.mStoreDeviceInformation = fields == SynchronizationOptions.FIELDS_ALL;
+
+        final DeviceInformationCache cache = this.mDevice.getDeviceInformationCache();
+        final int cached = cache != null ? cache.restore(this.mDevice.getDeviceInformation()) : DeviceInformationCache.MISSING;
+
+        if (cached == DeviceInformationCache.FRESH) {
+
+            if ((fields & SynchronizationOptions.FIELD_FIRMWARE_REVISION) != 0) {
+                this.mVerifyFirmware = true;
+                this.mDevice.queueReadCharacteristic(Constants.HANDLE_SYSTEM_FIRMWARE_NUMBER_STRING, BPMonitor.PRIORITY_BACKGROUND);
+            }
+
+            return;
+
+        }
+
+        this.queueDeviceInformationReads(fields);
+
+    }
+
+    private void queueDeviceInformationReads() {
+        this.queueDeviceInformationReads(SynchronizationOptions.FIELDS_ALL);
+    }
+
+    private void queueDeviceInformationReads(int fields) {
+
+        if ((fields & SynchronizationOptions.FIELD_MANUFACTURER) != 0) {
+            this.mDevice.queueReadCharacteristic(Constants.HANDLE_MANUFACTURER_STRING, BPMonitor.PRIORITY_BACKGROUND);
+        }
+
+        if ((fields & SynchronizationOptions.FIELD_MODEL_NUMBER) != 0) {
+            this.mDevice.queueReadCharacteristic(Constants.HANDLE_MODEL_NUMBER_STRING, BPMonitor.PRIORITY_BACKGROUND);
+        }
+
+        if ((fields & SynchronizationOptions.FIELD_SOFTWARE_REVISION) != 0) {
+            this.mDevice.queueReadCharacteristic(Constants.HANDLE_SOFTWARE_REVISION_STRING, BPMonitor.PRIORITY_BACKGROUND);
+        }
+
+        if ((fields & SynchronizationOptions.FIELD_HARDWARE_REVISION) != 0) {
+            this.mDevice.queueReadCharacteristic(Constants.HANDLE_HARDWARE_REVISION_STRING, BPMonitor.PRIORITY_BACKGROUND);
+        }
+
+        if ((fields & SynchronizationOptions.FIELD_FIRMWARE_REVISION) != 0) {
+            this.mDevice.queueReadCharacteristic(Constants.HANDLE_SYSTEM_FIRMWARE_NUMBER_STRING, BPMonitor.PRIORITY_BACKGROUND);
+        }
+
+        /* read last, it completes the setup and the cached profile */
+        if ((fields & SynchronizationOptions.FIELD_SERIAL_NUMBER) != 0) {
+            this.mDevice.queueReadCharacteristic(Constants.HANDLE_SERIAL_NUMBER_STRING, BPMonitor.PRIORITY_BACKGROUND);
+        }
+
+    }
+
+    /*
+     * Same as BluetoothGattCharacteristic.getStringValue(0), for the copied value
+     */
+    @Nullable
+    private static String decodeString(@Nullable byte[] value) {
+        return value != null ? new String(value) : null;
+    }
+
+    private void handleFirmwareRevision(String firmwareRevision) {
+
+        final DeviceInformation info = this.mDevice.getDeviceInformation();
+
+        if (this.mVerifyFirmware) {
+
+            this.mVerifyFirmware = false;
+
+            if (!TextUtils.equals(firmwareRevision, info.getFirmwareRevision())) {
+                Log.i(TAG, String.format("firmware changed from %s to %s, refreshing device information", info.getFirmwareRevision(), firmwareRevision));
+                info.setFirmwareRevision(firmwareRevision);
+                this.queueDeviceInformationReads();
+            }
+
+            return;
+
+        }
+
+        info.setFirmwareRevision(firmwareRevision);
+
+    }
+
+    private void storeDeviceInformation() {
+
+        final DeviceInformationCache cache = this.mDevice.getDeviceInformationCache();
+        if (cache != null && this.mStoreDeviceInformation) {
+            cache.store(this.mDevice.getDeviceInformation());
+        }
+
+    }
+
+    private void finishSetup() {
+
+        if (!this.mSetupFinished) {
+            this.mSetupFinished = true;
+            this.onPhase(Deadlines.PHASE_AUTHENTICATION);
+            this.onSetupFinished();
+        }
 
     }
 
@@ -157,8 +371,8 @@ public abstract class GenericProtocol implements Protocol {
     protected void registerForNotifications() {
         Log.d(TAG, "registerForNotifications()");
 
-        this.mDevice.queueRegisterForIndication(Constants.UUID_SERVICE_BLOOD_PRESSURE, Constants.UUID_CHARACTERISTIC_BLOOD_PRESSURE_DATA, Constants.UUID_DESCRIPTOR_CLIENT_CHARACTERISTICS_CONFIGURATION);
-        this.mDevice.queueRegisterForIndication(Constants.UUID_SERVICE_BLOOD_PRESSURE, Constants.UUID_CHARACTERISTIC_INDICATE_CHALLENGE, Constants.UUID_DESCRIPTOR_CLIENT_CHARACTERISTICS_CONFIGURATION);
+        this.mDevice.queueRegisterForIndication(Constants.HANDLE_BLOOD_PRESSURE_DATA);
+        this.mDevice.queueRegisterForIndication(Constants.HANDLE_INDICATE_CHALLENGE);
 
     }
 
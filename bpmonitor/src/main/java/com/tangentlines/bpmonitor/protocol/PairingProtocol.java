@@ -16,15 +16,19 @@
 
 package com.tangentlines.bpmonitor.protocol;
 
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.tangentlines.bpmonitor.BPMonitor;
 import com.tangentlines.bpmonitor.BPMonitorDataConverter;
 import com.tangentlines.bpmonitor.BPMonitorError;
 import com.tangentlines.bpmonitor.Constants;
+import com.tangentlines.bpmonitor.SynchronizationOptions;
 import com.tangentlines.bpmonitor.callbacks.PairingCallbacks;
+import com.tangentlines.bpmonitor.callbacks.SynchronizationCallbacks;
 import com.tangentlines.bpmonitor.model.UserInformation;
 import com.tangentlines.bpmonitor.utils.ListUtils;
 
@@ -43,6 +47,8 @@ import java.util.Arrays;
  *  9.  select user
  *  10. send current time
  *  11. finish protocol - device disconnects
+ *
+ * When onboarding, steps 10 and 11 are skipped and the synchronization continues on the same connection.
  */
 public class PairingProtocol extends GenericProtocol {
 
@@ -51,9 +57,22 @@ public class PairingProtocol extends GenericProtocol {
     @NonNull
     private final PairingCallbacks mCallbacks;
 
+    @Nullable
+    private final SynchronizationCallbacks mSynchronizationCallbacks;
+
+    private volatile boolean mFinished = false;
+
     public PairingProtocol(BPMonitor device, @NonNull PairingCallbacks callbacks) {
+        this(device, callbacks, null);
+    }
+
+    /*
+     * synchronizationCallbacks: if set, the readings are synchronized right after pairing without reconnecting
+     */
+    public PairingProtocol(BPMonitor device, @NonNull PairingCallbacks callbacks, @Nullable SynchronizationCallbacks synchronizationCallbacks) {
         super(device);
         this.mCallbacks = callbacks;
+        this.mSynchronizationCallbacks = synchronizationCallbacks;
     }
 
     @Override
@@ -76,32 +95,38 @@ public class PairingProtocol extends GenericProtocol {
         super.onStart();
 
         UserInformation userInformation = new UserInformation(userId, name);
-        this.mDevice.sendControlSequence((byte) Constants.CMD_SET_USER, BPMonitorDataConverter.userInformationAsBytes(userInformation));
-        this.mDevice.sendControlSequence((byte) Constants.CMD_SELECT_USER, BPMonitorDataConverter.selectUserAsBytes(userId));
-        this.mDevice.sendControlSequence((byte) Constants.CMD_SEND_TIME, BPMonitorDataConverter.currentDateTimeAsBytes());
-        this.mDevice.sendControlSequence((byte) Constants.CMD_FINISH, new byte[0]);
+        this.mDevice.sendControlSequence(this.mDevice.getCommandEncoder().encodeUserInformation(userInformation));
+        this.mDevice.sendControlSequence(this.mDevice.getCommandEncoder().encodeSelectUser(userId));
+
+        /* the synchronization sends the time and finishes */
+        if (mSynchronizationCallbacks != null) {
+            return;
+        }
+
+        this.mDevice.sendControlSequence(this.mDevice.getCommandEncoder().encodeTime(System.currentTimeMillis()));
+        this.mDevice.sendControlSequence(Constants.CMD_FINISH);
 
     }
 
     @Override
-    public boolean handleCharacteristicRead(BluetoothGattCharacteristic characteristics) {
-        super.handleCharacteristicRead(characteristics);
+    public boolean handleCharacteristicRead(BluetoothGattCharacteristic characteristics, @Nullable byte[] value) {
+        super.handleCharacteristicRead(characteristics, value);
         return false;
     }
 
     @Override
-    public boolean handleCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+    public boolean handleCharacteristicChanged(BluetoothGattCharacteristic characteristic, @NonNull byte[] buffer, int length) {
 
         final String uuid = characteristic.getUuid().toString();
 
         switch (uuid) {
 
             case Constants.UUID_CHARACTERISTIC_INDICATE_CHALLENGE:
-                handleControlChannelResponse(characteristic.getValue());
+                handleControlChannelResponse(buffer, length);
                 break;
 
             default:
-                return super.handleCharacteristicChanged(characteristic);
+                return super.handleCharacteristicChanged(characteristic, buffer, length);
 
         }
 
@@ -111,27 +136,32 @@ public class PairingProtocol extends GenericProtocol {
     @Override
     public boolean handleCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
 
-        if (status == 0) {
-            /* we have an error */
-            /* notify and disconnect */
+        /* a failed write was already reported as error */
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            return false;
         }
 
         final String uuid = characteristic.getUuid().toString();
         final byte[] value = characteristic.getValue();
 
-        if (uuid.equals(Constants.UUID_CHARACTERISTIC_CONTROL) && value[0] == (byte) Constants.CMD_FINISH) {
+        if (mSynchronizationCallbacks != null && uuid.equals(Constants.UUID_CHARACTERISTIC_CONTROL) && value[0] == (byte) Constants.CMD_SELECT_USER) {
 
-            super.onFinished();
+            notifyFinished();
 
-            if (mDevice.isConnected()) {
-                mNotifyHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mCallbacks.onFinished(mDevice, mDevice.getDeviceInformation().getPassword(), mDevice.getDeviceInformation().getBroadcastId());
-                    }
-                });
-            }
+            /* the connection is authenticated and the user is selected, continue with the readings */
+            super.onHandover(new SynchronizeProtocol(mDevice, mDevice.getDeviceInformation().getPassword(), mDevice.getDeviceInformation().getBroadcastId(), SynchronizationOptions.DEFAULT, mSynchronizationCallbacks, true));
+
+            return true;
+        }
+
+        if (uuid.equals(Constants.UUID_CHARACTERISTIC_CONTROL) && value[0] == (byte) Constants.CMD_FINISH) {
 
+            /* the device disconnects now */
+            mFinished = true;
+            mDevice.setDeviceState(BPMonitor.DeviceState.CONNECTED);
+
+            super.onFinished();
+            notifyFinished();
 
             return true;
         }
@@ -140,6 +170,24 @@ public class PairingProtocol extends GenericProtocol {
 
     }
 
+    private void notifyFinished() {
+
+        if (mDevice.isConnected()) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mCallbacks.onFinished(mDevice, mDevice.getDeviceInformation().getPassword(), mDevice.getDeviceInformation().getBroadcastId());
+                }
+            });
+        }
+
+    }
+
+    @Override
+    public boolean handleDisconnect() {
+        return mFinished;
+    }
+
     @Override
     protected void onSetupFinished() {
         super.registerForNotifications();
@@ -147,8 +195,8 @@ public class PairingProtocol extends GenericProtocol {
 
     @Override
     protected void fireError(final BPMonitorError error) {
-        super.onError();
-        mNotifyHandler.post(new Runnable() {
+        super.onError(error);
+        mCallbackExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 mCallbacks.onPairingFailed(mDevice, error);
@@ -163,7 +211,7 @@ public class PairingProtocol extends GenericProtocol {
             return;
         }
 
-        this.mDevice.sendControlSequence((byte) Constants.CMD_SEND_XOR, BPMonitorDataConverter.calculateChallengeResponse(challenge, this.mDevice.getDeviceInformation().getPassword()));
+        this.mDevice.sendControlSequence(this.mDevice.getCommandEncoder().encodeChallengeResponse(challenge, this.mDevice.getDeviceInformation().getPassword()));
 
     }
 
@@ -172,16 +220,16 @@ public class PairingProtocol extends GenericProtocol {
         byte[] broadcastId = BPMonitorDataConverter.randomBroadcastId();
 
         this.mDevice.getDeviceInformation().setBroadcastId(broadcastId);
-        this.mDevice.sendControlSequence((byte) Constants.CMD_SEND_BROADCAST_ID, broadcastId);
+        this.mDevice.sendControlSequence(Constants.CMD_SEND_BROADCAST_ID, broadcastId);
 
     }
 
-    private void handleControlChannelResponse(byte[] bytes) {
+    private void handleControlChannelResponse(@NonNull byte[] bytes, int length) {
 
-        if (bytes.length > 0) {
+        if (length > 0) {
 
             byte cmd = bytes[0];
-            byte[] data = Arrays.copyOfRange(bytes, 1, bytes.length);
+            byte[] data = Arrays.copyOfRange(bytes, 1, length);
 
             switch (cmd) {
 
@@ -203,7 +251,7 @@ public class PairingProtocol extends GenericProtocol {
                         super.onFinished();
 
                         if (mDevice.isConnected()) {
-                            mNotifyHandler.post(new Runnable() {
+                            mCallbackExecutor.execute(new Runnable() {
                                 @Override
                                 public void run() {
                                     mCallbacks.onUsersReceived(mDevice, ListUtils.asList(mDevice.getDeviceInformation().getUsers()));
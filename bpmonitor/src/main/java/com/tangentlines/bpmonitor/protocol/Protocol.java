@@ -17,13 +17,30 @@
 package com.tangentlines.bpmonitor.protocol;
 
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 public interface Protocol {
 
     void start();
     void setProtocolListener(ProtocolListener listener);
-    boolean handleCharacteristicRead(BluetoothGattCharacteristic characteristics);
-    boolean handleCharacteristicChanged(BluetoothGattCharacteristic characteristic);
+    boolean handleCharacteristicRead(BluetoothGattCharacteristic characteristic, @Nullable byte[] value);
+
+    /*
+     * buffer is only valid during the call, length is the size of the value
+     */
+    boolean handleCharacteristicChanged(BluetoothGattCharacteristic characteristic, @NonNull byte[] buffer, int length);
+
     boolean handleCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status);
 
+    /*
+     * Returns true if the device was expected to disconnect, e.g. because the protocol was finished
+     */
+    boolean handleDisconnect();
+
+    /*
+     * Stops the protocol without notifying anybody, called on the looper of the device before the link is released
+     */
+    void cancel();
+
 }
@@ -16,10 +16,33 @@
 
 package com.tangentlines.bpmonitor.protocol;
 
+import com.tangentlines.bpmonitor.BPMonitorError;
+import com.tangentlines.bpmonitor.model.BloodPressureReading;
+
 public interface ProtocolListener {
 
     void onProtocolStarted();
+
+    /*
+     * The protocol entered one of the Deadlines.PHASE_ phases
+     */
+    void onProtocolPhase(int phase);
     void onProtocolFinished();
-    void onProtocolError();
+    void onProtocolError(BPMonitorError error);
+
+    /*
+     * A reading arrived, called on the looper of the device
+     */
+    void onProtocolReading(BloodPressureReading reading);
+
+    /*
+     * The protocol is done and the given protocol continues on the same connection
+     */
+    void onProtocolHandover(Protocol next);
+
+    /*
+     * The device sent all its readings
+     */
+    void onTransferFinished(boolean disconnect);
 
 }
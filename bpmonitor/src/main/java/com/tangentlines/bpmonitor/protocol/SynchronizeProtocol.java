@@ -16,22 +16,36 @@
 
 package com.tangentlines.bpmonitor.protocol;
 
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.tangentlines.bpmonitor.BPMonitor;
-import com.tangentlines.bpmonitor.BPMonitorDataConverter;
 import com.tangentlines.bpmonitor.BPMonitorError;
+import com.tangentlines.bpmonitor.BloodPressureFrameDecoder;
 import com.tangentlines.bpmonitor.Constants;
+import com.tangentlines.bpmonitor.Deadlines;
+import com.tangentlines.bpmonitor.SynchronizationOptions;
+import com.tangentlines.bpmonitor.callbacks.BatchSynchronizationCallbacks;
 import com.tangentlines.bpmonitor.callbacks.SynchronizationCallbacks;
+import com.tangentlines.bpmonitor.callbacks.SynchronizationFinishedCallbacks;
+import com.tangentlines.bpmonitor.model.BloodPressureFrame;
 import com.tangentlines.bpmonitor.model.BloodPressureReading;
+import com.tangentlines.bpmonitor.model.ReadingBatch;
+import com.tangentlines.bpmonitor.utils.DirectExecutor;
 import com.tangentlines.bpmonitor.utils.ListUtils;
+import com.tangentlines.bpmonitor.utils.TimerWheel;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /*
- * Protocol:
+ * Protocol (steps 1 to 6 are skipped if the connection was already authenticated while pairing):
  *  1. read device information
  *  2. register for indications on the control and data channel
  *  3. receive challenge by device
@@ -39,6 +53,9 @@ import java.util.Arrays;
  *  7. send broadcastId (selects the user)
  *  8. send current time
  *  9. finish protocol - device will return readings
+ *  10. transfer is finished after an idle time, the expected number of readings or a disconnect
+ *
+ * The fast path registers for indications right away and only reads the requested device information after step 10.
  */
 public class SynchronizeProtocol extends GenericProtocol {
 
@@ -47,12 +64,44 @@ public class SynchronizeProtocol extends GenericProtocol {
     @NonNull private final byte[] mBroadcastId;
     @NonNull private final byte[] mPassword;
     @NonNull private final SynchronizationCallbacks mCallbacks;
+    @Nullable private final BatchSynchronizationCallbacks mBatchCallbacks;
+    @NonNull private final SynchronizationOptions mOptions;
+    private final boolean mAuthenticated;
+
+    /* transfer state, only accessed on the looper of the device */
+    private volatile boolean mTransferStarted = false;
+    private boolean mTransferFinished = false;
+    private int mReadingCount = 0;
+    private long mTransferStart = 0;
+    private long mLastReading = 0;
+    private TimerWheel.Timeout mIdleTimeout;
+    private List<BloodPressureReading> mBatch = new ArrayList<>();
+
+    private final BloodPressureFrame mFrame = new BloodPressureFrame();
+
+    /* columnar copy of the readings, appended on the looper of the device */
+    private volatile ReadingBatch mReadingBatch;
 
     public SynchronizeProtocol(BPMonitor device, @NonNull byte[] password, @NonNull byte[] broadcastId, @NonNull SynchronizationCallbacks callbacks) {
+        this(device, password, broadcastId, SynchronizationOptions.DEFAULT, callbacks);
+    }
+
+    public SynchronizeProtocol(BPMonitor device, @NonNull byte[] password, @NonNull byte[] broadcastId, @NonNull SynchronizationOptions options, @NonNull SynchronizationCallbacks callbacks) {
+        this(device, password, broadcastId, options, callbacks, false);
+    }
+
+    /*
+     * authenticated: the challenge was already answered on this connection and the indications are registered,
+     * the user is selected right away
+     */
+    SynchronizeProtocol(BPMonitor device, @NonNull byte[] password, @NonNull byte[] broadcastId, @NonNull SynchronizationOptions options, @NonNull SynchronizationCallbacks callbacks, boolean authenticated) {
         super(device);
         this.mBroadcastId = broadcastId;
         this.mPassword = password;
+        this.mOptions = options;
         this.mCallbacks = callbacks;
+        this.mBatchCallbacks = callbacks instanceof BatchSynchronizationCallbacks ? (BatchSynchronizationCallbacks) callbacks : null;
+        this.mAuthenticated = authenticated;
     }
 
     @Override
@@ -62,33 +111,45 @@ public class SynchronizeProtocol extends GenericProtocol {
         mDevice.getDeviceInformation().setPassword(mPassword);
         mDevice.getDeviceInformation().setBroadcastId(mBroadcastId);
 
-        super.requestDeviceInformation();
+        if (mAuthenticated) {
+            super.onStart();
+            selectUserAndFinish();
+            return;
+        }
+
+        if (mOptions.isFastPath()) {
+            super.registerForNotifications();
+            super.onStart();
+            return;
+        }
+
         super.onStart();
+        super.requestDeviceInformation();
 
     }
 
     @Override
-    public boolean handleCharacteristicRead(BluetoothGattCharacteristic characteristics) {
-        return super.handleCharacteristicRead(characteristics);
+    public boolean handleCharacteristicRead(BluetoothGattCharacteristic characteristics, @Nullable byte[] value) {
+        return super.handleCharacteristicRead(characteristics, value);
     }
 
     @Override
-    public boolean handleCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+    public boolean handleCharacteristicChanged(BluetoothGattCharacteristic characteristic, @NonNull byte[] buffer, int length) {
 
         final String uuid = characteristic.getUuid().toString();
 
         switch (uuid) {
 
             case Constants.UUID_CHARACTERISTIC_BLOOD_PRESSURE_DATA:
-                handleDataChannelResponse(characteristic.getValue());
+                handleDataChannelResponse(buffer, length);
                 break;
 
             case Constants.UUID_CHARACTERISTIC_INDICATE_CHALLENGE:
-                handleControlChannelResponse(characteristic.getValue());
+                handleControlChannelResponse(buffer, length);
                 break;
 
             default:
-                return super.handleCharacteristicChanged(characteristic);
+                return super.handleCharacteristicChanged(characteristic, buffer, length);
 
         }
 
@@ -99,9 +160,9 @@ public class SynchronizeProtocol extends GenericProtocol {
     @Override
     public boolean handleCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
 
-        if (status == 0) {
-            /* we have an error */
-            /* notify and disconnect */
+        /* a failed write was already reported as error */
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            return false;
         }
 
         final String uuid = characteristic.getUuid().toString();
@@ -111,8 +172,10 @@ public class SynchronizeProtocol extends GenericProtocol {
 
             onFinished();
 
+            mTransferStarted = true;
+
             if(mDevice.isConnected()) {
-                mNotifyHandler.post(new Runnable() {
+                mCallbackExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
                         mCallbacks.onSynchronizationStarted(mDevice);
@@ -120,6 +183,8 @@ public class SynchronizeProtocol extends GenericProtocol {
                 });
             }
 
+            mHandler.post(mStartTransferRunnable);
+
 
             return true;
 
@@ -128,6 +193,43 @@ public class SynchronizeProtocol extends GenericProtocol {
         return super.handleCharacteristicWrite(characteristic, status);
     }
 
+    @Override
+    public boolean handleDisconnect() {
+
+        if (!mTransferStarted) {
+            return false;
+        }
+
+        /* the device closing the link ends the transfer as well */
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finishTransfer(false);
+            }
+        });
+
+        return true;
+
+    }
+
+    /*
+     * Appends every reading to the batch as well, it must only be read once the synchronization finished or failed
+     */
+    public void setReadingBatch(@Nullable ReadingBatch batch) {
+        this.mReadingBatch = batch;
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+
+        mTransferFinished = true;
+        cancelIdleTimeout();
+
+        mHandler.removeCallbacks(mFlushBatchRunnable);
+        mBatch.clear();
+    }
+
     @Override
     protected void onSetupFinished() {
         super.registerForNotifications();
@@ -135,8 +237,8 @@ public class SynchronizeProtocol extends GenericProtocol {
 
     @Override
     protected void fireError(final BPMonitorError error) {
-        onError();
-        mNotifyHandler.post(new Runnable() {
+        onError(error);
+        mCallbackExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 mCallbacks.onSynchronizationFailed(mDevice, error);
@@ -156,19 +258,25 @@ public class SynchronizeProtocol extends GenericProtocol {
             return;
         }
 
-        this.mDevice.sendControlSequence((byte) Constants.CMD_SEND_XOR, BPMonitorDataConverter.calculateChallengeResponse(challenge, super.mDevice.getDeviceInformation().getPassword()));
-        this.mDevice.sendControlSequence((byte) Constants.CMD_SEND_BROADCAST_ID, this.mDevice.getDeviceInformation().getBroadcastId());
-        this.mDevice.sendControlSequence((byte) Constants.CMD_SEND_TIME, BPMonitorDataConverter.currentDateTimeAsBytes());
-        this.mDevice.sendControlSequence((byte) Constants.CMD_FINISH);
+        this.mDevice.sendControlSequence(this.mDevice.getCommandEncoder().encodeChallengeResponse(challenge, super.mDevice.getDeviceInformation().getPassword()));
+        selectUserAndFinish();
 
     }
 
-    private void handleControlChannelResponse(byte[] bytes) {
+    private void selectUserAndFinish() {
 
-        if (bytes.length > 0) {
+        this.mDevice.sendControlSequence(Constants.CMD_SEND_BROADCAST_ID, this.mDevice.getDeviceInformation().getBroadcastId());
+        this.mDevice.sendControlSequence(this.mDevice.getCommandEncoder().encodeTime(System.currentTimeMillis()));
+        this.mDevice.sendControlSequence(Constants.CMD_FINISH);
+
+    }
+
+    private void handleControlChannelResponse(@NonNull byte[] bytes, int length) {
+
+        if (length > 0) {
 
             byte cmd = bytes[0];
-            byte[] data = Arrays.copyOfRange(bytes, 1, bytes.length);
+            byte[] data = Arrays.copyOfRange(bytes, 1, length);
 
             switch (cmd) {
 
@@ -184,22 +292,45 @@ public class SynchronizeProtocol extends GenericProtocol {
 
     }
 
-    private void handleDataChannelResponse(byte[] bytes) {
+    /*
+     * Runs on the looper of the device
+     */
+    private void handleDataChannelResponse(byte[] buffer, int length) {
 
-        if (bytes.length > 0) {
+        final int result = BloodPressureFrameDecoder.decode(buffer, 0, length, mFrame);
 
-            final BloodPressureReading measurement = BPMonitorDataConverter.bytesToBloodPressureData(bytes);
+        if (result != BloodPressureFrameDecoder.RESULT_OK) {
+            Log.w(TAG, String.format("dropped reading: %s", BloodPressureFrameDecoder.getResultName(result)));
+            return;
+        }
 
-            if (measurement != null && mDevice.isConnected()) {
-                mNotifyHandler.post(new Runnable() {
+        if (mDevice.isConnected()) {
+
+            final ReadingBatch batch = mReadingBatch;
+            if (batch != null) {
+                batch.add(mFrame);
+            }
+
+            final BloodPressureReading measurement = mFrame.toReading();
+
+            super.onReading(measurement);
+
+            /* readings are frequent, skip the task where no thread has to be changed */
+            if (mBatchCallbacks != null) {
+                addToBatch(measurement);
+            } else if (mCallbackExecutor == DirectExecutor.INSTANCE) {
+                mCallbacks.onReadingReceived(mDevice, measurement);
+            } else {
+                mCallbackExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
                         mCallbacks.onReadingReceived(mDevice, measurement);
                     }
                 });
-
             }
 
+            onReadingReceived();
+
         }
 
     }
@@ -209,4 +340,178 @@ public class SynchronizeProtocol extends GenericProtocol {
         startSynchronizationProcess(challenge);
     }
 
+    private void addToBatch(BloodPressureReading reading) {
+
+        mBatch.add(reading);
+
+        /* late readings after the end of the transfer aren't held back */
+        if (mTransferFinished || mBatch.size() >= mOptions.getBatchSize()) {
+            flushBatch();
+        } else if (mBatch.size() == 1) {
+            mHandler.postDelayed(mFlushBatchRunnable, mOptions.getBatchWindow());
+        }
+
+    }
+
+    private void flushBatch() {
+
+        mHandler.removeCallbacks(mFlushBatchRunnable);
+
+        if (mBatchCallbacks == null || mBatch.isEmpty()) {
+            return;
+        }
+
+        final List<BloodPressureReading> batch = Collections.unmodifiableList(mBatch);
+        mBatch = new ArrayList<>();
+
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mBatchCallbacks.onReadingsReceived(mDevice, batch);
+            }
+        });
+
+    }
+
+    private final Runnable mFlushBatchRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            flushBatch();
+        }
+
+    };
+
+    private void onReadingReceived() {
+
+        if (mTransferFinished) {
+            return;
+        }
+
+        mReadingCount++;
+        mLastReading = SystemClock.elapsedRealtime();
+
+        if (mOptions.getExpectedReadings() > 0 && mReadingCount >= mOptions.getExpectedReadings()) {
+            finishTransfer(mDevice.isConnected());
+        } else {
+            scheduleIdleTimeout();
+        }
+
+    }
+
+    /*
+     * connected: false if the transfer was ended by the device disconnecting
+     */
+    private void finishTransfer(boolean connected) {
+
+        if (mTransferFinished) {
+            return;
+        }
+
+        mTransferFinished = true;
+        cancelIdleTimeout();
+
+        /* all readings are delivered before the synchronization is finished */
+        flushBatch();
+
+        /* readings received before the transfer was started don't count for the duration */
+        final long start = mTransferStart > 0 ? mTransferStart : SystemClock.elapsedRealtime();
+        final long duration = (mReadingCount > 0 ? mLastReading : SystemClock.elapsedRealtime()) - start;
+        final int count = mReadingCount;
+
+        Log.i(TAG, String.format("transfer finished: %d readings in %d ms", count, duration));
+
+        if (connected) {
+
+            mDevice.setDeviceState(BPMonitor.DeviceState.CONNECTED);
+
+            /* the readings are in, metadata doesn't hold them up anymore */
+            if (mOptions.isFastPath() && !mAuthenticated) {
+                super.requestDeviceInformation(mOptions.getDeviceInformationFields());
+            }
+
+            super.onTransferFinished(mOptions.isDisconnectWhenFinished());
+
+        }
+
+        if (mCallbacks instanceof SynchronizationFinishedCallbacks) {
+            final SynchronizationFinishedCallbacks callbacks = (SynchronizationFinishedCallbacks) mCallbacks;
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callbacks.onSynchronizationFinished(mDevice, count, duration);
+                }
+            });
+        }
+
+    }
+
+    private final Runnable mStartTransferRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            if (mTransferStart == 0) {
+                mTransferStart = SystemClock.elapsedRealtime();
+            }
+
+            if (!mTransferFinished && mReadingCount == 0) {
+                scheduleIdleTimeout();
+            }
+
+        }
+
+    };
+
+    private void scheduleIdleTimeout() {
+
+        cancelIdleTimeout();
+
+        mIdleTimeout = TimerWheel.getDefault().schedule(mIdleTask, getIdleTime());
+
+    }
+
+    private long getIdleTime() {
+        return mOptions.getIdleTimeout() > 0 ? mOptions.getIdleTimeout() : mDevice.getDeadlines().get(Deadlines.PHASE_TRANSFER_IDLE);
+    }
+
+    private void cancelIdleTimeout() {
+
+        if (mIdleTimeout != null) {
+            mIdleTimeout.cancel();
+            mIdleTimeout = null;
+        }
+
+        mHandler.removeCallbacks(mIdleRunnable);
+
+    }
+
+    /*
+     * Runs on the timer thread
+     */
+    private final Runnable mIdleTask = new Runnable() {
+
+        @Override
+        public void run() {
+            mHandler.post(mIdleRunnable);
+        }
+
+    };
+
+    private final Runnable mIdleRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            /* fired late for an idle time which was restarted meanwhile */
+            if (mReadingCount > 0 && SystemClock.elapsedRealtime() - mLastReading < getIdleTime()) {
+                return;
+            }
+
+            finishTransfer(mDevice.isConnected());
+
+        }
+
+    };
+
 }
@@ -15,12 +15,12 @@
  */
 package com.tangentlines.bpmonitor.utils;
 
+import com.tangentlines.bpmonitor.Constants;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Calendar;
+import java.nio.charset.Charset;
 import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.TimeZone;
 
 /**
  * Created by markus on 23.08.17.
@@ -30,6 +30,9 @@ public class BinaryUtils {
 
     private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
+    /* charset of the strings the device sends and receives */
+    public static final Charset ASCII = Charset.forName("US-ASCII");
+
     public static byte[] hexStringToByteArray(String s) {
 
         if (s == null) {
@@ -57,6 +60,19 @@ public class BinaryUtils {
         return new String(hexChars);
     }
 
+    /*
+     * Formats the remaining bytes without moving the position of the buffer
+     */
+    public static String bytesToHex(ByteBuffer buffer) {
+        char[] hexChars = new char[buffer.remaining() * 2];
+        for (int j = 0; j < buffer.remaining(); j++) {
+            int v = buffer.get(buffer.position() + j) & 0xFF;
+            hexChars[j * 2] = hexArray[v >>> 4];
+            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
     public static byte[] longToBytes(long paramLong) {
         long unsigned = 0xFFFFFFFFFFFFFFFFL & paramLong;
         return new byte[]{(byte) (int) (0xFF & unsigned), (byte) (int) ((0xFF00 & unsigned) >>> 8), (byte) (int) ((0xFF0000 & unsigned) >>> 16), (byte) (int) ((unsigned & 0xFFFFFFFFFF000000L) >>> 24)};
@@ -76,26 +92,26 @@ public class BinaryUtils {
 
     }
 
-    /* TODO: support for negative numbers is missing */
+    /*
+     * SFLOAT, see Ieee11073Float
+     */
     public static float doubleByteToFloat(byte[] input) {
+        return Ieee11073Float.readSFloat(input, 0);
+    }
 
-        int intValue = (0xFF00 & input[1] << 8) + (input[0] & 0xFF);            // input as int
-        int sign = (0x8000 & intValue) >>> 15;                                  // sign
-        int exponent = (0xF000 & intValue) >>> 12;                              // exponent
-
-        return (float) ((intValue & 0x1FFF) * Math.pow(10.0D, exponent));
-
+    public static float doubleByteToFloat(byte[] input, int offset) {
+        return Ieee11073Float.readSFloat(input, offset);
     }
 
     public static Date toDate(byte[] paramArrayOfByte) {
+        return new Date(toTimestamp(paramArrayOfByte, 0));
+    }
 
-        long secondsSince2010 = getUnsignedInt(paramArrayOfByte);
-
-        Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-        cal.set(2010, 1, 1);
-
-        return new Date(cal.getTimeInMillis() + (secondsSince2010 * 1000L));
-
+    /*
+     * Device time at offset as milliseconds since 1970
+     */
+    public static long toTimestamp(byte[] input, int offset) {
+        return Constants.DEVICE_EPOCH + getUnsignedInt(input, offset) * 1000L;
     }
 
     public static long getUnsignedInt(byte[] bytes) {
@@ -111,4 +127,59 @@ public class BinaryUtils {
         return 0xFF00 & paramArrayOfByte[1] << 8 | paramArrayOfByte[0] & 0xFF;
     }
 
+    /*
+     * Little endian, read in place
+     */
+    public static int getUnsignedShort(byte[] input, int offset) {
+        return (input[offset + 1] & 0xFF) << 8 | input[offset] & 0xFF;
+    }
+
+    public static long getUnsignedInt(byte[] input, int offset) {
+        return ((long) (input[offset + 3] & 0xFF) << 24 | (input[offset + 2] & 0xFF) << 16 | (input[offset + 1] & 0xFF) << 8 | input[offset] & 0xFF);
+    }
+
+    public static void putUnsignedShort(ByteBuffer out, int value) {
+        out.put((byte) value);
+        out.put((byte) (value >>> 8));
+    }
+
+    /*
+     * Milliseconds since 1970 as device time, unsigned 32 bit little endian seconds since the device epoch
+     */
+    public static void putTimestamp(ByteBuffer out, long timeMillis) {
+
+        final long seconds = (timeMillis - Constants.DEVICE_EPOCH) / 1000L;
+
+        out.put((byte) seconds);
+        out.put((byte) (seconds >>> 8));
+        out.put((byte) (seconds >>> 16));
+        out.put((byte) (seconds >>> 24));
+
+    }
+
+    /*
+     * US-ASCII string of length bytes at offset, without the padding
+     */
+    public static String getString(byte[] input, int offset, int length) {
+        return new String(input, offset, length, ASCII).trim();
+    }
+
+    /*
+     * Writes exactly length bytes: the string cut or padded with spaces, other than US-ASCII characters become '?'
+     */
+    public static void putString(ByteBuffer out, String value, int length) {
+
+        final int count = value != null ? Math.min(length, value.length()) : 0;
+
+        for (int i = 0; i < count; i++) {
+            final char c = value.charAt(i);
+            out.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+
+        for (int i = count; i < length; i++) {
+            out.put((byte) ' ');
+        }
+
+    }
+
 }
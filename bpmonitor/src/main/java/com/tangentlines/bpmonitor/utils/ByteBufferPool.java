@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Pool of heap buffers whose backing array has exactly the requested size, so the array can be handed
+ * to the bluetooth stack as it is. Buffers larger than maxSize are allocated but not pooled.
+ */
+public class ByteBufferPool {
+
+    private final ByteBuffer[][] mFree;
+    private final int[] mCount;
+    private final int mMaxSize;
+
+    public ByteBufferPool(int maxSize, int buffersPerSize) {
+
+        if (maxSize <= 0 || buffersPerSize <= 0) {
+            throw new IllegalArgumentException("maxSize and buffersPerSize must be > 0");
+        }
+
+        this.mMaxSize = maxSize;
+        this.mFree = new ByteBuffer[maxSize + 1][buffersPerSize];
+        this.mCount = new int[maxSize + 1];
+
+    }
+
+    /*
+     * Returns a cleared buffer with a capacity of exactly size bytes
+     */
+    @NonNull
+    public synchronized ByteBuffer acquire(int size) {
+
+        if (size < 0) {
+            throw new IllegalArgumentException("size must be >= 0");
+        }
+
+        if (size <= mMaxSize && mCount[size] > 0) {
+
+            final int index = --mCount[size];
+            final ByteBuffer buffer = mFree[size][index];
+            mFree[size][index] = null;
+
+            buffer.clear();
+            return buffer;
+
+        }
+
+        return ByteBuffer.allocate(size);
+
+    }
+
+    /*
+     * Hands a buffer back, it must not be used by the caller afterwards
+     */
+    public synchronized void release(@NonNull ByteBuffer buffer) {
+
+        final int size = buffer.capacity();
+
+        if (size > mMaxSize || !buffer.hasArray() || buffer.arrayOffset() != 0 || buffer.array().length != size) {
+            return;
+        }
+
+        if (mCount[size] < mFree[size].length) {
+            mFree[size][mCount[size]++] = buffer;
+        }
+
+    }
+
+}
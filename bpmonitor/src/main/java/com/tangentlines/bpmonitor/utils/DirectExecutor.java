@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/*
+ * Runs the tasks right away on the calling thread.
+ * Callbacks delivered this way run on the bluetooth thread and must not block.
+ */
+public final class DirectExecutor implements Executor {
+
+    public static final DirectExecutor INSTANCE = new DirectExecutor();
+
+    private DirectExecutor() {
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        command.run();
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Hands frames from the thread they arrive on over to a consumer thread, in order and exactly once.
+ * Frames are copied into a FrameRing right away, so the caller may reuse its buffer as soon as offer() returns.
+ * Only one task is pending on the executor while frames are queued, a frame only allocates if it is larger than a slot
+ * or the ring is full because the consumer falls behind.
+ *
+ * offer() must only be called from one thread at a time, the executor has to run its tasks one after another.
+ */
+public class FrameIngest {
+
+    private final FrameRing mFrames;
+    private final Executor mExecutor;
+    private final FrameRing.Consumer mConsumer;
+
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
+    /* frames which didn't fit into the ring and are still on their way, later frames have to queue up behind them */
+    private final AtomicInteger mOverflowFrames = new AtomicInteger(0);
+
+    public FrameIngest(int capacity, int maxFrameSize, @NonNull Executor executor, @NonNull FrameRing.Consumer consumer) {
+        this.mFrames = new FrameRing(capacity, maxFrameSize);
+        this.mExecutor = executor;
+        this.mConsumer = consumer;
+    }
+
+    public void offer(final int tag, @NonNull byte[] frame) {
+
+        if (mOverflowFrames.get() == 0 && mFrames.offer(tag, frame)) {
+
+            if (mDrainScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(mDrainRunnable);
+            }
+
+            return;
+
+        }
+
+        /* ring full or frame too large, the frames already in the ring are handled first to keep the order */
+        final byte[] copy = Arrays.copyOf(frame, frame.length);
+        mOverflowFrames.incrementAndGet();
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mFrames.drain(mConsumer);
+                mConsumer.onFrame(tag, copy, copy.length);
+                mOverflowFrames.decrementAndGet();
+            }
+        });
+
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            /* frames arriving from now on need another drain */
+            mDrainScheduled.set(false);
+            mFrames.drain(mConsumer);
+
+        }
+
+    };
+
+}
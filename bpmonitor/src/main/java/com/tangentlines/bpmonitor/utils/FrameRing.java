@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Preallocated single producer / single consumer ring of raw frames, each tagged with an int chosen by the producer.
+ * The producer copies a frame into a free slot without allocating or locking, the consumer reads the slots in order
+ * on its own thread. Only one thread may offer and only one thread may drain at a time.
+ */
+public class FrameRing {
+
+    public interface Consumer {
+
+        /*
+         * buffer is only valid during the call, length is the size of the frame
+         */
+        void onFrame(int tag, @NonNull byte[] buffer, int length);
+
+    }
+
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private final int[] mTags;
+    private final int mMask;
+    private final int mMaxFrameSize;
+
+    /* index of the next slot to read, written by the consumer */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /* index of the next slot to write, written by the producer */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /* last seen index of the other side, saves volatile reads while the ring is neither full nor empty */
+    private long mProducerHead = 0;
+    private long mConsumerTail = 0;
+
+    /*
+     * capacity must be a power of two
+     */
+    public FrameRing(int capacity, int maxFrameSize) {
+
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+
+        this.mSlots = new byte[capacity][maxFrameSize];
+        this.mLengths = new int[capacity];
+        this.mTags = new int[capacity];
+        this.mMask = capacity - 1;
+        this.mMaxFrameSize = maxFrameSize;
+
+    }
+
+    /*
+     * Copies the frame into the ring, returns false if the ring is full or the frame is larger than a slot
+     */
+    public boolean offer(int tag, @NonNull byte[] frame) {
+
+        if (frame.length > mMaxFrameSize) {
+            return false;
+        }
+
+        final long tail = mTail.get();
+
+        if (tail - mProducerHead > mMask) {
+
+            mProducerHead = mHead.get();
+
+            if (tail - mProducerHead > mMask) {
+                return false;
+            }
+
+        }
+
+        final int slot = (int) (tail & mMask);
+        System.arraycopy(frame, 0, mSlots[slot], 0, frame.length);
+        mLengths[slot] = frame.length;
+        mTags[slot] = tag;
+
+        /* publishes the slot to the consumer */
+        mTail.lazySet(tail + 1);
+
+        return true;
+
+    }
+
+    /*
+     * Hands all available frames to the consumer in order, returns their number
+     */
+    public int drain(@NonNull Consumer consumer) {
+
+        long head = mHead.get();
+        int count = 0;
+
+        while (true) {
+
+            if (head >= mConsumerTail) {
+
+                mConsumerTail = mTail.get();
+
+                if (head >= mConsumerTail) {
+                    return count;
+                }
+
+            }
+
+            final int slot = (int) (head & mMask);
+            consumer.onFrame(mTags[slot], mSlots[slot], mLengths[slot]);
+
+            /* frees the slot for the producer */
+            mHead.lazySet(++head);
+            count++;
+
+        }
+
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+/*
+ * The thread the bluetooth stack of all devices runs on, unless a device is created with its own looper.
+ * Only user callbacks leave this thread.
+ */
+public final class GattThread {
+
+    private static HandlerThread sThread;
+
+    private GattThread() {
+    }
+
+    @NonNull
+    public static synchronized Looper getLooper() {
+
+        if (sThread == null) {
+            sThread = new HandlerThread("bpmonitor-gatt", Process.THREAD_PRIORITY_FOREGROUND);
+            sThread.start();
+        }
+
+        return sThread.getLooper();
+
+    }
+
+}
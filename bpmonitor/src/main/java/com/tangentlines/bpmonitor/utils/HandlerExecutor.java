@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+
+/*
+ * Runs the tasks on a looper
+ */
+public class HandlerExecutor implements Executor {
+
+    private static final String TAG = HandlerExecutor.class.getSimpleName();
+
+    private final Handler mHandler;
+
+    public HandlerExecutor(@NonNull Looper looper) {
+        this.mHandler = new Handler(looper);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+
+        /* the looper was quit, nobody is listening anymore */
+        if (!mHandler.post(command)) {
+            Log.w(TAG, "callback dropped, looper is not running");
+        }
+
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+/*
+ * IEEE 11073-20601 SFLOAT (16 bit: 4 bit exponent, 12 bit mantissa) and FLOAT (32 bit: 8 bit exponent, 24 bit mantissa),
+ * both little endian with a signed base 10 exponent: value = mantissa * 10^exponent.
+ * The mantissa and exponent are also available as fixed point, so callers can skip floats entirely.
+ */
+public final class Ieee11073Float {
+
+    /* special SFLOAT values, always with exponent 0 */
+    public static final int SFLOAT_NAN = 0x07FF;
+    public static final int SFLOAT_NRES = 0x0800;
+    public static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    public static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    public static final int SFLOAT_RESERVED = 0x0801;
+
+    /* special FLOAT values, always with exponent 0 */
+    public static final int FLOAT_NAN = 0x007FFFFF;
+    public static final int FLOAT_NRES = 0x00800000;
+    public static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    public static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    public static final int FLOAT_RESERVED = 0x00800001;
+
+    /* largest mantissa which isn't a special value */
+    private static final int SFLOAT_MAX_MANTISSA = 0x07FD;
+    private static final int FLOAT_MAX_MANTISSA = 0x007FFFFD;
+
+    private static final int SFLOAT_MIN_EXPONENT = -8;
+    private static final int SFLOAT_MAX_EXPONENT = 7;
+    private static final int FLOAT_MIN_EXPONENT = -128;
+    private static final int FLOAT_MAX_EXPONENT = 127;
+
+    /* 10^0 to 10^128, correctly rounded */
+    private static final double[] POWERS_OF_TEN = new double[129];
+
+    static {
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = Double.parseDouble("1e" + i);
+        }
+    }
+
+    private Ieee11073Float() {
+    }
+
+    /* SFLOAT */
+
+    public static float readSFloat(byte[] buffer, int offset) {
+        return sfloatToFloat((buffer[offset + 1] & 0xFF) << 8 | buffer[offset] & 0xFF);
+    }
+
+    public static void writeSFloat(byte[] buffer, int offset, float value) {
+
+        final int raw = floatToSFloat(value);
+
+        buffer[offset] = (byte) raw;
+        buffer[offset + 1] = (byte) (raw >>> 8);
+
+    }
+
+    /*
+     * NaN, NRes and the reserved value decode to Float.NaN
+     */
+    public static float sfloatToFloat(int raw) {
+
+        raw &= 0xFFFF;
+
+        switch (raw) {
+            case SFLOAT_POSITIVE_INFINITY:
+                return Float.POSITIVE_INFINITY;
+            case SFLOAT_NEGATIVE_INFINITY:
+                return Float.NEGATIVE_INFINITY;
+            case SFLOAT_NAN:
+            case SFLOAT_NRES:
+            case SFLOAT_RESERVED:
+                return Float.NaN;
+        }
+
+        return (float) scale(getSFloatMantissa(raw), getSFloatExponent(raw));
+
+    }
+
+    /*
+     * Encodes with the smallest exponent which fits the mantissa, trailing zeros are moved into the exponent.
+     * Values too large for the format become infinity, values too small become 0.
+     */
+    public static int floatToSFloat(float value) {
+
+        if (Float.isNaN(value)) {
+            return SFLOAT_NAN;
+        }
+
+        if (Float.isInfinite(value)) {
+            return value > 0 ? SFLOAT_POSITIVE_INFINITY : SFLOAT_NEGATIVE_INFINITY;
+        }
+
+        final long fixed = toFixed(value, SFLOAT_MAX_MANTISSA, SFLOAT_MIN_EXPONENT, SFLOAT_MAX_EXPONENT);
+
+        if (fixed == Long.MAX_VALUE) {
+            return value > 0 ? SFLOAT_POSITIVE_INFINITY : SFLOAT_NEGATIVE_INFINITY;
+        }
+
+        return fixedToSFloat((int) (fixed >> 32), (int) fixed);
+
+    }
+
+    /*
+     * Raw SFLOAT of mantissa * 10^exponent, mantissa and exponent have to fit the format
+     */
+    public static int fixedToSFloat(int mantissa, int exponent) {
+
+        if (mantissa < -SFLOAT_MAX_MANTISSA || mantissa > SFLOAT_MAX_MANTISSA) {
+            throw new IllegalArgumentException("mantissa out of range: " + mantissa);
+        }
+
+        if (exponent < SFLOAT_MIN_EXPONENT || exponent > SFLOAT_MAX_EXPONENT) {
+            throw new IllegalArgumentException("exponent out of range: " + exponent);
+        }
+
+        return (exponent & 0xF) << 12 | mantissa & 0x0FFF;
+
+    }
+
+    /*
+     * Signed 12 bit mantissa, only meaningful if the value isn't special
+     */
+    public static int getSFloatMantissa(int raw) {
+        return (raw << 20) >> 20;
+    }
+
+    /*
+     * Signed 4 bit exponent
+     */
+    public static int getSFloatExponent(int raw) {
+        return (raw << 16) >> 28;
+    }
+
+    public static boolean isSFloatSpecial(int raw) {
+
+        raw &= 0xFFFF;
+        return raw >= SFLOAT_POSITIVE_INFINITY && raw <= SFLOAT_NEGATIVE_INFINITY;
+
+    }
+
+    /* FLOAT */
+
+    public static float readFloat(byte[] buffer, int offset) {
+        return float32ToFloat((buffer[offset + 3] & 0xFF) << 24 | (buffer[offset + 2] & 0xFF) << 16 | (buffer[offset + 1] & 0xFF) << 8 | buffer[offset] & 0xFF);
+    }
+
+    public static void writeFloat(byte[] buffer, int offset, float value) {
+
+        final int raw = floatToFloat32(value);
+
+        buffer[offset] = (byte) raw;
+        buffer[offset + 1] = (byte) (raw >>> 8);
+        buffer[offset + 2] = (byte) (raw >>> 16);
+        buffer[offset + 3] = (byte) (raw >>> 24);
+
+    }
+
+    /*
+     * NaN, NRes and the reserved value decode to Float.NaN
+     */
+    public static float float32ToFloat(int raw) {
+
+        switch (raw) {
+            case FLOAT_POSITIVE_INFINITY:
+                return Float.POSITIVE_INFINITY;
+            case FLOAT_NEGATIVE_INFINITY:
+                return Float.NEGATIVE_INFINITY;
+            case FLOAT_NAN:
+            case FLOAT_NRES:
+            case FLOAT_RESERVED:
+                return Float.NaN;
+        }
+
+        return (float) scale(getFloatMantissa(raw), getFloatExponent(raw));
+
+    }
+
+    /*
+     * Encodes with the smallest exponent which fits the mantissa, trailing zeros are moved into the exponent
+     */
+    public static int floatToFloat32(float value) {
+
+        if (Float.isNaN(value)) {
+            return FLOAT_NAN;
+        }
+
+        if (Float.isInfinite(value)) {
+            return value > 0 ? FLOAT_POSITIVE_INFINITY : FLOAT_NEGATIVE_INFINITY;
+        }
+
+        final long fixed = toFixed(value, FLOAT_MAX_MANTISSA, FLOAT_MIN_EXPONENT, FLOAT_MAX_EXPONENT);
+
+        if (fixed == Long.MAX_VALUE) {
+            return value > 0 ? FLOAT_POSITIVE_INFINITY : FLOAT_NEGATIVE_INFINITY;
+        }
+
+        return fixedToFloat32((int) (fixed >> 32), (int) fixed);
+
+    }
+
+    /*
+     * Raw FLOAT of mantissa * 10^exponent, mantissa and exponent have to fit the format
+     */
+    public static int fixedToFloat32(int mantissa, int exponent) {
+
+        if (mantissa < -FLOAT_MAX_MANTISSA || mantissa > FLOAT_MAX_MANTISSA) {
+            throw new IllegalArgumentException("mantissa out of range: " + mantissa);
+        }
+
+        if (exponent < FLOAT_MIN_EXPONENT || exponent > FLOAT_MAX_EXPONENT) {
+            throw new IllegalArgumentException("exponent out of range: " + exponent);
+        }
+
+        return exponent << 24 | mantissa & 0x00FFFFFF;
+
+    }
+
+    /*
+     * Signed 24 bit mantissa, only meaningful if the value isn't special
+     */
+    public static int getFloatMantissa(int raw) {
+        return (raw << 8) >> 8;
+    }
+
+    /*
+     * Signed 8 bit exponent
+     */
+    public static int getFloatExponent(int raw) {
+        return raw >> 24;
+    }
+
+    public static boolean isFloatSpecial(int raw) {
+        return raw >= FLOAT_POSITIVE_INFINITY && raw <= FLOAT_NEGATIVE_INFINITY;
+    }
+
+    /* helpers */
+
+    /*
+     * mantissa * 10^exponent, dividing for negative exponents keeps values like 0.1 exact after rounding to float
+     */
+    private static double scale(int mantissa, int exponent) {
+        return exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+    }
+
+    private static long toMantissa(float value, int exponent) {
+        return Math.round(exponent >= 0 ? value / POWERS_OF_TEN[exponent] : value * POWERS_OF_TEN[-exponent]);
+    }
+
+    /*
+     * Returns mantissa << 32 | exponent, or Long.MAX_VALUE if the value is too large for the format
+     */
+    private static long toFixed(float value, int maxMantissa, int minExponent, int maxExponent) {
+
+        if (value == 0) {
+            return 0;
+        }
+
+        /* the smallest exponent whose mantissa fits keeps the most digits, log10 may be off by one close to powers of ten */
+        int exponent = Math.max(minExponent, (int) Math.floor(Math.log10(Math.abs(value) / maxMantissa)) - 1);
+
+        if (exponent > maxExponent) {
+            return Long.MAX_VALUE;
+        }
+
+        long mantissa = toMantissa(value, exponent);
+
+        while (Math.abs(mantissa) > maxMantissa) {
+
+            if (++exponent > maxExponent) {
+                return Long.MAX_VALUE;
+            }
+
+            mantissa = toMantissa(value, exponent);
+
+        }
+
+        while (mantissa != 0 && mantissa % 10 == 0 && exponent < maxExponent) {
+            mantissa /= 10;
+            exponent++;
+        }
+
+        return mantissa << 32 | (exponent & 0xFFFFFFFFL);
+
+    }
+
+}
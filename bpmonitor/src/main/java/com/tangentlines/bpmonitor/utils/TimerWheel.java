@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Hierarchical timing wheel shared by all devices for request timeouts and protocol deadlines.
+ * Scheduling and cancelling are O(1), a single thread ticks only while timeouts are pending.
+ *
+ * Level 0 covers 64 ticks of 50 ms, level 1 64 level 0 rounds and level 2 64 level 1 rounds (about 3.6 hours).
+ * Timeouts are moved down a level when their round comes, later deadlines wait in the last slot of level 2.
+ * Expired tasks run on the timer thread and have to hand over to their own thread.
+ */
+public class TimerWheel {
+
+    public static final long TICK = 50;
+
+    private static final int LEVELS = 3;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private static TimerWheel sDefault;
+
+    /*
+     * Time source and tick scheduling of the wheel, a handler in production
+     */
+    interface Ticker {
+
+        long now();
+
+        void scheduleTick(@NonNull Runnable tick, long uptime);
+
+    }
+
+    public static class Timeout {
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+
+        private Timeout prev;
+        private Timeout next;
+        private int level = -1;
+        private int slot;
+
+        private Timeout(@NonNull TimerWheel wheel, @NonNull Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /*
+         * Has no effect if the task already ran
+         */
+        public void cancel() {
+            wheel.cancel(this);
+        }
+
+    }
+
+    private final Object mLock = new Object();
+    private final Timeout[][] mSlots = new Timeout[LEVELS][SLOTS];
+
+    private final Ticker mTicker;
+
+    private long mCurrentTick = 0;
+    private long mStartTime = 0;
+    private int mPending = 0;
+    private boolean mRunning = false;
+
+    /*
+     * The wheel shared by all devices
+     */
+    @NonNull
+    public static synchronized TimerWheel getDefault() {
+
+        if (sDefault == null) {
+            final HandlerThread thread = new HandlerThread("bpmonitor-timer", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sDefault = new TimerWheel(new Handler(thread.getLooper()));
+        }
+
+        return sDefault;
+
+    }
+
+    public TimerWheel(@NonNull final Handler handler) {
+        this(new Ticker() {
+
+            @Override
+            public long now() {
+                return SystemClock.uptimeMillis();
+            }
+
+            @Override
+            public void scheduleTick(@NonNull Runnable tick, long uptime) {
+                handler.postAtTime(tick, uptime);
+            }
+
+        });
+    }
+
+    TimerWheel(@NonNull Ticker ticker) {
+        this.mTicker = ticker;
+    }
+
+    /*
+     * Runs the task on the timer thread after at least delay ms, rounded up to the next tick
+     */
+    @NonNull
+    public Timeout schedule(@NonNull Runnable task, long delay) {
+
+        synchronized (mLock) {
+
+            final long now = mTicker.now();
+
+            if (!mRunning) {
+                /* the wheel stood still, continue counting from now */
+                mRunning = true;
+                mStartTime = now - mCurrentTick * TICK;
+                mTicker.scheduleTick(mTickRunnable, mStartTime + (mCurrentTick + 1) * TICK);
+            }
+
+            /* the first tick at or after now + delay, so a timeout never expires early */
+            final long deadline = Math.max(mCurrentTick + 1, (now + Math.max(0, delay) - mStartTime + TICK - 1) / TICK);
+            final Timeout timeout = new Timeout(this, task, deadline);
+
+            insert(timeout);
+            mPending++;
+
+            return timeout;
+
+        }
+
+    }
+
+    private void cancel(@NonNull Timeout timeout) {
+
+        synchronized (mLock) {
+
+            if (timeout.level >= 0) {
+                unlink(timeout);
+                mPending--;
+            }
+
+        }
+
+    }
+
+    /*
+     * Puts the timeout into the slot of the level its deadline falls into, returns false if it is due already
+     */
+    private boolean insert(@NonNull Timeout timeout) {
+
+        final long remaining = timeout.deadline - mCurrentTick;
+
+        if (remaining <= 0) {
+            return false;
+        }
+
+        int level = 0;
+        long slot = timeout.deadline;
+
+        while (level < LEVELS - 1 && remaining >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+            slot = timeout.deadline >> (SLOT_BITS * level);
+        }
+
+        /* beyond the range of the wheel, wait in the furthest slot and get re-sorted from there */
+        if (level == LEVELS - 1) {
+            slot = Math.min(slot, (mCurrentTick >> (SLOT_BITS * level)) + SLOTS - 1);
+        }
+
+        timeout.level = level;
+        timeout.slot = (int) (slot & SLOT_MASK);
+        timeout.prev = null;
+        timeout.next = mSlots[level][timeout.slot];
+
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+
+        mSlots[level][timeout.slot] = timeout;
+
+        return true;
+
+    }
+
+    private void unlink(@NonNull Timeout timeout) {
+
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            mSlots[timeout.level][timeout.slot] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.level = -1;
+
+    }
+
+    /*
+     * Moves all timeouts of a slot to lower levels, due ones are added to expired
+     */
+    private void cascade(int level, int slot, @NonNull List<Timeout> expired) {
+
+        Timeout timeout = mSlots[level][slot];
+        mSlots[level][slot] = null;
+
+        while (timeout != null) {
+
+            final Timeout next = timeout.next;
+
+            timeout.level = -1;
+
+            if (!insert(timeout)) {
+                expired.add(timeout);
+            }
+
+            timeout = next;
+
+        }
+
+    }
+
+    private final Runnable mTickRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            final List<Timeout> expired = new ArrayList<>();
+
+            synchronized (mLock) {
+
+                /* catch up if the thread was busy or asleep */
+                final long now = mTicker.now();
+
+                do {
+
+                    mCurrentTick++;
+
+                    for (int level = LEVELS - 1; level > 0; level--) {
+
+                        final long round = mCurrentTick >> (SLOT_BITS * level);
+
+                        if ((mCurrentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                            cascade(level, (int) (round & SLOT_MASK), expired);
+                        }
+
+                    }
+
+                    cascade(0, (int) (mCurrentTick & SLOT_MASK), expired);
+
+                } while (mStartTime + (mCurrentTick + 1) * TICK <= now);
+
+                mPending -= expired.size();
+
+                if (mPending > 0) {
+                    mTicker.scheduleTick(mTickRunnable, mStartTime + (mCurrentTick + 1) * TICK);
+                } else {
+                    mRunning = false;
+                }
+
+            }
+
+            for (Timeout timeout : expired) {
+                timeout.task.run();
+            }
+
+        }
+
+    };
+
+}
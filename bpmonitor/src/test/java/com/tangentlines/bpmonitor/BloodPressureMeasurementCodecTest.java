@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import com.tangentlines.bpmonitor.model.BloodPressureFrame;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloodPressureMeasurementCodecTest {
+
+    /* 120 / 80 / 93 mmHg, systolic with exponent -1 as most monitors send it */
+    private static final byte[] PRESSURES = {(byte) 0xB0, (byte) 0xF4, 0x50, 0x00, 0x5D, 0x00};
+
+    private static byte[] frame(int flags, int... optional) {
+
+        byte[] frame = new byte[1 + PRESSURES.length + optional.length];
+        frame[0] = (byte) flags;
+        System.arraycopy(PRESSURES, 0, frame, 1, PRESSURES.length);
+
+        for (int i = 0; i < optional.length; i++) {
+            frame[1 + PRESSURES.length + i] = (byte) optional[i];
+        }
+
+        return frame;
+
+    }
+
+    @Test
+    public void decodesMandatoryFields() {
+
+        byte[] buffer = frame(0);
+        BloodPressureFrame target = new BloodPressureFrame();
+
+        assertEquals(FrameCodecs.RESULT_OK, BloodPressureMeasurementCodec.decode(buffer, 0, buffer.length, target));
+        assertEquals(0, target.getFlags());
+        assertEquals(120f, target.getSystolic(), 0);
+        assertEquals(80f, target.getDiastolic(), 0);
+        assertEquals(93f, target.getMeanArterialPressure(), 0);
+        assertEquals(0xF4B0, target.getRawSystolic());
+
+    }
+
+    @Test
+    public void leavesAbsentFieldsUntouched() {
+
+        /* trailing bytes which look like a status and a battery level */
+        byte[] buffer = frame(0, 0x04, 0x00, 0x50);
+        BloodPressureFrame target = new BloodPressureFrame();
+        target.setBattery(77);
+        target.setUserId(3);
+
+        assertEquals(FrameCodecs.RESULT_OK, BloodPressureMeasurementCodec.decode(buffer, 0, buffer.length, target));
+        assertEquals(77, target.getBattery());
+        assertEquals(3, target.getUserId());
+        assertEquals(0, target.getMeasurementStatus());
+        assertFalse(target.isIrregularPulse());
+
+    }
+
+    @Test
+    public void decodesMeasurementStatusOnlyWithItsFlag() {
+
+        byte[] buffer = frame(BloodPressureMeasurementCodec.FLAG_MEASUREMENT_STATUS, 0x04, 0x01);
+        BloodPressureFrame target = new BloodPressureFrame();
+
+        assertEquals(FrameCodecs.RESULT_OK, BloodPressureMeasurementCodec.decode(buffer, 0, buffer.length, target));
+        assertEquals(0x0104, target.getMeasurementStatus());
+        assertTrue(target.isIrregularPulse());
+
+    }
+
+    @Test
+    public void decodesBatteryOnlyWithItsFlag() {
+
+        byte[] buffer = frame(BloodPressureMeasurementCodec.FLAG_BATTERY, 0xFA);
+        BloodPressureFrame target = new BloodPressureFrame();
+
+        assertEquals(FrameCodecs.RESULT_OK, BloodPressureMeasurementCodec.decode(buffer, 0, buffer.length, target));
+        assertEquals(250, target.getBattery());
+        assertEquals(0, target.getMeasurementStatus());
+
+    }
+
+    @Test
+    public void decodesUserIdUnsigned() {
+
+        byte[] buffer = frame(BloodPressureMeasurementCodec.FLAG_USER_ID, 0xFF);
+        BloodPressureFrame target = new BloodPressureFrame();
+
+        assertEquals(FrameCodecs.RESULT_OK, BloodPressureMeasurementCodec.decode(buffer, 0, buffer.length, target));
+        assertEquals(255, target.getUserId());
+
+    }
+
+    @Test
+    public void decodesAllFieldsInOrder() {
+
+        int flags = BloodPressureMeasurementCodec.FLAG_TIMESTAMP | BloodPressureMeasurementCodec.FLAG_PULSE_RATE | BloodPressureMeasurementCodec.FLAG_USER_ID
+                | BloodPressureMeasurementCodec.FLAG_MEASUREMENT_STATUS | BloodPressureMeasurementCodec.FLAG_BATTERY;
+
+        byte[] buffer = frame(flags,
+                0x04, 0x03, 0x02, 0x01,            // seconds since the device epoch
+                0x48, 0x00,                         // pulse rate 72
+                0x02,                               // user id
+                0x04, 0x00,                         // irregular pulse
+                0x55);                              // battery
+
+        assertEquals(BloodPressureMeasurementCodec.MAX_LENGTH, buffer.length);
+
+        BloodPressureFrame target = new BloodPressureFrame();
+        assertEquals(FrameCodecs.RESULT_OK, BloodPressureMeasurementCodec.decode(buffer, 0, buffer.length, target));
+
+        assertEquals(flags, target.getFlags());
+        assertEquals(Constants.DEVICE_EPOCH + 0x01020304 * 1000L, target.getTimestamp());
+        assertEquals(72f, target.getPulseRate(), 0);
+        assertEquals(2, target.getUserId());
+        assertTrue(target.isIrregularPulse());
+        assertEquals(0x55, target.getBattery());
+
+    }
+
+    @Test
+    public void decodesAtOffset() {
+
+        byte[] frame = frame(BloodPressureMeasurementCodec.FLAG_USER_ID, 0x09);
+        byte[] buffer = new byte[frame.length + 3];
+        System.arraycopy(frame, 0, buffer, 2, frame.length);
+
+        BloodPressureFrame target = new BloodPressureFrame();
+        assertEquals(FrameCodecs.RESULT_OK, BloodPressureMeasurementCodec.decode(buffer, 2, frame.length, target));
+        assertEquals(9, target.getUserId());
+        assertEquals(120f, target.getSystolic(), 0);
+
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+
+        BloodPressureFrame target = new BloodPressureFrame();
+
+        assertEquals(FrameCodecs.RESULT_EMPTY, BloodPressureMeasurementCodec.decode(new byte[0], 0, 0, target));
+        assertEquals(FrameCodecs.RESULT_TRUNCATED, BloodPressureMeasurementCodec.decode(new byte[]{0, 1, 2}, 0, 3, target));
+
+        /* the flags announce a battery level which is missing */
+        byte[] buffer = frame(BloodPressureMeasurementCodec.FLAG_BATTERY);
+        assertEquals(FrameCodecs.RESULT_TRUNCATED, BloodPressureMeasurementCodec.decode(buffer, 0, buffer.length, target));
+
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsLengthBeyondBuffer() {
+        BloodPressureMeasurementCodec.decode(new byte[7], 1, 7, new BloodPressureFrame());
+    }
+
+    @Test
+    public void computesLengthFromFlags() {
+
+        assertEquals(BloodPressureMeasurementCodec.MIN_LENGTH, BloodPressureMeasurementCodec.getLength(0));
+        assertEquals(11, BloodPressureMeasurementCodec.getLength(BloodPressureMeasurementCodec.FLAG_TIMESTAMP));
+        assertEquals(9, BloodPressureMeasurementCodec.getLength(BloodPressureMeasurementCodec.FLAG_PULSE_RATE));
+        assertEquals(8, BloodPressureMeasurementCodec.getLength(BloodPressureMeasurementCodec.FLAG_USER_ID));
+        assertEquals(9, BloodPressureMeasurementCodec.getLength(BloodPressureMeasurementCodec.FLAG_MEASUREMENT_STATUS));
+        assertEquals(8, BloodPressureMeasurementCodec.getLength(BloodPressureMeasurementCodec.FLAG_BATTERY));
+        assertEquals(BloodPressureMeasurementCodec.MAX_LENGTH, BloodPressureMeasurementCodec.getLength(0xFF));
+
+    }
+
+    @Test
+    public void encodesWhatItDecodes() {
+
+        byte[] buffer = frame(BloodPressureMeasurementCodec.FLAG_TIMESTAMP | BloodPressureMeasurementCodec.FLAG_USER_ID | BloodPressureMeasurementCodec.FLAG_BATTERY,
+                0x10, 0x20, 0x30, 0x00,
+                0x80,
+                0x64);
+
+        BloodPressureFrame target = new BloodPressureFrame();
+        assertEquals(FrameCodecs.RESULT_OK, BloodPressureMeasurementCodec.decode(buffer, 0, buffer.length, target));
+
+        ByteBuffer out = ByteBuffer.allocate(BloodPressureMeasurementCodec.MAX_LENGTH);
+        BloodPressureMeasurementCodec.encode(target, out);
+        out.flip();
+
+        byte[] encoded = new byte[out.remaining()];
+        out.get(encoded);
+        assertArrayEquals(buffer, encoded);
+
+    }
+
+}
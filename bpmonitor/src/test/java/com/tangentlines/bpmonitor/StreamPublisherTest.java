@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import com.tangentlines.bpmonitor.callbacks.Subscriber;
+import com.tangentlines.bpmonitor.callbacks.Subscription;
+import com.tangentlines.bpmonitor.utils.DirectExecutor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamPublisherTest {
+
+    private static class RecordingSubscriber implements Subscriber<Integer> {
+
+        final List<Integer> items = new ArrayList<>();
+        Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+
+    }
+
+    @Test
+    public void deliversRequestedItems() {
+
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(DirectExecutor.INSTANCE, 4);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        publisher.publish(1);
+        publisher.publish(2);
+        assertTrue(subscriber.items.isEmpty());
+
+        subscriber.subscription.request(1);
+        assertEquals(Arrays.asList(1), subscriber.items);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        publisher.publish(3);
+        assertEquals(Arrays.asList(1, 2, 3), subscriber.items);
+
+        publisher.complete();
+        assertTrue(subscriber.completed);
+
+    }
+
+    @Test
+    public void failsSubscriberOnOverflow() {
+
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(DirectExecutor.INSTANCE, 2);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        publisher.publish(1);
+        publisher.publish(2);
+        assertNull(subscriber.error);
+
+        publisher.publish(3);
+        assertNotNull(subscriber.error);
+
+        /* the buffered items are discarded, nothing follows the error */
+        subscriber.subscription.request(10);
+        publisher.publish(4);
+        assertTrue(subscriber.items.isEmpty());
+
+    }
+
+    @Test
+    public void dropsOldestOnOverflow() {
+
+        StreamPublisher<Integer> publisher = new StreamPublisher<>(DirectExecutor.INSTANCE, 2);
+        publisher.setOverflow(BPMonitor.STREAM_OVERFLOW_DROP_OLDEST);
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        for (int i = 1; i <= 5; i++) {
+            publisher.publish(i);
+        }
+
+        subscriber.subscription.request(10);
+        assertNull(subscriber.error);
+        assertEquals(Arrays.asList(4, 5), subscriber.items);
+
+        publisher.publish(6);
+        assertEquals(Arrays.asList(4, 5, 6), subscriber.items);
+        assertFalse(subscriber.completed);
+
+    }
+
+}
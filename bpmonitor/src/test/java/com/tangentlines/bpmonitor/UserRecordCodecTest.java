@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor;
+
+import com.tangentlines.bpmonitor.model.UserInformation;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class UserRecordCodecTest {
+
+    @Test
+    public void encodesPaddedName() {
+
+        ByteBuffer out = ByteBuffer.allocate(UserRecordCodec.MAX_LENGTH);
+        UserRecordCodec.encode(new UserInformation(200, "Anna"), out);
+
+        assertEquals(UserRecordCodec.MAX_LENGTH, out.position());
+        assertEquals((byte) 200, out.get(0));
+        assertEquals('A', out.get(1));
+        assertEquals('a', out.get(4));
+        assertEquals(' ', out.get(5));
+        assertEquals(' ', out.get(16));
+
+    }
+
+    @Test
+    public void roundTripsUnsignedId() {
+
+        ByteBuffer out = ByteBuffer.allocate(UserRecordCodec.MAX_LENGTH);
+        UserRecordCodec.encode(new UserInformation(255, "Bernhard"), out);
+
+        UserInformation target = new UserInformation();
+        assertEquals(FrameCodecs.RESULT_OK, UserRecordCodec.decode(out.array(), 0, out.position(), target));
+        assertEquals(255, target.getId());
+        assertEquals("Bernhard", target.getName());
+
+    }
+
+    @Test
+    public void cutsLongNames() {
+
+        ByteBuffer out = ByteBuffer.allocate(UserRecordCodec.MAX_LENGTH);
+        UserRecordCodec.encode(new UserInformation(1, "Maximilian Mustermann"), out);
+
+        UserInformation target = new UserInformation();
+        assertEquals(FrameCodecs.RESULT_OK, UserRecordCodec.decode(out.array(), 0, out.position(), target));
+        assertEquals("Maximilian Muste", target.getName());
+
+    }
+
+    @Test
+    public void decodesShortName() {
+
+        /* the name takes what is left of the frame, up to 16 bytes */
+        byte[] buffer = {0x05, 'J', 'o', 'e'};
+
+        UserInformation target = new UserInformation();
+        assertEquals(FrameCodecs.RESULT_OK, UserRecordCodec.decode(buffer, 0, buffer.length, target));
+        assertEquals(5, target.getId());
+        assertEquals("Joe", target.getName());
+
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+
+        UserInformation target = new UserInformation();
+
+        assertEquals(FrameCodecs.RESULT_EMPTY, UserRecordCodec.decode(new byte[1], 0, 0, target));
+        assertEquals(FrameCodecs.RESULT_TRUNCATED, UserRecordCodec.decode(new byte[1], 0, 1, target));
+
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.model;
+
+import com.tangentlines.bpmonitor.BloodPressureFrameDecoder;
+
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReadingBatchTest {
+
+    private static BloodPressureReading reading(int i) {
+        return new BloodPressureReading(1, new Date(1500000000000L + i * 60000L), 110 + i, 70 + i, 85 + i, 60 + i, i % 3 == 0, 90);
+    }
+
+    @Test
+    public void growsBeyondItsCapacity() {
+
+        ReadingBatch batch = new ReadingBatch(0);
+        assertTrue(batch.isEmpty());
+
+        for (int i = 0; i < 100; i++) {
+            batch.add(reading(i));
+        }
+
+        assertEquals(100, batch.size());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(110f + i, batch.getSystolic(i), 0);
+            assertEquals(70f + i, batch.getDiastolic(i), 0);
+            assertEquals(1500000000L + i * 60L, batch.getTimestamp(i));
+        }
+
+    }
+
+    @Test
+    public void addsDecodedFrame() {
+
+        BloodPressureFrame frame = new BloodPressureFrame();
+        frame.setFlags(BloodPressureFrameDecoder.FLAG_TIMESTAMP | BloodPressureFrameDecoder.FLAG_USER_ID | BloodPressureFrameDecoder.FLAG_MEASUREMENT_STATUS);
+        frame.setTimestamp(1500000000123L);
+        frame.setSystolic(120);
+        frame.setDiastolic(80);
+        frame.setMeanArterialPressure(93);
+        frame.setUserId(200);
+        frame.setIrregularPulse(true);
+
+        ReadingBatch batch = new ReadingBatch();
+        batch.add(frame);
+
+        assertEquals(ReadingBatch.FLAG_TIMESTAMP | ReadingBatch.FLAG_USER_ID | ReadingBatch.FLAG_IRREGULAR_PULSE, batch.getFlags(0));
+        assertEquals(1500000000L, batch.getTimestamp(0));
+        assertEquals(200, batch.getUserId(0));
+        assertTrue(batch.isIrregularPulse(0));
+
+        BloodPressureReading reading = batch.toReading(0);
+        assertEquals(120f, reading.getSystolic(), 0);
+        assertEquals(200, reading.getUserId());
+        assertEquals(new Date(1500000000000L), reading.getDate());
+
+    }
+
+    @Test
+    public void readingWithoutTimestampHasNoDate() {
+
+        ReadingBatch batch = new ReadingBatch();
+        batch.add(new BloodPressureReading(0, null, 120, 80, 93, 0, false, 0));
+
+        assertEquals(0, batch.getFlags(0));
+        assertNull(batch.toReading(0).getDate());
+
+    }
+
+    @Test
+    public void addsAllReadingsOfAnotherBatch() {
+
+        ReadingBatch first = new ReadingBatch(2);
+        ReadingBatch second = new ReadingBatch(2);
+
+        for (int i = 0; i < 3; i++) {
+            first.add(reading(i));
+        }
+
+        for (int i = 3; i < 40; i++) {
+            second.add(reading(i));
+        }
+
+        first.addAll(second);
+
+        assertEquals(40, first.size());
+        assertEquals(37, second.size());
+
+        for (int i = 0; i < 40; i++) {
+            assertEquals(110f + i, first.getSystolic(i), 0);
+            assertEquals(i % 3 == 0, first.isIrregularPulse(i));
+        }
+
+        first.addAll(new ReadingBatch());
+        assertEquals(40, first.size());
+
+    }
+
+    @Test
+    public void iteratesWithOneRow() {
+
+        ReadingBatch batch = new ReadingBatch();
+
+        for (int i = 0; i < 3; i++) {
+            batch.add(reading(i));
+        }
+
+        Iterator<ReadingBatch.Row> iterator = batch.iterator();
+        ReadingBatch.Row first = iterator.next();
+        assertEquals(0, first.getIndex());
+
+        ReadingBatch.Row second = iterator.next();
+        assertSame(first, second);
+        assertEquals(111f, second.getSystolic(), 0);
+
+        iterator.next();
+        assertFalse(iterator.hasNext());
+
+        try {
+            iterator.next();
+            throw new AssertionError("next() after the last row");
+        } catch (NoSuchElementException expected) {
+            assertNotNull(expected);
+        }
+
+        ReadingBatch.Row row = batch.getRow(2, first);
+        assertSame(first, row);
+        assertEquals(112f, row.getSystolic(), 0);
+
+        /* rows of another batch aren't reused */
+        ReadingBatch other = new ReadingBatch();
+        other.add(reading(5));
+
+        ReadingBatch.Row foreign = other.getRow(0, first);
+        assertNotSame(first, foreign);
+        assertEquals(115f, foreign.getSystolic(), 0);
+        assertEquals(112f, first.getSystolic(), 0);
+
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndexBeyondSize() {
+
+        ReadingBatch batch = new ReadingBatch();
+        batch.add(reading(0));
+        batch.clear();
+
+        batch.getSystolic(0);
+
+    }
+
+    @Test
+    public void aggregatesColumns() {
+
+        ReadingBatch batch = new ReadingBatch();
+        batch.add(new BloodPressureReading(0, null, 120, 80, 93, 60, true, 0));
+        batch.add(new BloodPressureReading(0, null, 140, 90, 107, 0, false, 0));
+        batch.add(new BloodPressureReading(0, null, 130, 70, 90, 80, true, 0));
+
+        assertEquals(130f, batch.getAverage(ReadingBatch.COLUMN_SYSTOLIC), 0.001f);
+        assertEquals(70f, batch.getMinimum(ReadingBatch.COLUMN_DIASTOLIC), 0);
+        assertEquals(107f, batch.getMaximum(ReadingBatch.COLUMN_MEAN_ARTERIAL_PRESSURE), 0);
+
+        /* the reading without a pulse rate doesn't count */
+        assertEquals(70f, batch.getAverage(ReadingBatch.COLUMN_PULSE_RATE), 0.001f);
+        assertEquals(60f, batch.getMinimum(ReadingBatch.COLUMN_PULSE_RATE), 0);
+
+        assertEquals(2, batch.getIrregularPulseCount());
+
+    }
+
+    @Test
+    public void aggregatesOfEmptyBatchAreNaN() {
+
+        ReadingBatch batch = new ReadingBatch();
+
+        assertTrue(Float.isNaN(batch.getAverage(ReadingBatch.COLUMN_SYSTOLIC)));
+        assertTrue(Float.isNaN(batch.getMinimum(ReadingBatch.COLUMN_DIASTOLIC)));
+        assertTrue(Float.isNaN(batch.getMaximum(ReadingBatch.COLUMN_MEAN_ARTERIAL_PRESSURE)));
+        assertEquals(0, batch.getIrregularPulseCount());
+
+        /* readings without a pulse rate leave the pulse column empty */
+        batch.add(new BloodPressureReading(0, null, 120, 80, 93, 0, false, 0));
+        assertTrue(Float.isNaN(batch.getAverage(ReadingBatch.COLUMN_PULSE_RATE)));
+        assertTrue(Float.isNaN(batch.getMaximum(ReadingBatch.COLUMN_PULSE_RATE)));
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownColumn() {
+        new ReadingBatch().getAverage(4);
+    }
+
+    @Test
+    public void writesCsv() throws Exception {
+
+        ReadingBatch batch = new ReadingBatch();
+        batch.add(new BloodPressureReading(3, new Date(1500000000000L), 120, 80, 93, 60, true, 90));
+        batch.add(new BloodPressureReading(0, null, 130, 85, 100, 0, false, 0));
+
+        StringBuilder out = new StringBuilder();
+        batch.writeCsv(out);
+
+        assertEquals("timestamp,user,systolic,diastolic,mean_arterial_pressure,pulse_rate,irregular_pulse,battery\n"
+                + "1500000000,3,120.0,80.0,93.0,60.0,1,90\n"
+                + ",,130.0,85.0,100.0,,0,\n", out.toString());
+
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameIngestTest {
+
+    private ExecutorService mLooper;
+
+    @Before
+    public void setUp() {
+        mLooper = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mLooper.shutdownNow();
+    }
+
+    /*
+     * Checks that every frame arrives exactly once and in order, the consumer stalls now and then like a busy looper
+     */
+    private static class SequenceChecker implements FrameRing.Consumer {
+
+        final AtomicReference<String> failure = new AtomicReference<>();
+        volatile int received = 0;
+
+        private final int mStallEvery;
+
+        SequenceChecker(int stallEvery) {
+            this.mStallEvery = stallEvery;
+        }
+
+        @Override
+        public void onFrame(int tag, @NonNull byte[] buffer, int length) {
+
+            final int sequence = ((buffer[0] & 0xFF) << 24) | ((buffer[1] & 0xFF) << 16) | ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+
+            if (failure.get() == null && (sequence != received || tag != sequence % 3 || length != 4 + (sequence % 40))) {
+                failure.set(String.format("frame %d: got sequence %d with tag %d and length %d", received, sequence, tag, length));
+            }
+
+            received++;
+
+            if (received % mStallEvery == 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+        }
+
+    }
+
+    /*
+     * The producer reuses one buffer like the stack does with the value of a characteristic, frames of up to 43 bytes
+     * don't all fit into the slots and the slow consumer keeps the ring full, so both paths are taken
+     */
+    @Test(timeout = 60000)
+    public void keepsOrderWhenFloodedWithSlowConsumer() throws InterruptedException {
+
+        final int count = 200000;
+        final SequenceChecker checker = new SequenceChecker(500);
+        final FrameIngest ingest = new FrameIngest(8, 32, mLooper, checker);
+
+        final byte[] buffer = new byte[64];
+        final byte[][] frames = new byte[40][];
+
+        for (int i = 0; i < count; i++) {
+
+            final int length = 4 + (i % 40);
+
+            if (frames[i % 40] == null) {
+                frames[i % 40] = new byte[length];
+            }
+
+            buffer[0] = (byte) (i >>> 24);
+            buffer[1] = (byte) (i >>> 16);
+            buffer[2] = (byte) (i >>> 8);
+            buffer[3] = (byte) i;
+            System.arraycopy(buffer, 0, frames[i % 40], 0, 4);
+
+            ingest.offer(i % 3, frames[i % 40]);
+
+            /* the next indication overwrites the value right away */
+            frames[i % 40][0] = (byte) 0xFF;
+
+        }
+
+        mLooper.shutdown();
+        assertTrue(mLooper.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertNull(checker.failure.get());
+        assertEquals(count, checker.received);
+
+    }
+
+    @Test(timeout = 10000)
+    public void deliversSingleFrame() throws InterruptedException {
+
+        final SequenceChecker checker = new SequenceChecker(1);
+        final FrameIngest ingest = new FrameIngest(8, 32, mLooper, checker);
+
+        ingest.offer(0, new byte[]{0, 0, 0, 0});
+
+        mLooper.shutdown();
+        assertTrue(mLooper.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertNull(checker.failure.get());
+        assertEquals(1, checker.received);
+
+    }
+
+}
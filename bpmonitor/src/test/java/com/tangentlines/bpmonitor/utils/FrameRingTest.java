@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRingTest {
+
+    private static class Collector implements FrameRing.Consumer {
+
+        final List<byte[]> frames = new ArrayList<>();
+        final List<Integer> tags = new ArrayList<>();
+
+        @Override
+        public void onFrame(int tag, @NonNull byte[] buffer, int length) {
+            tags.add(tag);
+            byte[] frame = new byte[length];
+            System.arraycopy(buffer, 0, frame, 0, length);
+            frames.add(frame);
+        }
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePowerOfTwo() {
+        new FrameRing(6, 4);
+    }
+
+    @Test
+    public void drainsInOrder() {
+
+        FrameRing ring = new FrameRing(4, 4);
+        Collector collector = new Collector();
+
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(7, new byte[]{1}));
+        assertTrue(ring.offer(9, new byte[]{2, 3}));
+        assertFalse(ring.isEmpty());
+
+        assertEquals(2, ring.drain(collector));
+        assertTrue(ring.isEmpty());
+        assertArrayEquals(new byte[]{1}, collector.frames.get(0));
+        assertArrayEquals(new byte[]{2, 3}, collector.frames.get(1));
+        assertEquals(7, (int) collector.tags.get(0));
+        assertEquals(9, (int) collector.tags.get(1));
+
+        assertEquals(0, ring.drain(collector));
+
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+
+        FrameRing ring = new FrameRing(2, 4);
+        Collector collector = new Collector();
+
+        assertTrue(ring.offer(0, new byte[]{1}));
+        assertTrue(ring.offer(0, new byte[]{2}));
+        assertFalse(ring.offer(0, new byte[]{3}));
+
+        assertEquals(2, ring.drain(collector));
+        assertTrue(ring.offer(0, new byte[]{4}));
+        assertEquals(1, ring.drain(collector));
+        assertArrayEquals(new byte[]{4}, collector.frames.get(2));
+
+    }
+
+    @Test
+    public void rejectsOversizedFrames() {
+
+        FrameRing ring = new FrameRing(2, 4);
+
+        assertFalse(ring.offer(0, new byte[5]));
+        assertTrue(ring.isEmpty());
+
+    }
+
+    @Test
+    public void wrapsAround() {
+
+        FrameRing ring = new FrameRing(4, 4);
+        Collector collector = new Collector();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ring.offer(0, new byte[]{(byte) i, (byte) i}));
+            assertTrue(ring.offer(0, new byte[]{(byte) i}));
+            assertEquals(2, ring.drain(collector));
+        }
+
+        assertEquals(20, collector.frames.size());
+        assertArrayEquals(new byte[]{9, 9}, collector.frames.get(18));
+        assertArrayEquals(new byte[]{9}, collector.frames.get(19));
+
+    }
+
+    /*
+     * One producer and one consumer thread, every frame carries its sequence number and has to arrive exactly once and in order
+     */
+    @Test(timeout = 60000)
+    public void keepsOrderAcrossThreads() throws InterruptedException {
+
+        final int count = 1000000;
+        final FrameRing ring = new FrameRing(64, 8);
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                /* frames of 5 to 8 bytes, stale lengths of a slot would show */
+                byte[][] frames = {new byte[5], new byte[6], new byte[7], new byte[8]};
+
+                for (int i = 0; i < count; i++) {
+
+                    byte[] frame = frames[i % 4];
+                    frame[0] = (byte) (i >>> 24);
+                    frame[1] = (byte) (i >>> 16);
+                    frame[2] = (byte) (i >>> 8);
+                    frame[3] = (byte) i;
+                    frame[4] = (byte) (i % 5);
+
+                    while (!ring.offer(i, frame)) {
+                        Thread.yield();
+                    }
+
+                }
+
+            }
+
+        });
+
+        final int[] received = new int[1];
+
+        FrameRing.Consumer consumer = new FrameRing.Consumer() {
+
+            @Override
+            public void onFrame(int tag, @NonNull byte[] buffer, int length) {
+
+                int sequence = ((buffer[0] & 0xFF) << 24) | ((buffer[1] & 0xFF) << 16) | ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+
+                if (failure.get() == null && (sequence != received[0] || tag != sequence || length != 5 + (sequence % 4) || buffer[4] != sequence % 5)) {
+                    failure.set(String.format("frame %d: got sequence %d with length %d", received[0], sequence, length));
+                }
+
+                received[0]++;
+
+            }
+
+        };
+
+        producer.start();
+
+        while (received[0] < count) {
+            if (ring.drain(consumer) == 0) {
+                Thread.yield();
+            }
+        }
+
+        producer.join();
+
+        assertNull(failure.get());
+        assertEquals(count, received[0]);
+        assertTrue(ring.isEmpty());
+
+    }
+
+}
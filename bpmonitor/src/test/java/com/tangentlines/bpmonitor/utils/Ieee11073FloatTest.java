@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Ieee11073FloatTest {
+
+    /* SFLOAT */
+
+    @Test
+    public void decodesSFloatSpecials() {
+
+        assertTrue(Float.isNaN(Ieee11073Float.sfloatToFloat(Ieee11073Float.SFLOAT_NAN)));
+        assertTrue(Float.isNaN(Ieee11073Float.sfloatToFloat(Ieee11073Float.SFLOAT_NRES)));
+        assertTrue(Float.isNaN(Ieee11073Float.sfloatToFloat(Ieee11073Float.SFLOAT_RESERVED)));
+        assertEquals(Float.POSITIVE_INFINITY, Ieee11073Float.sfloatToFloat(Ieee11073Float.SFLOAT_POSITIVE_INFINITY), 0);
+        assertEquals(Float.NEGATIVE_INFINITY, Ieee11073Float.sfloatToFloat(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY), 0);
+
+    }
+
+    @Test
+    public void detectsSFloatSpecials() {
+
+        for (int raw = 0x07FE; raw <= 0x0802; raw++) {
+            assertTrue(Ieee11073Float.isSFloatSpecial(raw));
+        }
+
+        assertFalse(Ieee11073Float.isSFloatSpecial(0x07FD));
+        assertFalse(Ieee11073Float.isSFloatSpecial(0x0803));
+
+        /* the same mantissa with another exponent is a regular value */
+        assertFalse(Ieee11073Float.isSFloatSpecial(0x17FF));
+
+    }
+
+    @Test
+    public void encodesSFloatSpecials() {
+
+        assertEquals(Ieee11073Float.SFLOAT_NAN, Ieee11073Float.floatToSFloat(Float.NaN));
+        assertEquals(Ieee11073Float.SFLOAT_POSITIVE_INFINITY, Ieee11073Float.floatToSFloat(Float.POSITIVE_INFINITY));
+        assertEquals(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY, Ieee11073Float.floatToSFloat(Float.NEGATIVE_INFINITY));
+
+        /* beyond 2045 * 10^7 */
+        assertEquals(Ieee11073Float.SFLOAT_POSITIVE_INFINITY, Ieee11073Float.floatToSFloat(3e10f));
+        assertEquals(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY, Ieee11073Float.floatToSFloat(-3e10f));
+
+        /* below 10^-8 */
+        assertEquals(0f, Ieee11073Float.sfloatToFloat(Ieee11073Float.floatToSFloat(1e-12f)), 0);
+
+    }
+
+    @Test
+    public void decodesSFloat() {
+
+        /* 1200 * 10^-1, as sent by most blood pressure monitors */
+        assertEquals(120f, Ieee11073Float.sfloatToFloat(0xF4B0), 0);
+        assertEquals(120f, Ieee11073Float.sfloatToFloat(0x100C), 0);
+        assertEquals(-5.5f, Ieee11073Float.sfloatToFloat(0xFFC9), 0);
+
+        assertEquals(-55, Ieee11073Float.getSFloatMantissa(0xFFC9));
+        assertEquals(-1, Ieee11073Float.getSFloatExponent(0xFFC9));
+        assertEquals(7, Ieee11073Float.getSFloatExponent(0x7000));
+        assertEquals(-8, Ieee11073Float.getSFloatExponent(0x8000));
+
+    }
+
+    @Test
+    public void encodesSFloatWithSmallestMantissa() {
+
+        /* trailing zeros move into the exponent */
+        assertEquals(0x100C, Ieee11073Float.floatToSFloat(120f));
+        assertEquals(0xF16E, Ieee11073Float.floatToSFloat(36.6f));
+        assertEquals(0xFFC9, Ieee11073Float.floatToSFloat(-5.5f));
+        assertEquals(0, Ieee11073Float.floatToSFloat(0f));
+
+    }
+
+    @Test
+    public void readsAndWritesSFloatLittleEndian() {
+
+        byte[] buffer = new byte[4];
+        Ieee11073Float.writeSFloat(buffer, 1, 36.6f);
+
+        assertArrayEquals(new byte[]{0, 0x6E, (byte) 0xF1, 0}, buffer);
+        assertEquals(36.6f, Ieee11073Float.readSFloat(buffer, 1), 0);
+
+    }
+
+    @Test
+    public void roundTripsSFloat() {
+
+        for (int exponent = -3; exponent <= 3; exponent++) {
+            for (int mantissa = -2045; mantissa <= 2045; mantissa++) {
+
+                float value = Ieee11073Float.sfloatToFloat(Ieee11073Float.fixedToSFloat(mantissa, exponent));
+                assertEquals(mantissa + "e" + exponent, value, Ieee11073Float.sfloatToFloat(Ieee11073Float.floatToSFloat(value)), 0);
+
+            }
+        }
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSFloatMantissaOutOfRange() {
+        Ieee11073Float.fixedToSFloat(2046, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSFloatExponentOutOfRange() {
+        Ieee11073Float.fixedToSFloat(1, 8);
+    }
+
+    /* FLOAT */
+
+    @Test
+    public void decodesFloatSpecials() {
+
+        assertTrue(Float.isNaN(Ieee11073Float.float32ToFloat(Ieee11073Float.FLOAT_NAN)));
+        assertTrue(Float.isNaN(Ieee11073Float.float32ToFloat(Ieee11073Float.FLOAT_NRES)));
+        assertTrue(Float.isNaN(Ieee11073Float.float32ToFloat(Ieee11073Float.FLOAT_RESERVED)));
+        assertEquals(Float.POSITIVE_INFINITY, Ieee11073Float.float32ToFloat(Ieee11073Float.FLOAT_POSITIVE_INFINITY), 0);
+        assertEquals(Float.NEGATIVE_INFINITY, Ieee11073Float.float32ToFloat(Ieee11073Float.FLOAT_NEGATIVE_INFINITY), 0);
+
+        assertTrue(Ieee11073Float.isFloatSpecial(Ieee11073Float.FLOAT_POSITIVE_INFINITY));
+        assertTrue(Ieee11073Float.isFloatSpecial(Ieee11073Float.FLOAT_NEGATIVE_INFINITY));
+        assertFalse(Ieee11073Float.isFloatSpecial(0x007FFFFD));
+        assertFalse(Ieee11073Float.isFloatSpecial(0x01800000));
+
+    }
+
+    @Test
+    public void encodesFloatSpecials() {
+
+        assertEquals(Ieee11073Float.FLOAT_NAN, Ieee11073Float.floatToFloat32(Float.NaN));
+        assertEquals(Ieee11073Float.FLOAT_POSITIVE_INFINITY, Ieee11073Float.floatToFloat32(Float.POSITIVE_INFINITY));
+        assertEquals(Ieee11073Float.FLOAT_NEGATIVE_INFINITY, Ieee11073Float.floatToFloat32(Float.NEGATIVE_INFINITY));
+
+    }
+
+    @Test
+    public void encodesFloat() {
+
+        assertEquals(0xFF0003DA, Ieee11073Float.floatToFloat32(98.6f));
+        assertEquals(-1, Ieee11073Float.getFloatExponent(0xFF0003DA));
+        assertEquals(986, Ieee11073Float.getFloatMantissa(0xFF0003DA));
+        assertEquals(98.6f, Ieee11073Float.float32ToFloat(0xFF0003DA), 0);
+
+        assertEquals(-986, Ieee11073Float.getFloatMantissa(Ieee11073Float.floatToFloat32(-98.6f)));
+
+    }
+
+    @Test
+    public void readsAndWritesFloatLittleEndian() {
+
+        byte[] buffer = new byte[5];
+        Ieee11073Float.writeFloat(buffer, 1, 98.6f);
+
+        assertArrayEquals(new byte[]{0, (byte) 0xDA, 0x03, 0, (byte) 0xFF}, buffer);
+        assertEquals(98.6f, Ieee11073Float.readFloat(buffer, 1), 0);
+
+    }
+
+    @Test
+    public void roundTripsFloat() {
+
+        Random random = new Random(11073);
+
+        for (int i = 0; i < 100000; i++) {
+
+            int mantissa = random.nextInt(2 * 8388605 + 1) - 8388605;
+            int exponent = random.nextInt(21) - 10;
+
+            float value = Ieee11073Float.float32ToFloat(Ieee11073Float.fixedToFloat32(mantissa, exponent));
+            assertEquals(mantissa + "e" + exponent, value, Ieee11073Float.float32ToFloat(Ieee11073Float.floatToFloat32(value)), 0);
+
+        }
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFloatMantissaOutOfRange() {
+        Ieee11073Float.fixedToFloat32(8388606, 0);
+    }
+
+}
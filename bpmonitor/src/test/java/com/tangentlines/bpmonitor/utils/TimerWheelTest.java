@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.utils;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    /* level 0 spans 64 ticks, level 1 64 * 64 ticks, level 2 64 * 64 * 64 ticks */
+    private static final long LEVEL_1 = 64 * TimerWheel.TICK;
+    private static final long LEVEL_2 = 64 * LEVEL_1;
+    private static final long WHEEL = 64 * LEVEL_2;
+
+    /*
+     * Runs the ticks synchronously when the test moves the clock
+     */
+    private static class ManualTicker implements TimerWheel.Ticker {
+
+        long now = 0;
+        Runnable tick;
+        long tickAt;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void scheduleTick(@NonNull Runnable tick, long uptime) {
+            this.tick = tick;
+            this.tickAt = uptime;
+        }
+
+        /*
+         * Runs every tick up to time on time, like an idle timer thread
+         */
+        void advanceTo(long time) {
+
+            while (tick != null && tickAt <= time) {
+                now = tickAt;
+                runTick();
+            }
+
+            now = time;
+
+        }
+
+        /*
+         * Runs a single late tick at time, like a timer thread which was busy or asleep
+         */
+        void jumpTo(long time) {
+
+            now = time;
+
+            if (tick != null && tickAt <= time) {
+                runTick();
+            }
+
+        }
+
+        private void runTick() {
+            Runnable pending = tick;
+            tick = null;
+            pending.run();
+        }
+
+    }
+
+    /*
+     * Records when it ran
+     */
+    private static class Task implements Runnable {
+
+        private final ManualTicker ticker;
+        final List<Long> runs = new ArrayList<>();
+
+        Task(ManualTicker ticker) {
+            this.ticker = ticker;
+        }
+
+        @Override
+        public void run() {
+            runs.add(ticker.now);
+        }
+
+    }
+
+    @Test
+    public void runsOnFirstTickAfterDelay() {
+
+        ManualTicker ticker = new ManualTicker();
+        TimerWheel wheel = new TimerWheel(ticker);
+        Task task = new Task(ticker);
+
+        /* the wheel starts ticking at 10, its ticks fall on 60, 110, 160 */
+        ticker.now = 10;
+        wheel.schedule(task, 120);
+
+        ticker.advanceTo(159);
+        assertTrue(task.runs.isEmpty());
+
+        ticker.advanceTo(1000);
+        assertEquals(1, task.runs.size());
+        assertEquals(160L, (long) task.runs.get(0));
+
+    }
+
+    @Test
+    public void runsZeroDelayOnNextTick() {
+
+        ManualTicker ticker = new ManualTicker();
+        TimerWheel wheel = new TimerWheel(ticker);
+        Task task = new Task(ticker);
+
+        wheel.schedule(task, 0);
+        ticker.advanceTo(TimerWheel.TICK);
+
+        assertEquals(1, task.runs.size());
+
+    }
+
+    @Test
+    public void cascadesDownTheLevels() {
+
+        ManualTicker ticker = new ManualTicker();
+        TimerWheel wheel = new TimerWheel(ticker);
+
+        long[] delays = {
+                LEVEL_1 - TimerWheel.TICK,          // last slot of level 0
+                LEVEL_1,                            // first slot of level 1
+                3 * LEVEL_1 + 7 * TimerWheel.TICK,  // level 1, lands in the middle of a level 0 round
+                LEVEL_2 + 70,                       // level 2, rounded up to the next tick
+                5 * LEVEL_2 + 3 * LEVEL_1 + 5 * TimerWheel.TICK,
+                WHEEL + 2 * LEVEL_2                 // beyond the wheel, waits in the last slot of level 2
+        };
+
+        Task[] tasks = new Task[delays.length];
+
+        for (int i = 0; i < delays.length; i++) {
+            tasks[i] = new Task(ticker);
+            wheel.schedule(tasks[i], delays[i]);
+        }
+
+        ticker.advanceTo(WHEEL + 3 * LEVEL_2);
+
+        for (int i = 0; i < delays.length; i++) {
+
+            long expected = (delays[i] + TimerWheel.TICK - 1) / TimerWheel.TICK * TimerWheel.TICK;
+
+            assertEquals("task " + i, 1, tasks[i].runs.size());
+            assertEquals("task " + i, expected, (long) tasks[i].runs.get(0));
+
+        }
+
+        /* nothing pending, the wheel stopped ticking */
+        assertNull(ticker.tick);
+
+    }
+
+    @Test
+    public void catchesUpAfterLateTick() {
+
+        ManualTicker ticker = new ManualTicker();
+        TimerWheel wheel = new TimerWheel(ticker);
+        Task near = new Task(ticker);
+        Task far = new Task(ticker);
+        Task later = new Task(ticker);
+
+        wheel.schedule(near, 200);
+        wheel.schedule(far, 2 * LEVEL_1 + 100);
+        wheel.schedule(later, 4 * LEVEL_1);
+
+        ticker.jumpTo(3 * LEVEL_1);
+
+        assertEquals(1, near.runs.size());
+        assertEquals(1, far.runs.size());
+        assertTrue(later.runs.isEmpty());
+
+        ticker.advanceTo(4 * LEVEL_1);
+        assertEquals(4 * LEVEL_1, (long) later.runs.get(0));
+
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() {
+
+        ManualTicker ticker = new ManualTicker();
+        TimerWheel wheel = new TimerWheel(ticker);
+        Task cancelled = new Task(ticker);
+        Task kept = new Task(ticker);
+
+        TimerWheel.Timeout timeout = wheel.schedule(cancelled, 500);
+        wheel.schedule(kept, 500);
+        timeout.cancel();
+
+        ticker.advanceTo(1000);
+
+        assertTrue(cancelled.runs.isEmpty());
+        assertEquals(1, kept.runs.size());
+
+    }
+
+    @Test
+    public void cancelsAfterCascade() {
+
+        ManualTicker ticker = new ManualTicker();
+        TimerWheel wheel = new TimerWheel(ticker);
+        Task task = new Task(ticker);
+
+        TimerWheel.Timeout timeout = wheel.schedule(task, LEVEL_2 + 5 * LEVEL_1);
+
+        /* moved from level 2 to level 1 and then to level 0 by now */
+        ticker.advanceTo(LEVEL_2 + 5 * LEVEL_1 - 10 * TimerWheel.TICK);
+        timeout.cancel();
+
+        ticker.advanceTo(WHEEL);
+        assertTrue(task.runs.isEmpty());
+        assertNull(ticker.tick);
+
+    }
+
+    @Test
+    public void cancelStopsTheWheel() {
+
+        ManualTicker ticker = new ManualTicker();
+        TimerWheel wheel = new TimerWheel(ticker);
+        Task task = new Task(ticker);
+
+        wheel.schedule(task, 10000).cancel();
+
+        /* the tick already posted finds nothing pending and doesn't post another one */
+        ticker.advanceTo(TimerWheel.TICK);
+        assertNull(ticker.tick);
+
+        /* a cancelled timeout can be cancelled again, a ran one as well */
+        TimerWheel.Timeout timeout = wheel.schedule(task, 0);
+        ticker.advanceTo(ticker.tickAt);
+        timeout.cancel();
+        timeout.cancel();
+
+        assertEquals(1, task.runs.size());
+        assertNull(ticker.tick);
+
+    }
+
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.schema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Turns a frame schema into a codec class with a straight-line decoder and encoder, no reflection or lookups at runtime.
+ * The target class needs a setter and getter per field: set<Name>() / get<Name>() with int for flags, uint8 and uint16,
+ * long for timestamps (ms since 1970) and String for strings. SFLOAT fields are decoded into set<Name>(float) and
+ * setRaw<Name>(int), the encoder writes getRaw<Name>() so values pass through unchanged.
+ */
+public class FrameCodecGenerator {
+
+    private static final String INDENT = "    ";
+
+    /* package of the helpers the generated code uses */
+    private static final String RUNTIME_PACKAGE = "com.tangentlines.bpmonitor";
+
+    private final FrameSchema mSchema;
+    private final StringBuilder mOut = new StringBuilder();
+
+    private FrameCodecGenerator(FrameSchema schema) {
+        this.mSchema = schema;
+    }
+
+    public static String generate(FrameSchema schema) {
+        return new FrameCodecGenerator(schema).generate();
+    }
+
+    private String generate() {
+
+        final String target = simpleName(mSchema.getTargetClass());
+        final FrameSchema.Field flagsField = mSchema.getFlagsField();
+        final FrameSchema.Field variableField = mSchema.getVariableField();
+
+        line(0, "/*");
+        line(0, " * Generated from " + mSchema.getSource() + " by FrameCodecGenerator, do not edit.");
+        line(0, " */");
+        line(0, "package " + mSchema.getPackageName() + ";");
+        line(0, "");
+        line(0, "import android.support.annotation.NonNull;");
+        line(0, "");
+
+        final List<String> imports = new ArrayList<>();
+        imports.add(RUNTIME_PACKAGE + ".FrameCodecs");
+        imports.add(RUNTIME_PACKAGE + ".utils.BinaryUtils");
+        imports.add(mSchema.getTargetClass());
+
+        if (hasType(FrameSchema.TYPE_SFLOAT)) {
+            imports.add(RUNTIME_PACKAGE + ".utils.Ieee11073Float");
+        }
+
+        Collections.sort(imports);
+
+        for (String name : imports) {
+            if (!mSchema.getPackageName().equals(packageName(name))) {
+                line(0, "import " + name + ";");
+            }
+        }
+
+        line(0, "");
+        line(0, "import java.nio.ByteBuffer;");
+        line(0, "");
+        line(0, "public final class " + mSchema.getCodecName() + " {");
+        line(0, "");
+
+        /* constants */
+
+        if (flagsField != null) {
+
+            line(1, "/* masks of the " + flagsField.getName() + " field */");
+
+            for (FrameSchema.Field field : mSchema.getFields()) {
+                if (field.isOptional()) {
+                    line(1, "public static final int " + flagName(field) + " = " + String.format(Locale.ENGLISH, "0x%02X", field.getMask()) + ";");
+                }
+            }
+
+            line(0, "");
+
+        }
+
+        int minLength = 0;
+        int maxLength = 0;
+
+        for (FrameSchema.Field field : mSchema.getFields()) {
+
+            maxLength += field.getLength();
+
+            if (!field.isOptional()) {
+                minLength += field == variableField ? 1 : field.getLength();
+            }
+
+        }
+
+        line(1, "/* smallest frame which can be decoded, without optional fields */");
+        line(1, "public static final int MIN_LENGTH = " + minLength + ";");
+        line(0, "");
+        line(1, "/* frame with all fields */");
+        line(1, "public static final int MAX_LENGTH = " + maxLength + ";");
+        line(0, "");
+        line(1, "private " + mSchema.getCodecName() + "() {");
+        line(1, "}");
+        line(0, "");
+
+        generateDecoder(target, flagsField, variableField);
+        generateEncoder(target, flagsField);
+
+        if (flagsField != null) {
+            generateGetLength(variableField);
+        }
+
+        line(0, "}");
+
+        return mOut.toString();
+
+    }
+
+    private void generateDecoder(String target, FrameSchema.Field flagsField, FrameSchema.Field variableField) {
+
+        line(1, "/*");
+        line(1, " * Decodes length bytes of buffer from offset into target, returns FrameCodecs.RESULT_OK or the reason the frame is malformed.");
+        line(1, " * Fields which are not part of the frame are left untouched, bytes after the last field are ignored.");
+        line(1, " */");
+        line(1, "public static int decode(@NonNull byte[] buffer, int offset, int length, @NonNull " + target + " target) {");
+        line(0, "");
+        line(2, "if (offset < 0 || length < 0 || offset + length > buffer.length) {");
+        line(3, "throw new IndexOutOfBoundsException(\"frame exceeds the buffer\");");
+        line(2, "}");
+        line(0, "");
+        line(2, "if (length == 0) {");
+        line(3, "return FrameCodecs.RESULT_EMPTY;");
+        line(2, "}");
+        line(0, "");
+
+        if (flagsField != null) {
+
+            final int flagsOffset = offsetOf(flagsField);
+
+            if (flagsOffset > 0) {
+                line(2, "if (length < MIN_LENGTH) {");
+                line(3, "return FrameCodecs.RESULT_TRUNCATED;");
+                line(2, "}");
+                line(0, "");
+            }
+
+            line(2, "final int flags = buffer[" + position("offset", flagsOffset) + "] & 0xFF;");
+            line(0, "");
+
+            final String slack = variableField != null ? " - " + (variableField.getLength() - 1) : "";
+            line(2, "if (length < getLength(flags)" + slack + ") {");
+
+        } else {
+
+            line(2, "if (length < MIN_LENGTH) {");
+
+        }
+
+        line(3, "return FrameCodecs.RESULT_TRUNCATED;");
+        line(2, "}");
+        line(0, "");
+
+        final List<FrameSchema.Field> fields = mSchema.getFields();
+        boolean dynamic = false;
+        int fixed = 0;
+
+        for (int i = 0; i < fields.size(); i++) {
+
+            final FrameSchema.Field field = fields.get(i);
+            final boolean last = i == fields.size() - 1;
+
+            if (field.isOptional() && !dynamic) {
+                dynamic = true;
+                line(0, "");
+                line(2, "int index = " + position("offset", fixed) + ";");
+                line(0, "");
+            }
+
+            final String position = dynamic ? "index" : position("offset", fixed);
+            final int indent = field.isOptional() ? 3 : 2;
+
+            if (field.isOptional()) {
+                line(2, "if ((flags & " + flagName(field) + ") != 0) {");
+            }
+
+            decodeField(field, field == variableField, position, indent);
+
+            if (dynamic && !last) {
+                line(indent, "index += " + field.getLength() + ";");
+            }
+
+            if (field.isOptional()) {
+                line(2, "}");
+                line(0, "");
+            }
+
+            fixed += field.getLength();
+
+        }
+
+        if (!fields.get(fields.size() - 1).isOptional()) {
+            line(0, "");
+        }
+
+        line(2, "return FrameCodecs.RESULT_OK;");
+        line(0, "");
+        line(1, "}");
+        line(0, "");
+
+    }
+
+    private void decodeField(FrameSchema.Field field, boolean variable, String position, int indent) {
+
+        final String name = capitalize(field.getName());
+
+        switch (field.getType()) {
+
+            case FrameSchema.TYPE_FLAGS:
+                line(indent, "target.set" + name + "(flags);");
+                break;
+
+            case FrameSchema.TYPE_UINT8:
+                line(indent, "target.set" + name + "(buffer[" + position + "] & 0xFF);");
+                break;
+
+            case FrameSchema.TYPE_UINT16:
+                line(indent, "target.set" + name + "(BinaryUtils.getUnsignedShort(buffer, " + position + "));");
+                break;
+
+            case FrameSchema.TYPE_SFLOAT:
+                line(indent, "final int raw" + name + " = BinaryUtils.getUnsignedShort(buffer, " + position + ");");
+                line(indent, "target.setRaw" + name + "(raw" + name + ");");
+                line(indent, "target.set" + name + "(Ieee11073Float.sfloatToFloat(raw" + name + "));");
+                break;
+
+            case FrameSchema.TYPE_TIMESTAMP:
+                line(indent, "target.set" + name + "(BinaryUtils.toTimestamp(buffer, " + position + "));");
+                break;
+
+            case FrameSchema.TYPE_STRING:
+
+                final String length = variable
+                        ? "Math.min(" + field.getLength() + ", offset + length - (" + position + "))"
+                        : String.valueOf(field.getLength());
+
+                line(indent, "target.set" + name + "(BinaryUtils.getString(buffer, " + position + ", " + length + "));");
+                break;
+
+            default:
+                throw new IllegalArgumentException("unknown type " + field.getType());
+
+        }
+
+    }
+
+    private void generateEncoder(String target, FrameSchema.Field flagsField) {
+
+        line(1, "/*");
+        line(1, flagsField != null
+                ? " * Writes the frame at the position of out, optional fields which are not in the flags are left out"
+                : " * Writes the frame at the position of out");
+        line(1, " */");
+        line(1, "public static void encode(@NonNull " + target + " source, @NonNull ByteBuffer out) {");
+        line(0, "");
+
+        if (flagsField != null) {
+            line(2, "final int flags = source.get" + capitalize(flagsField.getName()) + "();");
+            line(0, "");
+        }
+
+        boolean blank = true;
+
+        for (FrameSchema.Field field : mSchema.getFields()) {
+
+            if (field.isOptional()) {
+
+                if (!blank) {
+                    line(0, "");
+                }
+
+                line(2, "if ((flags & " + flagName(field) + ") != 0) {");
+                encodeField(field, 3);
+                line(2, "}");
+                line(0, "");
+                blank = true;
+
+            } else {
+
+                encodeField(field, 2);
+                blank = false;
+
+            }
+
+        }
+
+        if (!blank) {
+            line(0, "");
+        }
+
+        line(1, "}");
+        line(0, "");
+
+    }
+
+    private void encodeField(FrameSchema.Field field, int indent) {
+
+        final String name = capitalize(field.getName());
+
+        switch (field.getType()) {
+
+            case FrameSchema.TYPE_FLAGS:
+                line(indent, "out.put((byte) flags);");
+                break;
+
+            case FrameSchema.TYPE_UINT8:
+                line(indent, "out.put((byte) source.get" + name + "());");
+                break;
+
+            case FrameSchema.TYPE_UINT16:
+                line(indent, "BinaryUtils.putUnsignedShort(out, source.get" + name + "());");
+                break;
+
+            case FrameSchema.TYPE_SFLOAT:
+                line(indent, "BinaryUtils.putUnsignedShort(out, source.getRaw" + name + "());");
+                break;
+
+            case FrameSchema.TYPE_TIMESTAMP:
+                line(indent, "BinaryUtils.putTimestamp(out, source.get" + name + "());");
+                break;
+
+            case FrameSchema.TYPE_STRING:
+                line(indent, "BinaryUtils.putString(out, source.get" + name + "(), " + field.getLength() + ");");
+                break;
+
+            default:
+                throw new IllegalArgumentException("unknown type " + field.getType());
+
+        }
+
+    }
+
+    private void generateGetLength(FrameSchema.Field variableField) {
+
+        int length = 0;
+        for (FrameSchema.Field field : mSchema.getFields()) {
+            if (!field.isOptional()) {
+                length += field.getLength();
+            }
+        }
+
+        line(1, "/*");
+        line(1, variableField != null
+                ? " * Number of bytes encode() writes for the flags, the last string may be shorter when decoding"
+                : " * Number of bytes a frame with the flags needs");
+        line(1, " */");
+        line(1, "public static int getLength(int flags) {");
+        line(0, "");
+        line(2, "int length = " + length + ";");
+        line(0, "");
+
+        for (FrameSchema.Field field : mSchema.getFields()) {
+
+            if (field.isOptional()) {
+                line(2, "if ((flags & " + flagName(field) + ") != 0) {");
+                line(3, "length += " + field.getLength() + ";");
+                line(2, "}");
+                line(0, "");
+            }
+
+        }
+
+        line(2, "return length;");
+        line(0, "");
+        line(1, "}");
+        line(0, "");
+
+    }
+
+    /*
+     * Byte offset of a field which comes before the first optional field
+     */
+    private int offsetOf(FrameSchema.Field target) {
+
+        int offset = 0;
+
+        for (FrameSchema.Field field : mSchema.getFields()) {
+
+            if (field == target) {
+                return offset;
+            }
+
+            offset += field.getLength();
+
+        }
+
+        throw new IllegalArgumentException("unknown field " + target.getName());
+
+    }
+
+    private boolean hasType(String type) {
+
+        for (FrameSchema.Field field : mSchema.getFields()) {
+            if (type.equals(field.getType())) {
+                return true;
+            }
+        }
+
+        return false;
+
+    }
+
+    private void line(int indent, String text) {
+
+        if (!text.isEmpty()) {
+            for (int i = 0; i < indent; i++) {
+                mOut.append(INDENT);
+            }
+        }
+
+        mOut.append(text).append('\n');
+
+    }
+
+    private static String position(String base, int offset) {
+        return offset == 0 ? base : base + " + " + offset;
+    }
+
+    /*
+     * meanArterialPressure -> FLAG_MEAN_ARTERIAL_PRESSURE
+     */
+    private static String flagName(FrameSchema.Field field) {
+
+        final StringBuilder name = new StringBuilder("FLAG_");
+
+        for (char c : field.getName().toCharArray()) {
+
+            if (Character.isUpperCase(c)) {
+                name.append('_');
+            }
+
+            name.append(Character.toUpperCase(c));
+
+        }
+
+        return name.toString();
+
+    }
+
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static String simpleName(String className) {
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+
+    private static String packageName(String className) {
+        final int dot = className.lastIndexOf('.');
+        return dot > 0 ? className.substring(0, dot) : "";
+    }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.schema;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Layout of a device frame, parsed from a .frame file:
+ *
+ *   # comment
+ *   package com.tangentlines.bpmonitor
+ *   codec BloodPressureMeasurementCodec
+ *   target com.tangentlines.bpmonitor.model.BloodPressureFrame
+ *
+ *   field flags flags
+ *   field systolic sfloat
+ *   field timestamp timestamp if 0x02
+ *   field name string 16
+ *
+ * Fields are little endian and follow each other without gaps. A field with "if" is only part of the frame if the
+ * mask is set in the flags field, which has to come before it. A string as the last field may be shorter than its length
+ * unless it's optional.
+ */
+public class FrameSchema {
+
+    public static final String TYPE_FLAGS = "flags";
+    public static final String TYPE_UINT8 = "uint8";
+    public static final String TYPE_UINT16 = "uint16";
+    public static final String TYPE_SFLOAT = "sfloat";
+    public static final String TYPE_TIMESTAMP = "timestamp";
+    public static final String TYPE_STRING = "string";
+
+    public static class Field {
+
+        private final String mName;
+        private final String mType;
+        private final int mLength;
+        private final int mMask;
+
+        Field(String name, String type, int length, int mask) {
+            this.mName = name;
+            this.mType = type;
+            this.mLength = length;
+            this.mMask = mask;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getType() {
+            return mType;
+        }
+
+        /*
+         * Size in bytes
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /*
+         * Bits of the flags field which gate this field, 0 if it's always present
+         */
+        public int getMask() {
+            return mMask;
+        }
+
+        public boolean isOptional() {
+            return mMask != 0;
+        }
+
+    }
+
+    private final String mSource;
+    private String mPackageName;
+    private String mCodecName;
+    private String mTargetClass;
+    private final List<Field> mFields = new ArrayList<>();
+
+    private FrameSchema(String source) {
+        this.mSource = source;
+    }
+
+    /*
+     * Name of the file the schema was read from
+     */
+    public String getSource() {
+        return mSource;
+    }
+
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    public String getCodecName() {
+        return mCodecName;
+    }
+
+    public String getTargetClass() {
+        return mTargetClass;
+    }
+
+    public List<Field> getFields() {
+        return Collections.unmodifiableList(mFields);
+    }
+
+    /*
+     * The last field if it's a string which the device may cut short, null otherwise
+     */
+    public Field getVariableField() {
+
+        final Field last = mFields.get(mFields.size() - 1);
+        return TYPE_STRING.equals(last.getType()) && !last.isOptional() ? last : null;
+
+    }
+
+    /*
+     * Returns the flags field or null if the frame has none
+     */
+    public Field getFlagsField() {
+
+        for (Field field : mFields) {
+            if (TYPE_FLAGS.equals(field.getType())) {
+                return field;
+            }
+        }
+
+        return null;
+
+    }
+
+    public static FrameSchema parse(String source, Reader input) throws IOException {
+
+        final FrameSchema schema = new FrameSchema(source);
+        final BufferedReader reader = new BufferedReader(input);
+
+        boolean hasFlags = false;
+        int lineNumber = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+
+            lineNumber++;
+
+            final int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            final String[] tokens = line.split("\\s+");
+            final String where = source + ":" + lineNumber + ": ";
+
+            switch (tokens[0]) {
+
+                case "package":
+                    schema.mPackageName = requireArgument(tokens, where);
+                    break;
+
+                case "codec":
+                    schema.mCodecName = requireArgument(tokens, where);
+                    break;
+
+                case "target":
+                    schema.mTargetClass = requireArgument(tokens, where);
+                    break;
+
+                case "field":
+
+                    final Field field = parseField(tokens, where, hasFlags);
+
+                    for (Field other : schema.mFields) {
+                        if (other.getName().equals(field.getName())) {
+                            throw new IllegalArgumentException(where + "duplicate field " + field.getName());
+                        }
+                    }
+
+                    if (TYPE_FLAGS.equals(field.getType())) {
+
+                        if (hasFlags) {
+                            throw new IllegalArgumentException(where + "only one flags field is allowed");
+                        }
+
+                        hasFlags = true;
+
+                    }
+
+                    schema.mFields.add(field);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(where + "unknown statement " + tokens[0]);
+
+            }
+
+        }
+
+        if (schema.mPackageName == null || schema.mCodecName == null || schema.mTargetClass == null) {
+            throw new IllegalArgumentException(source + ": package, codec and target are required");
+        }
+
+        if (schema.mFields.isEmpty()) {
+            throw new IllegalArgumentException(source + ": no fields declared");
+        }
+
+        return schema;
+
+    }
+
+    private static String requireArgument(String[] tokens, String where) {
+
+        if (tokens.length != 2) {
+            throw new IllegalArgumentException(where + tokens[0] + " takes exactly one argument");
+        }
+
+        return tokens[1];
+
+    }
+
+    private static Field parseField(String[] tokens, String where, boolean hasFlags) {
+
+        if (tokens.length < 3) {
+            throw new IllegalArgumentException(where + "expected: field <name> <type> [length] [if <mask>]");
+        }
+
+        final String name = tokens[1];
+        final String type = tokens[2];
+
+        if (!Character.isJavaIdentifierStart(name.charAt(0))) {
+            throw new IllegalArgumentException(where + "invalid field name " + name);
+        }
+
+        int index = 3;
+        int length;
+
+        switch (type) {
+
+            case TYPE_FLAGS:
+            case TYPE_UINT8:
+                length = 1;
+                break;
+
+            case TYPE_UINT16:
+            case TYPE_SFLOAT:
+                length = 2;
+                break;
+
+            case TYPE_TIMESTAMP:
+                length = 4;
+                break;
+
+            case TYPE_STRING:
+
+                if (tokens.length <= index) {
+                    throw new IllegalArgumentException(where + "string needs a length");
+                }
+
+                length = parseNumber(tokens[index++], where);
+                if (length <= 0) {
+                    throw new IllegalArgumentException(where + "string length must be > 0");
+                }
+
+                break;
+
+            default:
+                throw new IllegalArgumentException(where + "unknown type " + type);
+
+        }
+
+        int mask = 0;
+
+        if (tokens.length > index) {
+
+            if (!"if".equals(tokens[index]) || tokens.length != index + 2) {
+                throw new IllegalArgumentException(where + "expected: if <mask>");
+            }
+
+            if (!hasFlags) {
+                throw new IllegalArgumentException(where + "optional fields need a flags field before them");
+            }
+
+            if (TYPE_FLAGS.equals(type)) {
+                throw new IllegalArgumentException(where + "the flags field can't be optional");
+            }
+
+            mask = parseNumber(tokens[index + 1], where);
+            if (mask <= 0 || mask > 0xFF) {
+                throw new IllegalArgumentException(where + "mask must be within 0x01 and 0xFF");
+            }
+
+        }
+
+        return new Field(name, type, length, mask);
+
+    }
+
+    private static int parseNumber(String token, String where) {
+
+        try {
+            return token.startsWith("0x") ? Integer.parseInt(token.substring(2), 16) : Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(where + "invalid number " + token);
+        }
+
+    }
+
+}
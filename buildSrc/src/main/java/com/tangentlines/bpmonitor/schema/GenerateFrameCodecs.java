@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 Markus Fußenegger.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tangentlines.bpmonitor.schema;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/*
+ * Generates a codec class for every .frame file of the schema directory
+ */
+public class GenerateFrameCodecs extends DefaultTask {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File schemaDir;
+    private File outputDir;
+
+    @InputDirectory
+    public File getSchemaDir() {
+        return schemaDir;
+    }
+
+    public void setSchemaDir(File schemaDir) {
+        this.schemaDir = schemaDir;
+    }
+
+    @OutputDirectory
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    public void setOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    @TaskAction
+    public void generate() throws IOException {
+
+        /* codecs of removed schemas must not stay around */
+        getProject().delete(outputDir);
+
+        final File[] files = schemaDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+
+            if (!file.getName().endsWith(".frame")) {
+                continue;
+            }
+
+            final FrameSchema schema;
+
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8)) {
+                schema = FrameSchema.parse(file.getName(), reader);
+            } catch (IllegalArgumentException e) {
+                throw new GradleException(e.getMessage(), e);
+            }
+
+            final File dir = new File(outputDir, schema.getPackageName().replace('.', File.separatorChar));
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create " + dir);
+            }
+
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, schema.getCodecName() + ".java")), UTF_8)) {
+                writer.write(FrameCodecGenerator.generate(schema));
+            }
+
+        }
+
+    }
+
+}